@@ -0,0 +1,287 @@
+package pt.ulisboa.tecnico.cnv.scaling;
+
+import java.util.Arrays;
+
+/**
+ * Time series of the Requests arriving at the LoadBalancer, published for the AutoScaler. For each
+ * second of the window it holds the number of arrivals and the sum of their estimated Costs, also
+ * split by Cost in a log-scale Histogram, the latencies of the Requests served and the time they
+ * waited in the DispatchQueue, in two other ones, and the peak depth of the DispatchQueue, in a
+ * ring indexed by the epoch second, so that recording is constant time.
+ */
+public class ArrivalSeries {
+
+  private static final int BUCKETS_PER_DOUBLING = 4;
+  private static final int N_BUCKETS = 80;
+  private static final int N_COST_BUCKETS = 160;
+  private final int window;
+  private final long[] seconds;
+  private final int[] arrivals;
+  private final double[] costs;
+  private final double[][] work;
+  private final int[][] latencies;
+  private final int[][] queueDelays;
+  private final int[] queueDepths;
+
+  /**
+   * Creates an ArrivalSeries.
+   *
+   * @param window Number of seconds kept.
+   */
+  public ArrivalSeries(int window) {
+    this.window = window;
+    this.seconds = new long[window];
+    this.arrivals = new int[window];
+    this.costs = new double[window];
+    this.work = new double[window][N_COST_BUCKETS];
+    this.latencies = new int[window][N_BUCKETS];
+    this.queueDelays = new int[window][N_BUCKETS];
+    this.queueDepths = new int[window];
+  }
+
+  /**
+   * Gets the current epoch second.
+   *
+   * @return Seconds since the epoch.
+   */
+  public static long currentSecond() {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  /**
+   * Records the arrival of a Request.
+   *
+   * @param estimatedCost Estimated Cost of the Request.
+   */
+  public synchronized void record(double estimatedCost) {
+    int index = this.currentIndex();
+    this.arrivals[index]++;
+    this.costs[index] += estimatedCost;
+    this.work[index][bucketOf(estimatedCost, N_COST_BUCKETS)] += estimatedCost;
+  }
+
+  /**
+   * Records a Request served by a WebServer.
+   *
+   * @param latency Time since the Request arrived at the LoadBalancer, in milliseconds.
+   */
+  public synchronized void recordCompletion(long latency) {
+    this.latencies[this.currentIndex()][bucketOf(latency, N_BUCKETS)]++;
+  }
+
+  /**
+   * Records the time a Request waited in the DispatchQueue for an Instance to take it.
+   *
+   * @param delay Time queued, in milliseconds.
+   */
+  public synchronized void recordQueueDelay(long delay) {
+    this.queueDelays[this.currentIndex()][bucketOf(delay, N_BUCKETS)]++;
+  }
+
+  /**
+   * Gets the Histogram bucket of a value: BUCKETS_PER_DOUBLING buckets for each power of 2.
+   *
+   * @param value Non-negative value.
+   * @param nBuckets Number of buckets of the Histogram.
+   * @return Bucket index, the last one for larger values.
+   */
+  private static int bucketOf(double value, int nBuckets) {
+    int bucket = (int) (BUCKETS_PER_DOUBLING * Math.log(Math.max(value, 0) + 1) / Math.log(2));
+    return Math.min(bucket, nBuckets - 1);
+  }
+
+  /**
+   * Gets the lowest value of a Histogram bucket.
+   *
+   * @param bucket Bucket index.
+   * @return Lower bound of the bucket.
+   */
+  private static double bucketBound(int bucket) {
+    return Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING) - 1;
+  }
+
+  /**
+   * Records the number of Requests waiting in the DispatchQueue, keeping the peak of each second.
+   *
+   * @param depth Queue Depth.
+   */
+  public synchronized void recordQueueDepth(int depth) {
+    int index = this.currentIndex();
+    this.queueDepths[index] = Math.max(this.queueDepths[index], depth);
+  }
+
+  /**
+   * Gets the index of the current second in the ring, clearing it if it held an older second.
+   *
+   * @return Index of the current second.
+   */
+  private int currentIndex() {
+    long second = currentSecond();
+    int index = (int) (second % this.window);
+    if (this.seconds[index] != second) {
+      this.seconds[index] = second;
+      this.arrivals[index] = 0;
+      this.costs[index] = 0;
+      Arrays.fill(this.work[index], 0);
+      Arrays.fill(this.latencies[index], 0);
+      Arrays.fill(this.queueDelays[index], 0);
+      this.queueDepths[index] = 0;
+    }
+    return index;
+  }
+
+  /**
+   * Gets the average rates of arrival between two seconds, counting seconds with no arrivals and
+   * those older than the window as idle.
+   *
+   * @param from First second, inclusive.
+   * @param to Last second, exclusive.
+   * @return Average Rates per second, or null if the interval is empty.
+   */
+  public synchronized Rate getRate(long from, long to) {
+    if (to <= from) return null;
+    long nArrivals = 0;
+    double cost = 0;
+    for (long second = Math.max(from, to - this.window); second < to; second++) {
+      int index = (int) (second % this.window);
+      if (this.seconds[index] != second) continue;
+      nArrivals += this.arrivals[index];
+      cost += this.costs[index];
+    }
+    return new Rate((double) nArrivals / (to - from), cost / (to - from));
+  }
+
+  /**
+   * Gets a quantile of the latencies of the Requests served between two seconds, rounded up to the
+   * bound of its Histogram bucket, within 19% of the actual value.
+   *
+   * @param from First second, inclusive.
+   * @param to Last second, exclusive.
+   * @param quantile Quantile, between 0 and 1.
+   * @param minCompletions Minimum number of Requests served for the quantile to be meaningful.
+   * @return Latency in milliseconds, or null if fewer Requests were served.
+   */
+  public synchronized Double getLatency(long from, long to, double quantile, int minCompletions) {
+    return this.getQuantile(this.latencies, from, to, quantile, minCompletions);
+  }
+
+  /**
+   * Gets a quantile of the time the Requests dispatched between two seconds waited in the
+   * DispatchQueue, rounded up to the bound of its Histogram bucket. Unlike the latency, it does not
+   * include the time the WebServers took to scan, which more Instances cannot reduce.
+   *
+   * @param from First second, inclusive.
+   * @param to Last second, exclusive.
+   * @param quantile Quantile, between 0 and 1.
+   * @param minDispatches Minimum number of Requests dispatched for the quantile to be meaningful.
+   * @return Queue Delay in milliseconds, or null if fewer Requests were dispatched.
+   */
+  public synchronized Double getQueueDelay(long from, long to, double quantile, int minDispatches) {
+    return this.getQuantile(this.queueDelays, from, to, quantile, minDispatches);
+  }
+
+  private Double getQuantile(
+      int[][] histograms, long from, long to, double quantile, int minCount) {
+    int[] histogram = new int[N_BUCKETS];
+    long nCount = 0;
+    for (long second = Math.max(from, to - this.window); second < to; second++) {
+      int index = (int) (second % this.window);
+      if (this.seconds[index] != second) continue;
+      for (int bucket = 0; bucket < N_BUCKETS; bucket++) {
+        histogram[bucket] += histograms[index][bucket];
+        nCount += histograms[index][bucket];
+      }
+    }
+    if (nCount == 0 || nCount < minCount) return null;
+    long rank = (long) Math.ceil(quantile * nCount);
+    long count = 0;
+    int bucket = 0;
+    while (bucket < N_BUCKETS - 1 && (count += histogram[bucket]) < rank) bucket++;
+    return bucketBound(bucket + 1);
+  }
+
+  /**
+   * Splits the estimated Cost that arrived between two seconds into Cost intervals, by the Cost of
+   * each Request, rounded down to the bound of its Histogram bucket.
+   *
+   * @param from First second, inclusive.
+   * @param to Last second, exclusive.
+   * @param bounds Increasing Costs that separate the intervals.
+   * @return Share of the Cost in each of the bounds.length + 1 intervals, or null if nothing
+   *     arrived.
+   */
+  public synchronized double[] getWorkShares(long from, long to, double[] bounds) {
+    double[] shares = new double[bounds.length + 1];
+    double total = 0;
+    for (long second = Math.max(from, to - this.window); second < to; second++) {
+      int index = (int) (second % this.window);
+      if (this.seconds[index] != second) continue;
+      int interval = 0;
+      for (int bucket = 0; bucket < N_COST_BUCKETS; bucket++) {
+        while (interval < bounds.length && bucketBound(bucket) >= bounds[interval]) interval++;
+        shares[interval] += this.work[index][bucket];
+        total += this.work[index][bucket];
+      }
+    }
+    if (total <= 0) return null;
+    for (int i = 0; i < shares.length; i++) shares[i] /= total;
+    return shares;
+  }
+
+  /**
+   * Gets the peak number of Requests waiting in the DispatchQueue between two seconds.
+   *
+   * @param from First second, inclusive.
+   * @param to Last second, exclusive.
+   * @return Peak Queue Depth, or 0 if nothing was recorded.
+   */
+  public synchronized int getQueueDepth(long from, long to) {
+    int depth = 0;
+    for (long second = Math.max(from, to - this.window); second < to; second++) {
+      int index = (int) (second % this.window);
+      if (this.seconds[index] == second) depth = Math.max(depth, this.queueDepths[index]);
+    }
+    return depth;
+  }
+
+  /**
+   * Gets the ArrivalSeries metrics over the last seconds, one per line, in the "name value" format.
+   *
+   * @param seconds Number of complete seconds averaged.
+   * @return Arrival Metrics.
+   */
+  public String toMetrics(int seconds) {
+    long now = currentSecond();
+    Rate rate = this.getRate(now - seconds, now);
+    Double latency = this.getLatency(now - seconds, now, 0.95, 1);
+    Double queueDelay = this.getQueueDelay(now - seconds, now, 0.95, 1);
+    return String.format(
+        "lb_arrival_rate %.4f\nlb_arrival_cost_rate %.1f\nlb_latency_p95 %.1f\n"
+            + "lb_queue_delay_p95 %.1f\nlb_queue_depth %d\n",
+        rate.getArrivalRate(),
+        rate.getCostRate(),
+        latency != null ? latency : 0,
+        queueDelay != null ? queueDelay : 0,
+        this.getQueueDepth(now - seconds, now));
+  }
+
+  /** Average Requests and estimated Cost arriving per second. */
+  public static class Rate {
+
+    private final double arrivalRate;
+    private final double costRate;
+
+    private Rate(double arrivalRate, double costRate) {
+      this.arrivalRate = arrivalRate;
+      this.costRate = costRate;
+    }
+
+    public double getArrivalRate() {
+      return this.arrivalRate;
+    }
+
+    public double getCostRate() {
+      return this.costRate;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package pt.ulisboa.tecnico.cnv.scaling;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Performs a Health Check on a WebServer. A healthy WebServer answers with an HTTP OK whose body is
+ * the number of Scan Requests it has in flight, which lets a restarted ScalingApp learn the load of
+ * the Instances it adopts.
+ */
+public class HealthCheck {
+
+  private HealthCheck() {}
+
+  /**
+   * Performs a Health Check on the WebServer at the address given.
+   *
+   * @param publicDnsName Public DNS Name of the Instance.
+   * @param port Port of the WebServer.
+   * @param timeout Timeout to connect and to read the response, in milliseconds, or 0 for none.
+   * @return Number of Requests in flight on the WebServer, 0 if it did not report them, or null if
+   *     the Health Check failed.
+   */
+  public static Integer check(String publicDnsName, int port, int timeout) {
+    HttpURLConnection con = null;
+    try {
+      con =
+          (HttpURLConnection)
+              new URL(String.format("http://%s:%d/health", publicDnsName, port)).openConnection();
+      con.setRequestMethod("GET");
+      con.setConnectTimeout(timeout);
+      con.setReadTimeout(timeout);
+      if (con.getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(con.getInputStream(), "UTF-8"))) {
+        String line = reader.readLine();
+        return line != null ? Math.max(0, Integer.parseInt(line.trim())) : 0;
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (con != null) con.disconnect();
+    }
+  }
+}
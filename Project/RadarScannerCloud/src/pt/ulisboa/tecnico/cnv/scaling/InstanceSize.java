@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.cnv.scaling;
+
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An AWS Instance Type the AutoScaler may launch, with its capacity weight, the units of work it
+ * serves at once relative to the smallest one, and its price per hour. The sizes are configured by
+ * AS_INSTANCE_TYPES, a comma-separated list of "type:capacity:price" entries, such as
+ * "t2.micro:1:0.0116,t3.large:4:0.0832". Malformed entries are ignored, and only t2.micro is used
+ * when none is valid.
+ */
+public class InstanceSize {
+
+  private static final InstanceSize DEFAULT = new InstanceSize("t2.micro", 1, 0.0116);
+  private static List<InstanceSize> configured;
+  private final String type;
+  private final int capacity;
+  private final double price;
+
+  /**
+   * Creates an InstanceSize.
+   *
+   * @param type AWS Instance Type.
+   * @param capacity Capacity weight, at least 1.
+   * @param price Price per hour, in dollars.
+   */
+  public InstanceSize(String type, int capacity, double price) {
+    this.type = type;
+    this.capacity = Math.max(1, capacity);
+    this.price = price;
+  }
+
+  /**
+   * Gets the configured InstanceSizes.
+   *
+   * @return InstanceSizes sorted by increasing capacity.
+   */
+  public static synchronized List<InstanceSize> getConfigured() {
+    if (configured != null) return configured;
+    List<InstanceSize> sizes = new ArrayList<>();
+    for (String entry : Environment.getString("AS_INSTANCE_TYPES", "").split(",")) {
+      String[] fields = entry.trim().split(":");
+      if (fields.length != 3) continue;
+      try {
+        sizes.add(
+            new InstanceSize(
+                fields[0], Integer.parseInt(fields[1]), Double.parseDouble(fields[2])));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    if (sizes.isEmpty()) sizes.add(DEFAULT);
+    Collections.sort(
+        sizes,
+        new Comparator<InstanceSize>() {
+          @Override
+          public int compare(InstanceSize a, InstanceSize b) {
+            return Integer.compare(a.capacity, b.capacity);
+          }
+        });
+    configured = Collections.unmodifiableList(sizes);
+    return configured;
+  }
+
+  /**
+   * Gets the configured InstanceSize of an AWS Instance Type.
+   *
+   * @param type AWS Instance Type, or null if unknown.
+   * @return The configured InstanceSize, the smallest one if the type is unknown, or one of
+   *     capacity 1 and no price if it is not configured.
+   */
+  public static InstanceSize forType(String type) {
+    List<InstanceSize> sizes = getConfigured();
+    if (type == null) return sizes.get(0);
+    for (InstanceSize size : sizes) {
+      if (size.type.equals(type)) return size;
+    }
+    return new InstanceSize(type, 1, 0);
+  }
+
+  public String getType() {
+    return this.type;
+  }
+
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  public double getPrice() {
+    return this.price;
+  }
+
+  /**
+   * Gets the capacity bought with each dollar per hour.
+   *
+   * @return Capacity per Dollar, or infinity if the price is unknown.
+   */
+  public double getCapacityPerDollar() {
+    return this.price > 0 ? this.capacity / this.price : Double.POSITIVE_INFINITY;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s(x%d, $%.4f/h)", this.type, this.capacity, this.price);
+  }
+}
@@ -1,7 +1,11 @@
 package pt.ulisboa.tecnico.cnv.scaling;
 
 import pt.ulisboa.tecnico.cnv.scaling.autoscaler.AutoScaler;
+import pt.ulisboa.tecnico.cnv.scaling.fleet.EC2FleetProvider;
+import pt.ulisboa.tecnico.cnv.scaling.fleet.FleetProvider;
+import pt.ulisboa.tecnico.cnv.scaling.fleet.LocalFleetProvider;
 import pt.ulisboa.tecnico.cnv.scaling.loadbalancer.LBWebServer;
+import pt.ulisboa.tecnico.cnv.util.Environment;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -10,28 +14,31 @@ import java.util.logging.Level;
 public class ScalingApp {
 
   /**
-   * Initializes the AutoScaler and the LoadBalancer in different threads.
+   * Initializes the AutoScaler and the LoadBalancer in different threads. The WebServers run on
+   * EC2 Instances, or as local processes when FLEET_BACKEND is "local".
    *
    * @param args CommandLine Arguments containing: Image Id of the WebServer, Key Pair Name,
-   *     Security Group.
+   *     Security Group. None are needed for local processes.
    */
   public static void main(String[] args) throws InterruptedException {
 
-    if (args.length != 3) {
+    FleetProvider fleet;
+    if ("local".equalsIgnoreCase(Environment.getString("FLEET_BACKEND", "ec2"))) {
+      fleet = LocalFleetProvider.fromEnvironment();
+    } else if (args.length == 3) {
+      fleet = new EC2FleetProvider(args[0], args[1], args[2]);
+    } else {
       System.out.printf(
           "%s Usage: <AMI> <KeyName> <SecurityGroup>%n", ScalingApp.class.getSimpleName());
       return;
     }
 
-    String ami = args[0];
-    String keyName = args[1];
-    String securityGroup = args[2];
     Map<String, ScalingInstance> instances = new ConcurrentHashMap<>();
+    ArrivalSeries arrivalSeries = new ArrivalSeries(600);
     Level level = "1".equals(System.getenv("DEBUG")) ? Level.ALL : Level.OFF;
 
-    Thread autoScalerThread =
-        new Thread(new AutoScaler(instances, ami, keyName, securityGroup, level));
-    Thread lBWebServerThread = new Thread(new LBWebServer(instances, level));
+    Thread autoScalerThread = new Thread(new AutoScaler(instances, arrivalSeries, fleet, level));
+    Thread lBWebServerThread = new Thread(new LBWebServer(instances, arrivalSeries, level));
 
     autoScalerThread.start();
     lBWebServerThread.start();
@@ -2,20 +2,44 @@ package pt.ulisboa.tecnico.cnv.scaling;
 
 import com.amazonaws.services.ec2.model.Instance;
 
-/** Keeps track of an AWS Instance, its State and current estimated Cost. */
+/** Keeps track of an AWS Instance, its State, its InstanceSize and current estimated Cost. */
 public class ScalingInstance {
 
   private static final int UNHEALTHY_THRESHOLD = 2;
   private static final int HEALTHY_THRESHOLD = 4;
-  private final Instance instance;
+  public static final int DEFAULT_PORT = 8000;
+  private volatile Instance instance;
+  private volatile int port;
+  private final InstanceSize size;
+  private State state;
+  private long stateSince;
+  private long launchTime;
+  private long readyTime;
   private double currentCost;
+  private double drainCost;
+  private int nRequests;
+  private int nUntracked;
   private int nHealthy;
   private int nUnhealthy;
   private boolean isUp;
 
   public ScalingInstance(Instance instance) {
+    this(instance, State.REQUESTED);
+  }
+
+  public ScalingInstance(Instance instance, State state) {
+    this(instance, state, InstanceSize.forType(instance.getInstanceType()));
+  }
+
+  public ScalingInstance(Instance instance, State state, InstanceSize size) {
     this.instance = instance;
+    this.size = size;
+    this.port = DEFAULT_PORT;
+    this.state = state;
+    this.stateSince = System.currentTimeMillis();
+    this.launchTime = this.stateSince;
     this.currentCost = 0.0;
+    this.nRequests = 0;
     this.nHealthy = 0;
     this.nUnhealthy = 0;
     this.isUp = false;
@@ -29,6 +53,7 @@ public class ScalingInstance {
    */
   public synchronized void addCost(double cost) {
     this.currentCost += cost;
+    this.nRequests++;
   }
 
   /**
@@ -39,19 +64,34 @@ public class ScalingInstance {
    */
   public synchronized void removeCost(double cost) {
     this.currentCost -= cost;
+    this.nRequests--;
   }
 
   /**
-   * Records a successful Health Check. If the Instance is already Healthy, it returns. Otherwise,
-   * it will set the Instance to be initialized and increase the number of successful Health Checks,
-   * that when equal to or greater than the HealthyThreshold, the Instance is defined as Healthy.
+   * Records a successful Health Check. An Instance that had not yet answered one becomes Warm. If
+   * the Instance is already Healthy, it returns. Otherwise, it will set the Instance to be
+   * initialized and increase the number of successful Health Checks, that when equal to or greater
+   * than the HealthyThreshold, the Instance is defined as Healthy.
    */
   public synchronized void registerHealthyCheck() {
+    if (this.state.compareTo(State.WARM) < 0) this.setState(State.WARM);
     if (this.isHealthy()) return;
     this.isUp = true;
     if (++this.nHealthy >= HEALTHY_THRESHOLD) this.nUnhealthy = 0;
   }
 
+  /**
+   * Records a successful Health Check in which the WebServer reported the Requests it has in
+   * flight. The ones beyond those forwarded to it by this LoadBalancer, such as the ones forwarded
+   * before a restart, are counted as untracked until the WebServer reports them finished.
+   *
+   * @param nInFlight Number of Requests in flight reported by the WebServer.
+   */
+  public synchronized void registerHealthyCheck(int nInFlight) {
+    this.registerHealthyCheck();
+    this.nUntracked = Math.max(0, nInFlight - this.nRequests);
+  }
+
   /**
    * Records an unsuccessful Health Check. If the Instance has not yet been initialized, it returns.
    * Otherwise, it will increase the number of unsuccessful Health Checks and redefine the number of
@@ -83,6 +123,113 @@ public class ScalingInstance {
     return this.nUnhealthy >= UNHEALTHY_THRESHOLD;
   }
 
+  /** Records that the Instance served a Request, which makes a Warm Instance Serving. */
+  public synchronized void registerServedRequest() {
+    if (this.state == State.WARM) this.setState(State.SERVING);
+  }
+
+  /**
+   * Checks whether the LoadBalancer may forward Requests to the Instance: it is Healthy, Warm or
+   * Serving, and not being drained.
+   *
+   * @return True if the Instance can take Requests, otherwise, False.
+   */
+  public synchronized boolean isRoutable() {
+    return this.isHealthy() && (this.state == State.WARM || this.state == State.SERVING);
+  }
+
+  /**
+   * Stops routing Requests to the Instance, so that it can be terminated once the ones in flight
+   * finish, and records the Cost they add up to.
+   */
+  public synchronized void startDraining() {
+    if (this.state == State.DRAINING || this.state == State.TERMINATED) return;
+    this.drainCost = this.currentCost;
+    this.setState(State.DRAINING);
+  }
+
+  /**
+   * Gets the Cost that was in flight when the Instance started draining.
+   *
+   * @return Drained Cost.
+   */
+  public synchronized double getDrainCost() {
+    return this.drainCost;
+  }
+
+  /**
+   * Gets the Lifecycle State of this Instance.
+   *
+   * @return Lifecycle State.
+   */
+  public synchronized State getState() {
+    return this.state;
+  }
+
+  /**
+   * Moves the Instance to another Lifecycle State.
+   *
+   * @param state New Lifecycle State.
+   */
+  public synchronized void setState(State state) {
+    if (this.state == state) return;
+    this.state = state;
+    this.stateSince = System.currentTimeMillis();
+    if (state == State.WARM && this.readyTime == 0) this.readyTime = this.stateSince;
+  }
+
+  /**
+   * Sets the time the Instance was asked to launch, or to start again, from which its time to
+   * serving is measured.
+   *
+   * @param launchTime Launch time, in milliseconds since the epoch.
+   */
+  public synchronized void setLaunchTime(long launchTime) {
+    this.launchTime = launchTime;
+    this.readyTime = 0;
+  }
+
+  /**
+   * Gets the time the Instance took from its launch to being Warm, ready to take Requests.
+   *
+   * @return Time to serving, in milliseconds, or -1 if it is not yet Warm.
+   */
+  public synchronized long getTimeToServing() {
+    return this.readyTime != 0 ? this.readyTime - this.launchTime : -1;
+  }
+
+  /**
+   * Gets the time the Instance has been in its current Lifecycle State.
+   *
+   * @return Time in the current State, in milliseconds.
+   */
+  public synchronized long getTimeInState() {
+    return System.currentTimeMillis() - this.stateSince;
+  }
+
+  /**
+   * Replaces the description of the AWS Instance, for instance once it is running and has a Public
+   * DNS Name.
+   *
+   * @param instance Up-to-date AWS Instance.
+   */
+  public void setInstance(Instance instance) {
+    this.instance = instance;
+  }
+
+  /**
+   * Gets the port the WebServer of this Instance listens on.
+   *
+   * @return WebServer port.
+   */
+  public int getPort() {
+    return this.port;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
   /**
    * Gets the Public DNS Name for this Instance.
    *
@@ -110,6 +257,44 @@ public class ScalingInstance {
     return this.currentCost;
   }
 
+  /**
+   * Gets the InstanceSize of this Instance.
+   *
+   * @return Instance Size.
+   */
+  public InstanceSize getSize() {
+    return this.size;
+  }
+
+  /**
+   * Gets the capacity weight of this Instance, the units of work it serves at once.
+   *
+   * @return Instance Capacity.
+   */
+  public int getCapacity() {
+    return this.size.getCapacity();
+  }
+
+  /**
+   * Gets the current estimated Cost associated with this Instance per unit of its capacity, so that
+   * Instances of different sizes can be compared.
+   *
+   * @return Instance normalized Load.
+   */
+  public double getLoad() {
+    return this.currentCost / this.size.getCapacity();
+  }
+
+  /**
+   * Gets the number of Requests forwarded to this Instance that have not finalized yet, including
+   * the untracked ones it reported in its last Health Check.
+   *
+   * @return Number of in-flight Requests.
+   */
+  public synchronized int getNRequests() {
+    return this.nRequests + this.nUntracked;
+  }
+
   /**
    * Gets the State of this Instance at the current time.
    *
@@ -118,7 +303,35 @@ public class ScalingInstance {
   @Override
   public String toString() {
     return String.format(
-        "InstanceState{ instance=%s, currentCost=%.1f, nUnhealthy=%d, nHealthy=%d }",
-        instance.getInstanceId(), currentCost, nUnhealthy, nHealthy);
+        "InstanceState{ instance=%s, size=%s, state=%s, currentCost=%.1f, nRequests=%d, "
+            + "nUntracked=%d, nUnhealthy=%d, nHealthy=%d }",
+        instance.getInstanceId(),
+        size,
+        state,
+        currentCost,
+        nRequests,
+        nUntracked,
+        nUnhealthy,
+        nHealthy);
+  }
+
+  /** Lifecycle State of an Instance, from its launch to its termination. */
+  public enum State {
+    /** Launch accepted by AWS, but not yet reported by it. */
+    REQUESTED,
+    /** Reported by AWS as pending. */
+    PENDING,
+    /** Running in AWS, with its WebServer not yet answering Health Checks. */
+    BOOTING,
+    /** Answering Health Checks and ready to take Requests. */
+    WARM,
+    /** Serving Requests, having served at least one. */
+    SERVING,
+    /** Taking no more Requests, until the ones in flight finish. */
+    DRAINING,
+    /** Stopped, or being stopped, and kept in the Warm Pool until it is needed. */
+    STOPPED,
+    /** Terminated, or about to be. */
+    TERMINATED
   }
 }
@@ -1,355 +1,960 @@
 package pt.ulisboa.tecnico.cnv.scaling.autoscaler;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
-import com.amazonaws.services.cloudwatch.model.*;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
-import com.amazonaws.services.ec2.model.*;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+import pt.ulisboa.tecnico.cnv.scaling.ArrivalSeries;
+import pt.ulisboa.tecnico.cnv.scaling.HealthCheck;
+import pt.ulisboa.tecnico.cnv.scaling.InstanceSize;
 import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.scaling.fleet.FleetProvider;
+import pt.ulisboa.tecnico.cnv.util.Environment;
 import pt.ulisboa.tecnico.cnv.util.LoggerFormatter;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-/** Manages the creation and destruction of Instances. */
+/**
+ * Manages the creation and destruction of Instances. Every 10 seconds, it sizes the fleet with a
+ * TargetTrackingPolicy, from the 95th percentile queue delay and the Requests outstanding measured
+ * by the LoadBalancer over the last AS_SIGNAL_WINDOW milliseconds, the Cost in flight and the CPU
+ * Utilization, launching or draining as many Instances as needed in one step. A scale-out can
+ * follow another after AS_SCALE_OUT_COOLDOWN milliseconds, while a scale-in waits the longer
+ * AS_SCALE_IN_COOLDOWN after any action, so that the fleet grows quickly and shrinks cautiously.
+ * The Cost in flight is the greater of the current one and the one forecast with a HoltForecaster
+ * from the estimated Cost arriving at the LoadBalancer, AS_BOOT_TIME milliseconds ahead (the time
+ * an Instance takes to start serving).
+ *
+ * <p>The fleet is sized in units of capacity, and may mix the InstanceSizes of AS_INSTANCE_TYPES.
+ * The capacity launched is split among them by the Cost mix arriving at the LoadBalancer: the work
+ * of Requests that would exceed the target Cost of a smaller size goes to a bigger one, and each
+ * share goes to the size with the most capacity per dollar among those it fits. The throughput per
+ * dollar of the running fleet is reported.
+ *
+ * <p>Instances go through the Lifecycle States of ScalingInstance without ever blocking the
+ * scaling Timer: launches and terminations are submitted to the FleetProvider in the background,
+ * several Instances are launched with a single request, and the Instances being launched are
+ * polled together every AS_POLL_PERIOD milliseconds. An Instance that is not running after
+ * AS_LAUNCH_TIMEOUT, or whose WebServer does not answer AS_BOOT_TIMEOUT after that, is replaced.
+ * Instances being launched count towards the capacity, so that a scale-out is not repeated while
+ * it is still under way.
+ *
+ * <p>Instances are never terminated with Requests in flight if it can be helped: an Instance that
+ * is scaled in or found Unhealthy is drained first, and terminated once its Requests finish or
+ * AS_DRAIN_TIMEOUT milliseconds pass. The Cost that finished while draining, which would otherwise
+ * have been scanned again elsewhere, is reported as saved.
+ *
+ * <p>A Warm Pool of AS_WARM_POOL_SIZE Instances can be kept to scale out faster: they are launched
+ * in the background, left running AS_WARM_POOL_WARMUP milliseconds so that their disk and
+ * WebServer are initialized once, and then stopped. A scale-out starts pooled Instances before it
+ * launches new ones, and the pool is refilled right after. The time from launch to serving is
+ * reported for pooled and cold launches.
+ *
+ * <p>Every Instance is tagged with the AS_FLEET_NAME fleet and its role, WebServer or Warm Pool, so
+ * that a restarted ScalingApp adopts the fleet left running instead of launching a new one. The
+ * running WebServers found are health-checked in parallel, and those that answer take Requests at
+ * once, counting the ones they report in flight as their load. Only the capacity missing from the
+ * minimum is then launched.
+ *
+ * <p>Instances are provided by a FleetProvider: EC2 Instances, or local WebServer processes, so
+ * that the scaling and balancing can be exercised on a single machine.
+ */
 public class AutoScaler implements Runnable {
 
   private static final Logger logger = Logger.getLogger(AutoScaler.class.getName());
-  private static final int COST_THRESHOLD_MIN = 1100000;
-  private static final int COST_THRESHOLD_MAX = 3000000;
-  private static final int CPU_THRESHOLD_MIN = 30;
-  private static final int CPU_THRESHOLD_MAX = 80;
-  private static final int MIN_INSTANCES = 2;
-  private final String ami;
-  private final String keyName;
-  private final String securityGroup;
+  private static final int MIN_CAPACITY = 2;
+  private static final int PERIOD = 10000;
+  private static final int MIN_ARRIVALS = 5;
+  private static final int MAX_CAPACITY = 20;
+  private static final String FLEET_TAG = "radar-scanner:fleet";
+  private static final String ROLE_TAG = "radar-scanner:role";
+  private static final String WEBSERVER_ROLE = "webserver";
+  private static final String WARM_POOL_ROLE = "warm-pool";
+  private final FleetProvider fleet;
   private final Map<String, ScalingInstance> instances;
-  private AmazonEC2 ec2;
-  private AmazonCloudWatch cloudWatch;
+  private final ArrivalSeries arrivalSeries;
+  private final HoltForecaster forecaster;
+  private final TargetTrackingPolicy policy;
+  private final List<InstanceSize> sizes;
+  private final int leadSteps;
+  private final ExecutorService fleetExecutor;
+  private final AtomicInteger nLaunching;
+  private final AtomicInteger nPoolLaunching;
+  private final Map<String, ScalingInstance> warmPool;
+  private final Set<String> stopping;
+  private final Map<String, Boolean> launches;
+  private final int warmPoolSize;
+  private final long warmPoolWarmUp;
+  private final long launchTimeout;
+  private final long bootTimeout;
+  private final long drainTimeout;
+  private final long signalWindow;
+  private final long scaleOutCooldown;
+  private final long scaleInCooldown;
+  private final String fleetName;
+  private long lastScaleOut;
+  private long lastScaleIn;
+  private Double averageCPU;
+  private long lastSecond;
+  private ArrivalSeries.Rate lastRate;
+  private double residenceTime;
+  private int nDrained;
+  private double drainedCostSaved;
+  private double drainedCostLost;
+  private int nColdLaunches;
+  private long coldTimeToServing;
+  private int nPooledLaunches;
+  private long pooledTimeToServing;
 
   public AutoScaler(
       Map<String, ScalingInstance> instances,
-      String ami,
-      String keyName,
-      String securityGroup,
+      ArrivalSeries arrivalSeries,
+      FleetProvider fleet,
       Level level) {
     logger.setLevel(level);
     logger.setUseParentHandlers(false);
     ConsoleHandler loggerHandler = new ConsoleHandler();
     loggerHandler.setFormatter(new LoggerFormatter());
     logger.addHandler(loggerHandler);
-    this.ami = ami;
-    this.keyName = keyName;
-    this.securityGroup = securityGroup;
+    this.fleet = fleet;
     this.instances = instances;
-    this.newAWS();
+    this.arrivalSeries = arrivalSeries;
+    this.forecaster =
+        new HoltForecaster(
+            Environment.getDouble("AS_FORECAST_ALPHA", 0.5),
+            Environment.getDouble("AS_FORECAST_BETA", 0.3));
+    this.leadSteps =
+        (int) Math.ceil((double) Environment.getLong("AS_BOOT_TIME", 120000) / PERIOD);
+    this.fleetExecutor = Executors.newCachedThreadPool();
+    this.nLaunching = new AtomicInteger();
+    this.nPoolLaunching = new AtomicInteger();
+    this.warmPool = new ConcurrentHashMap<>();
+    this.stopping = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.launches = new ConcurrentHashMap<>();
+    this.warmPoolSize = Environment.getInt("AS_WARM_POOL_SIZE", 0);
+    this.warmPoolWarmUp = Environment.getLong("AS_WARM_POOL_WARMUP", 120000);
+    this.launchTimeout = Environment.getLong("AS_LAUNCH_TIMEOUT", 300000);
+    this.bootTimeout = Environment.getLong("AS_BOOT_TIMEOUT", 300000);
+    this.drainTimeout = Environment.getLong("AS_DRAIN_TIMEOUT", 120000);
+    this.policy = TargetTrackingPolicy.fromEnvironment();
+    this.sizes = InstanceSize.getConfigured();
+    this.signalWindow = Environment.getLong("AS_SIGNAL_WINDOW", 30000);
+    this.scaleOutCooldown = Environment.getLong("AS_SCALE_OUT_COOLDOWN", 60000);
+    this.scaleInCooldown = Environment.getLong("AS_SCALE_IN_COOLDOWN", 300000);
+    this.fleetName = Environment.getString("AS_FLEET_NAME", "radar-scanner");
   }
 
   /**
-   * Initializes AWS EC2 and CloudWatch with the credentials of our AWS account, stored in the
-   * ~/.aws Directory.
+   * Adopts the running fleet, launches the capacity still missing from the minimum and initializes
+   * the AutoScaler Timers.
    */
-  private void newAWS() {
-    try {
-      AWSCredentials credentials = new ProfileCredentialsProvider().getCredentials();
-      this.ec2 =
-          AmazonEC2ClientBuilder.standard()
-              .withRegion(Regions.US_EAST_1)
-              .withCredentials(new AWSStaticCredentialsProvider(credentials))
-              .build();
-      this.cloudWatch =
-          AmazonCloudWatchClientBuilder.standard()
-              .withRegion(Regions.US_EAST_1)
-              .withCredentials(new AWSStaticCredentialsProvider(credentials))
-              .build();
-    } catch (Exception e) {
-      throw new AmazonClientException("Bad Credentials", e);
-    }
-  }
-
-  /** Initializes the AutoScaler Timer. */
   @Override
   public void run() {
-    this.autoScalerBoot();
+    this.adoptFleet();
+    this.launchCapacity(MIN_CAPACITY - this.getActiveCapacity());
+    this.newLifecycleTimer();
     this.newTimer();
   }
 
-  /** Creates the minimum number of Instances for the System to start operating. */
-  private void autoScalerBoot() {
-    List<Thread> newInstanceThreads = new ArrayList<>();
-    for (int i = 0; i < MIN_INSTANCES; i++) {
-      Thread newInstanceThread =
-          new Thread(
-              new Runnable() {
-                @Override
-                public void run() {
-                  newInstance();
-                }
-              });
-      newInstanceThread.start();
-      newInstanceThreads.add(newInstanceThread);
+  /**
+   * Adopts the Instances tagged with the fleet name, left running by a previous ScalingApp. Running
+   * WebServers are health-checked in parallel, within AS_ADOPT_TIMEOUT milliseconds: the ones that
+   * answer are Warm at once, with the Requests they report in flight, and the others are left to
+   * boot. Pending WebServers are tracked as launched, and the Warm Pool is rebuilt from its stopped
+   * and warming Instances.
+   */
+  private void adoptFleet() {
+    long start = System.currentTimeMillis();
+    List<Instance> found;
+    try {
+      found = this.fleet.discover(FLEET_TAG, this.fleetName);
+    } catch (AmazonClientException e) {
+      logger.warning(String.format("Unable to Discover the Fleet: %s", e));
+      return;
+    }
+
+    final int timeout = Environment.getInt("AS_ADOPT_TIMEOUT", 5000);
+    Map<ScalingInstance, Future<Integer>> checks = new LinkedHashMap<>();
+    int nPooled = 0;
+    for (Instance instance : found) {
+      String state = instance.getState().getName();
+      if (WARM_POOL_ROLE.equals(roleOf(instance))) {
+        ScalingInstance pooled =
+            this.track(
+                instance,
+                state.equals("pending") || state.equals("running")
+                    ? ScalingInstance.State.REQUESTED
+                    : ScalingInstance.State.STOPPED,
+                InstanceSize.forType(instance.getInstanceType()));
+        if (state.equals("stopping")) this.stopping.add(instance.getInstanceId());
+        this.warmPool.put(instance.getInstanceId(), pooled);
+        nPooled++;
+      } else if (state.equals("pending")) {
+        this.instances.put(
+            instance.getInstanceId(),
+            this.track(
+                instance,
+                ScalingInstance.State.REQUESTED,
+                InstanceSize.forType(instance.getInstanceType())));
+      } else if (state.equals("running")) {
+        final ScalingInstance scalingInstance =
+            this.track(
+                instance,
+                ScalingInstance.State.BOOTING,
+                InstanceSize.forType(instance.getInstanceType()));
+        checks.put(
+            scalingInstance,
+            this.fleetExecutor.submit(
+                new Callable<Integer>() {
+                  @Override
+                  public Integer call() {
+                    return HealthCheck.check(
+                        scalingInstance.getPublicDnsName(), scalingInstance.getPort(), timeout);
+                  }
+                }));
+      }
     }
-    for (Thread newInstanceThread : newInstanceThreads) {
+
+    int nWarm = 0;
+    for (Map.Entry<ScalingInstance, Future<Integer>> check : checks.entrySet()) {
+      Integer nInFlight;
       try {
-        newInstanceThread.join();
+        nInFlight = check.getValue().get();
       } catch (InterruptedException e) {
-        e.printStackTrace();
+        Thread.currentThread().interrupt();
+        nInFlight = null;
+      } catch (ExecutionException e) {
+        nInFlight = null;
+      }
+      ScalingInstance scalingInstance = check.getKey();
+      if (nInFlight != null) {
+        scalingInstance.registerHealthyCheck(nInFlight);
+        nWarm++;
       }
+      this.instances.put(scalingInstance.getInstanceId(), scalingInstance);
+      logger.info(String.format("Adopted %s", scalingInstance));
+    }
+    logger.warning(
+        String.format(
+            "Adopted %d Instances of Fleet %s in %d ms (%d Warm, %d Launching, %d Pooled)",
+            found.size(),
+            this.fleetName,
+            System.currentTimeMillis() - start,
+            nWarm,
+            this.instances.size() - nWarm,
+            nPooled));
+  }
+
+  /**
+   * Creates the ScalingInstance that keeps track of an Instance, with the port of its WebServer.
+   *
+   * @param instance Instance as described by the FleetProvider.
+   * @param state Initial Lifecycle State.
+   * @param size Size of the Instance.
+   * @return ScalingInstance of the Instance.
+   */
+  private ScalingInstance track(Instance instance, ScalingInstance.State state, InstanceSize size) {
+    ScalingInstance scalingInstance = new ScalingInstance(instance, state, size);
+    scalingInstance.setPort(this.fleet.getPort(instance.getInstanceId()));
+    return scalingInstance;
+  }
+
+  /**
+   * Gets the role an Instance was tagged with.
+   *
+   * @param instance Instance as described by the FleetProvider.
+   * @return Role of the Instance, or null if it has none.
+   */
+  private static String roleOf(Instance instance) {
+    if (instance.getTags() == null) return null;
+    for (Tag tag : instance.getTags()) {
+      if (ROLE_TAG.equals(tag.getKey())) return tag.getValue();
     }
+    return null;
   }
 
   /**
-   * Creates a Timer that performs automatic Scaling. Every 10 seconds, it checks the current
-   * associated Cost of the Instances. Every 30 seconds, it will check the CPU Utilization in AWS.
-   * Each time it performs an action, it will have a 30 seconds timeout before another action can be
-   * performed.
+   * Creates a Timer that performs automatic Scaling. Every 10 seconds, it observes the arrivals at
+   * the LoadBalancer, checks the CPU Utilization reported by the FleetProvider, and resizes the
+   * fleet.
    */
   private void newTimer() {
     new Timer()
         .schedule(
             new TimerTask() {
-              private boolean doScale = true;
-              private int i = 0;
-
               @Override
               public synchronized void run() {
                 checkUnhealthy();
-                if (!doScale) return;
-                if (i >= 3) i = 0;
-                boolean toCheckCPU = i++ == 0;
-                boolean tookAction = autoScale(toCheckCPU);
-                if (tookAction) {
-                  doScale = false;
-                  new Timer()
-                      .schedule(
-                          new TimerTask() {
-                            @Override
-                            public void run() {
-                              doScale = true;
-                              i = 0;
-                            }
-                          },
-                          30000);
-                }
+                observeArrivals();
+                averageCPU = fetchAverageCPU();
+                autoScale();
               }
             },
             0,
-            10000);
+            PERIOD);
   }
 
-  /** Detects Instances marked as Unhealthy by the LoadBalancer and replaces them. */
+  /**
+   * Detects Instances marked as Unhealthy by the LoadBalancer and replaces them, draining them
+   * first so that the Requests they still have in flight can finish.
+   */
   private void checkUnhealthy() {
 
     for (ScalingInstance instance : this.instances.values()) {
-      if (instance.isUnhealthy()) {
+      if (instance.isUnhealthy()
+          && instance.getState().compareTo(ScalingInstance.State.DRAINING) < 0) {
         logger.warning(
             String.format("Instance %s Unhealthy: Replacing it!", instance.getInstanceId()));
-        this.instances.remove(instance.getInstanceId());
-        this.removeInstance(instance.getInstanceId());
-        this.newInstance();
+        instance.startDraining();
+        this.launchCapacity(instance.getCapacity());
       }
     }
   }
 
   /**
-   * Calculates the sum of the Costs of all Instances, if it exceeds a certain Threshold, a new
-   * Instance is created, if it does not reach a certain Threshold, the Instance with associated
-   * minimum Cost is terminated. If no action has been taken, when it is necessary to check the CPU
-   * Utilization, it takes an approach similar to the one it did for the Costs of the Instances.
-   *
-   * @param toCheckCPU True if it is to verify the CPU Utilization, otherwise, False.
-   * @return True if an action was taken, otherwise, False.
+   * Creates a Timer that advances the Instances through their Lifecycle every AS_POLL_PERIOD
+   * milliseconds.
    */
-  private boolean autoScale(boolean toCheckCPU) {
-
-    double sumCosts = 0.0;
-    Double minCost = null;
-    String minCostInstanceId = null;
+  private void newLifecycleTimer() {
+    long period = Environment.getLong("AS_POLL_PERIOD", 2000);
+    new Timer()
+        .schedule(
+            new TimerTask() {
+              @Override
+              public void run() {
+                try {
+                  pollInstances();
+                } catch (RuntimeException e) {
+                  logger.warning(String.format("Unable to Poll Instances: %s", e));
+                }
+              }
+            },
+            period,
+            period);
+  }
 
+  /**
+   * Replaces the Instances that are taking too long to launch or to boot, terminates the drained
+   * ones, reports the time to serving of the ones that became Warm, stops the pooled ones that are
+   * warmed up and refills the Warm Pool. Then asks the FleetProvider, in a single request, for the
+   * State of all the Instances being launched, started or stopped. A running Instance gets its
+   * Public DNS Name and starts booting; one that was terminated on launch is replaced.
+   */
+  private void pollInstances() {
+    List<String> polled = new ArrayList<>();
     for (ScalingInstance instance : this.instances.values()) {
-      logger.info(
-          String.format(
-              "Instance %s: Current Cost of %.1f",
-              instance.getInstanceId(), instance.getCurrentCost()));
-      sumCosts += instance.getCurrentCost();
-      if (minCost == null || minCost > instance.getCurrentCost()) {
-        minCostInstanceId = instance.getInstanceId();
-        minCost = instance.getCurrentCost();
+      switch (instance.getState()) {
+        case REQUESTED:
+        case PENDING:
+          if (instance.getTimeInState() <= this.launchTimeout) {
+            polled.add(instance.getInstanceId());
+            break;
+          }
+          logger.warning(
+              String.format(
+                  "Instance %s Launch Timed Out: Replacing it!", instance.getInstanceId()));
+          this.removeInstance(instance);
+          this.launchCapacity(instance.getCapacity());
+          break;
+        case BOOTING:
+          if (instance.getTimeInState() <= this.bootTimeout) break;
+          logger.warning(
+              String.format("Instance %s Boot Timed Out: Replacing it!", instance.getInstanceId()));
+          this.removeInstance(instance);
+          this.launchCapacity(instance.getCapacity());
+          break;
+        case WARM:
+        case SERVING:
+          Boolean pooled = this.launches.remove(instance.getInstanceId());
+          if (pooled != null) this.onServing(instance, pooled);
+          break;
+        case DRAINING:
+          if (instance.getNRequests() == 0 || instance.getTimeInState() > this.drainTimeout) {
+            this.onDrained(instance);
+          }
+          break;
+        default:
       }
     }
+    for (ScalingInstance instance : this.warmPool.values()) {
+      switch (instance.getState()) {
+        case REQUESTED:
+        case PENDING:
+        case STOPPED:
+          // A stopped Instance is ready and stays in the pool; only a pending stop can time out.
+          if (instance.getState() == ScalingInstance.State.STOPPED
+              && !this.stopping.contains(instance.getInstanceId())) {
+            break;
+          }
+          if (instance.getTimeInState() > this.launchTimeout) {
+            logger.warning(
+                String.format("Pooled Instance %s Timed Out!", instance.getInstanceId()));
+            this.removeInstance(instance);
+          } else {
+            polled.add(instance.getInstanceId());
+          }
+          break;
+        case BOOTING:
+          if (instance.getTimeInState() >= this.warmPoolWarmUp) this.stopPooledInstance(instance);
+          break;
+        default:
+      }
+    }
+    this.refillWarmPool();
+    if (polled.isEmpty()) return;
 
-    if (this.takeAction(sumCosts, COST_THRESHOLD_MAX, COST_THRESHOLD_MIN, minCostInstanceId))
-      return true;
-
-    if (toCheckCPU) {
-      double sumCPUs = 0.0;
-      Double minCPU = null;
-      String minCPUInstanceId = null;
-
-      for (ScalingInstance instance : this.instances.values()) {
-        Dimension dimension = new Dimension();
-        dimension.setName("InstanceId");
-        dimension.setValue(instance.getInstanceId());
-        GetMetricStatisticsRequest request =
-            new GetMetricStatisticsRequest()
-                .withStartTime(new Date(new Date().getTime() - 600000))
-                .withEndTime(new Date())
-                .withPeriod(60)
-                .withNamespace("AWS/EC2")
-                .withMetricName("CPUUtilization")
-                .withStatistics(Statistic.Average)
-                .withDimensions(dimension);
-        GetMetricStatisticsResult result;
-        try {
-          result = this.cloudWatch.getMetricStatistics(request);
-        } catch (Exception e) {
-          logger.warning(
-              String.format(
-                  "Unable to GetMetricsStatistics of Instance %s", instance.getInstanceId()));
-          continue;
-        }
+    for (Instance instance : this.fleet.describe(polled)) {
+      this.onInstanceStatus(instance);
+    }
+  }
 
-        Datapoint latestDp = null;
-        for (Datapoint dp : result.getDatapoints()) {
-          if (latestDp == null || latestDp.getTimestamp().before(dp.getTimestamp())) {
-            latestDp = dp;
-          }
+  /**
+   * Terminates a drained Instance and reports the Cost that finished while it was draining, and
+   * the Cost still in flight if the drain timed out, which will be scanned again elsewhere.
+   *
+   * @param instance Drained Instance.
+   */
+  private void onDrained(ScalingInstance instance) {
+    double lost = Math.max(0, instance.getCurrentCost());
+    double saved = Math.max(0, instance.getDrainCost() - lost);
+    this.nDrained++;
+    this.drainedCostSaved += saved;
+    this.drainedCostLost += lost;
+    logger.warning(
+        String.format(
+            "Instance %s Drained in %d ms: Cost of %.1f Saved and %.1f Lost "
+                + "(%d Drained, Cost of %.1f Saved and %.1f Lost in total)",
+            instance.getInstanceId(),
+            instance.getTimeInState(),
+            saved,
+            lost,
+            this.nDrained,
+            this.drainedCostSaved,
+            this.drainedCostLost));
+    this.removeInstance(instance);
+  }
+
+  /**
+   * Moves an Instance being launched to the Lifecycle State matching the one reported by the
+   * FleetProvider.
+   *
+   * @param instance Instance as described by the FleetProvider.
+   */
+  private void onInstanceStatus(Instance instance) {
+    ScalingInstance scalingInstance = this.instances.get(instance.getInstanceId());
+    if (scalingInstance == null) {
+      scalingInstance = this.warmPool.get(instance.getInstanceId());
+      if (scalingInstance != null) this.onPooledInstanceStatus(scalingInstance, instance);
+      return;
+    }
+    ScalingInstance.State state = scalingInstance.getState();
+    if (state != ScalingInstance.State.REQUESTED && state != ScalingInstance.State.PENDING) return;
+    switch (instance.getState().getName()) {
+      case "pending":
+        scalingInstance.setState(ScalingInstance.State.PENDING);
+        break;
+      case "running":
+        logger.info(String.format("Detected Instance %s is Running!", instance.getInstanceId()));
+        scalingInstance.setInstance(instance);
+        scalingInstance.setState(ScalingInstance.State.BOOTING);
+        break;
+      case "stopping":
+      case "stopped":
+        // An Instance promoted from the Warm Pool is reported stopped until it starts.
+        break;
+      default:
+        logger.warning(
+            String.format(
+                "Instance %s Failed to Launch (%s): Replacing it!",
+                instance.getInstanceId(), instance.getState().getName()));
+        this.removeInstance(scalingInstance);
+        this.launchCapacity(scalingInstance.getCapacity());
+    }
+  }
+
+  /**
+   * Moves a pooled Instance to the Lifecycle State matching the one reported by the FleetProvider.
+   * It is ready to be promoted once it is reported stopped.
+   *
+   * @param scalingInstance Pooled Instance.
+   * @param instance Instance as described by the FleetProvider.
+   */
+  private void onPooledInstanceStatus(ScalingInstance scalingInstance, Instance instance) {
+    ScalingInstance.State state = scalingInstance.getState();
+    switch (instance.getState().getName()) {
+      case "pending":
+        if (state == ScalingInstance.State.REQUESTED) {
+          scalingInstance.setState(ScalingInstance.State.PENDING);
+        }
+        break;
+      case "running":
+        if (state == ScalingInstance.State.REQUESTED || state == ScalingInstance.State.PENDING) {
+          scalingInstance.setInstance(instance);
+          scalingInstance.setState(ScalingInstance.State.BOOTING);
         }
-        if (latestDp == null) {
-          logger.warning("Insufficient CPU Utilization Metrics to Perform Action!");
-          return false;
+        break;
+      case "stopped":
+        if (this.stopping.remove(instance.getInstanceId())) {
+          logger.info(
+              String.format("Instance %s Stopped in the Warm Pool!", instance.getInstanceId()));
         }
-        logger.info(
+        break;
+      case "stopping":
+        break;
+      default:
+        logger.warning(
             String.format(
-                "Instance %s: CPU Utilization of %.1f",
-                instance.getInstanceId(), latestDp.getAverage()));
+                "Pooled Instance %s Lost (%s)!",
+                instance.getInstanceId(), instance.getState().getName()));
+        this.removeInstance(scalingInstance);
+    }
+  }
 
-        sumCPUs += latestDp.getAverage();
-        if (minCPU == null || minCPU > latestDp.getAverage()) {
-          minCPUInstanceId = instance.getInstanceId();
-          minCPU = latestDp.getAverage();
-        }
-      }
-      return this.takeAction(sumCPUs, CPU_THRESHOLD_MAX, CPU_THRESHOLD_MIN, minCPUInstanceId);
+  /**
+   * Reports the time an Instance took from its launch to being ready to take Requests.
+   *
+   * @param instance Instance that became Warm.
+   * @param pooled True if the Instance was promoted from the Warm Pool, otherwise, False.
+   */
+  private void onServing(ScalingInstance instance, boolean pooled) {
+    long timeToServing = instance.getTimeToServing();
+    if (pooled) {
+      this.nPooledLaunches++;
+      this.pooledTimeToServing += timeToServing;
+    } else {
+      this.nColdLaunches++;
+      this.coldTimeToServing += timeToServing;
     }
-    return false;
+    logger.warning(
+        String.format(
+            "Instance %s Serving %.1f s after a %s Launch "
+                + "(Warm Pool: %d in %.1f s on average, Cold: %d in %.1f s on average)",
+            instance.getInstanceId(),
+            timeToServing / 1000.0,
+            pooled ? "Warm Pool" : "Cold",
+            this.nPooledLaunches,
+            this.nPooledLaunches > 0 ? this.pooledTimeToServing / 1000.0 / this.nPooledLaunches : 0,
+            this.nColdLaunches,
+            this.nColdLaunches > 0 ? this.coldTimeToServing / 1000.0 / this.nColdLaunches : 0));
   }
 
   /**
-   * Creates an Instance if valueSum is greater than valueThresholdMax times the number of
-   * Instances. Removes the Instance with minValueInstanceId if valueSum is less than
-   * valueThresholdMin times the number of Instances and there is more than one Instance.
+   * Stops a pooled Instance that ran long enough to be warmed up, in the background.
    *
-   * @param valueSum Sum of associated Cost or CPU Utilization of all Instances.
-   * @param valueThresholdMax Maximum Threshold of associated Cost or CPU Utilization.
-   * @param valueThresholdMin Minimum Threshold of associated Cost or CPU Utilization.
-   * @param minValueInstanceId Id of the Instance that has the lowest associated Cost or CPU
-   *     Utilization.
-   * @return True if an action was taken, otherwise, False.
+   * @param instance Pooled Instance.
    */
-  private boolean takeAction(
-      double valueSum, int valueThresholdMax, int valueThresholdMin, String minValueInstanceId) {
+  private void stopPooledInstance(ScalingInstance instance) {
+    final String instanceId = instance.getInstanceId();
+    instance.setState(ScalingInstance.State.STOPPED);
+    this.stopping.add(instanceId);
+    logger.info(String.format("Stopping Instance %s in the Warm Pool!", instanceId));
+    this.fleetExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fleet.stop(instanceId);
+            } catch (AmazonClientException e) {
+              logger.warning(String.format("Unable to Stop Instance %s: %s", instanceId, e));
+            }
+          }
+        });
+  }
+
+  /** Launches the Instances missing from the Warm Pool. */
+  private void refillWarmPool() {
+    int nMissing = this.warmPoolSize - this.warmPool.size() - this.nPoolLaunching.get();
+    if (nMissing > 0) this.runInstances(nMissing, this.sizes.get(0), true);
+  }
 
-    if (valueSum > valueThresholdMax * this.instances.size()) {
-      this.newInstance();
-      return true;
+  /**
+   * Starts a stopped Instance of the Warm Pool in the background, tracking it as Requested.
+   *
+   * @return Capacity of the promoted Instance, or 0 if none is ready in the Warm Pool.
+   */
+  private int promotePooledInstance() {
+    for (final ScalingInstance instance : this.warmPool.values()) {
+      final String instanceId = instance.getInstanceId();
+      if (instance.getState() != ScalingInstance.State.STOPPED
+          || this.stopping.contains(instanceId)) {
+        continue;
+      }
+      this.warmPool.remove(instanceId);
+      instance.setState(ScalingInstance.State.REQUESTED);
+      instance.setLaunchTime(System.currentTimeMillis());
+      this.launches.put(instanceId, true);
+      this.instances.put(instanceId, instance);
+      logger.warning(String.format("Promoting Instance %s from the Warm Pool!", instanceId));
+      this.fleetExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                fleet.tag(instanceId, ROLE_TAG, WEBSERVER_ROLE);
+                fleet.start(instanceId);
+              } catch (AmazonClientException e) {
+                logger.warning(String.format("Unable to Start Instance %s: %s", instanceId, e));
+                removeInstance(instance);
+              }
+            }
+          });
+      return instance.getCapacity();
     }
-    if (valueSum < valueThresholdMin * this.instances.size()
-        && this.instances.size() > MIN_INSTANCES) {
-      this.instances.remove(minValueInstanceId);
-      this.removeInstance(minValueInstanceId);
-      return true;
+    return 0;
+  }
+
+  /**
+   * Adds up the capacity of the Instances that are or will be able to take Requests: the ones being
+   * launched, booting or ready, but not the ones being drained.
+   *
+   * @return Active capacity.
+   */
+  private int getActiveCapacity() {
+    int capacity = this.nLaunching.get();
+    for (ScalingInstance instance : this.instances.values()) {
+      if (instance.getState().compareTo(ScalingInstance.State.SERVING) <= 0) {
+        capacity += instance.getCapacity();
+      }
     }
-    return false;
+    return capacity;
   }
 
   /**
-   * Creates a new WebServer Instance using the Image Id, the Key Pair Name and the Security Group
-   * provided.
+   * Feeds the estimated Cost per second that arrived at the LoadBalancer since the last observation
+   * to the HoltForecaster, and logs how far its forecast for it was.
    */
-  private void newInstance() {
-    RunInstancesRequest runInstancesRequest =
-        new RunInstancesRequest()
-            .withImageId(this.ami)
-            .withInstanceType(InstanceType.T2Micro)
-            .withMinCount(1)
-            .withMaxCount(1)
-            .withKeyName(this.keyName)
-            .withSecurityGroups(this.securityGroup)
-            .withMonitoring(true);
-
-    String instanceId =
-        ec2.runInstances(runInstancesRequest)
-            .getReservation()
-            .getInstances()
-            .get(0)
-            .getInstanceId();
-
-    logger.warning(String.format("Creating new Instance %s!", instanceId));
-    this.addRunningInstance(new DescribeInstanceStatusRequest().withInstanceIds(instanceId));
+  private void observeArrivals() {
+    long now = ArrivalSeries.currentSecond();
+    ArrivalSeries.Rate rate =
+        this.lastSecond != 0 ? this.arrivalSeries.getRate(this.lastSecond, now) : null;
+    if (this.lastSecond == 0 || rate != null) this.lastSecond = now;
+    if (rate == null) return;
+    this.forecaster.update(rate.getCostRate());
+    this.lastRate = rate;
+    logger.info(
+        String.format(
+            "Arrivals: %.2f Requests/s, Cost Rate of %.1f (Forecast Error of %.1f) %s",
+            rate.getArrivalRate(),
+            rate.getCostRate(),
+            this.forecaster.getLastError(),
+            this.forecaster));
   }
 
   /**
-   * It waits until the Instance is running. If the Instance evolves to a state other than running,
-   * i.e. its creation failed. It tries to create it again.
+   * Forecasts the Cost in flight when an Instance created now would start serving: the forecast
+   * Cost Rate times the time the Cost stays in flight, which is learned from the current Cost and
+   * Cost Rate by Little's Law.
    *
-   * @param request It is a StatusRequest associated with the newly created Instance to use to
-   *     request its status.
+   * @param sumCosts Current Cost of all Instances.
+   * @return Forecast Cost of all Instances.
    */
-  private void addRunningInstance(DescribeInstanceStatusRequest request) {
-    while (true) {
-      List<InstanceStatus> instanceStatuses =
-          ec2.describeInstanceStatus(request).getInstanceStatuses();
-      if (!instanceStatuses.isEmpty()) {
-        switch (instanceStatuses.get(0).getInstanceState().getName()) {
-          case "running":
-            String instanceId = request.getInstanceIds().get(0);
-            logger.info(String.format("Detected Instance %s is Running!", instanceId));
-            this.instances.put(instanceId, new ScalingInstance(this.fetchInstance(instanceId)));
-            return;
-          case "pending":
-            break;
-          default:
-            this.newInstance();
-        }
+  private double forecastCost(double sumCosts) {
+    ArrivalSeries.Rate rate = this.lastRate;
+    if (rate == null) return 0;
+    if (rate.getArrivalRate() * PERIOD / 1000 >= MIN_ARRIVALS
+        && sumCosts > 0
+        && rate.getCostRate() > 0) {
+      double residenceTime = sumCosts / rate.getCostRate();
+      this.residenceTime =
+          this.residenceTime == 0
+              ? residenceTime
+              : this.residenceTime + 0.2 * (residenceTime - this.residenceTime);
+    }
+    return this.forecaster.forecast(this.leadSteps) * this.residenceTime;
+  }
+
+  /**
+   * Resizes the fleet to the capacity desired by the TargetTrackingPolicy, within the minimum and
+   * maximum capacity. A scale-out launches all the missing capacity at once, and a scale-in drains
+   * the surplus Instances with the least Cost in flight, each only once its cooldown has passed.
+   * The Cost is taken as the greater of the current and the forecast one, so that Instances are
+   * created ahead of a ramp and none is drained right before one.
+   */
+  private void autoScale() {
+
+    double sumCosts = 0.0;
+    int nOutstanding = 0;
+    int servingCapacity = 0;
+    List<ScalingInstance> routable = new ArrayList<>();
+
+    for (ScalingInstance instance : this.instances.values()) {
+      logger.info(
+          String.format(
+              "Instance %s (%s, %s): Current Cost of %.1f",
+              instance.getInstanceId(),
+              instance.getSize().getType(),
+              instance.getState(),
+              instance.getCurrentCost()));
+      sumCosts += instance.getCurrentCost();
+      nOutstanding += instance.getNRequests();
+      if (!instance.isRoutable()) continue;
+      routable.add(instance);
+      servingCapacity += instance.getCapacity();
+    }
+
+    long now = ArrivalSeries.currentSecond();
+    long from = now - this.signalWindow / 1000;
+    Double queueDelay = this.arrivalSeries.getQueueDelay(from, now, 0.95, MIN_ARRIVALS);
+    nOutstanding += this.arrivalSeries.getQueueDepth(from, now);
+    double forecastCost = this.forecastCost(sumCosts);
+    double expectedCost = Math.max(sumCosts, forecastCost);
+    logger.info(
+        String.format(
+            "Current Cost of %.1f, Forecast Cost of %.1f in %d s (MAPE of %.1f%%)",
+            sumCosts,
+            forecastCost,
+            this.leadSteps * PERIOD / 1000,
+            100 * this.forecaster.getPercentageError()));
+
+    this.reportThroughputPerDollar();
+
+    TargetTrackingPolicy.Decision decision =
+        this.policy.decide(
+            servingCapacity, queueDelay, nOutstanding, expectedCost, this.averageCPU);
+    int desired = Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, decision.getCapacity()));
+    int active = this.getActiveCapacity();
+    logger.info(String.format("Desired %d of %d Units: %s", desired, active, decision));
+
+    long nowMillis = System.currentTimeMillis();
+    if (desired > active) {
+      if (nowMillis - this.lastScaleOut < this.scaleOutCooldown) return;
+      int launched = this.launchCapacity(desired - active);
+      if (launched == 0) return;
+      this.lastScaleOut = nowMillis;
+      logger.warning(
+          String.format(
+              "Scaled Out from %d to %d Units: %s (Forecast MAPE of %.1f%%)",
+              active, active + launched, decision, 100 * this.forecaster.getPercentageError()));
+    } else if (desired < active) {
+      if (nowMillis - Math.max(this.lastScaleOut, this.lastScaleIn) < this.scaleInCooldown) return;
+      Collections.sort(
+          routable,
+          new Comparator<ScalingInstance>() {
+            @Override
+            public int compare(ScalingInstance a, ScalingInstance b) {
+              return Double.compare(a.getCurrentCost(), b.getCurrentCost());
+            }
+          });
+      int remaining = active;
+      for (ScalingInstance instance : routable) {
+        if (remaining - instance.getCapacity() < desired) continue;
+        logger.warning(String.format("Draining Instance %s!", instance.getInstanceId()));
+        instance.startDraining();
+        remaining -= instance.getCapacity();
       }
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException ignored) {
+      if (remaining == active) return;
+      this.lastScaleIn = nowMillis;
+      logger.warning(
+          String.format("Scaled In from %d to %d Units: %s", active, remaining, decision));
+    }
+  }
+
+  /**
+   * Reports the estimated Cost arriving per second, which the fleet serves when it keeps up, per
+   * dollar spent per hour on the running Instances.
+   */
+  private void reportThroughputPerDollar() {
+    ArrivalSeries.Rate rate = this.lastRate;
+    double price = 0;
+    for (ScalingInstance instance : this.instances.values()) {
+      ScalingInstance.State state = instance.getState();
+      if (state.compareTo(ScalingInstance.State.BOOTING) >= 0
+          && state.compareTo(ScalingInstance.State.DRAINING) <= 0) {
+        price += instance.getSize().getPrice();
       }
     }
+    if (rate == null || price <= 0) return;
+    logger.info(
+        String.format(
+            "Throughput of %.1f Cost/s on $%.4f/h: %.1f Cost per Dollar",
+            rate.getCostRate(), price, rate.getCostRate() * 3600 / price));
   }
 
   /**
-   * Gets the the newly created Instance based on its Id.
+   * Gets the average of the latest CPU Utilization reported by the FleetProvider for the Instances
+   * that are ready to take Requests. Instances with no CPU Utilization yet, such as those warming
+   * up, are left out of the average rather than holding up the decision.
    *
-   * @param instanceId Id of the newly created Instance.
-   * @return Fetched Instance.
+   * @return Average CPU Utilization, or null if it is unknown for every Instance.
    */
-  private Instance fetchInstance(String instanceId) {
-    for (Reservation reservation : ec2.describeInstances().getReservations()) {
-      for (Instance instance : reservation.getInstances()) {
-        if (instance.getInstanceId().equals(instanceId)) return instance;
+  private Double fetchAverageCPU() {
+    List<String> instanceIds = new ArrayList<>();
+    for (ScalingInstance instance : this.instances.values()) {
+      if (instance.isRoutable()) instanceIds.add(instance.getInstanceId());
+    }
+    Map<String, Double> cpus;
+    try {
+      cpus = this.fleet.getCPUUtilization(instanceIds);
+    } catch (AmazonClientException e) {
+      logger.warning(String.format("Unable to Get the CPU Utilization: %s", e.getMessage()));
+      return null;
+    }
+
+    double sumCPUs = 0.0;
+    for (String instanceId : instanceIds) {
+      Double cpu = cpus.get(instanceId);
+      if (cpu == null) {
+        logger.info(String.format("Instance %s: No CPU Utilization Yet", instanceId));
+        continue;
       }
+      logger.info(String.format("Instance %s: CPU Utilization of %.1f", instanceId, cpu));
+      sumCPUs += cpu;
     }
-    return null;
+    logger.info(this.fleet.toString());
+    return cpus.isEmpty() ? null : sumCPUs / cpus.size();
+  }
+
+  /**
+   * Provides new WebServer capacity, promoting the Instances ready in the Warm Pool first and
+   * launching the rest as planned by the Cost mix. The active capacity never exceeds MAX_CAPACITY
+   * by more than the rounding up to whole Instances.
+   *
+   * @param capacity Capacity to provide, in units.
+   * @return Capacity actually provided.
+   */
+  private synchronized int launchCapacity(int capacity) {
+    int missing = Math.min(capacity, MAX_CAPACITY - this.getActiveCapacity());
+    if (missing <= 0) return 0;
+    int provided = 0;
+    int promoted;
+    while (provided < missing && (promoted = this.promotePooledInstance()) > 0) {
+      provided += promoted;
+    }
+    if (provided >= missing) return provided;
+    Map<InstanceSize, Integer> plan = this.planLaunches(missing - provided);
+    for (Map.Entry<InstanceSize, Integer> launch : plan.entrySet()) {
+      this.runInstances(launch.getValue(), launch.getKey(), false);
+      provided += launch.getValue() * launch.getKey().getCapacity();
+    }
+    return provided;
   }
 
   /**
-   * Terminates an Instance based on its Id.
+   * Splits the capacity to launch among the InstanceSizes. The estimated Cost that arrived over the
+   * last AS_SIGNAL_WINDOW milliseconds is split by the smallest size whose target Cost each Request
+   * fits in, and each share is given to the size with the most capacity per dollar among that one
+   * and the bigger ones. Sizes are then given whole Instances from the biggest down, the capacity
+   * that does not fill one being carried over to the next smaller size.
    *
-   * @param instanceId Id of the Instance to be terminated.
+   * @param capacity Capacity to launch, in units.
+   * @return Number of Instances to launch of each InstanceSize.
    */
-  private void removeInstance(String instanceId) {
+  private Map<InstanceSize, Integer> planLaunches(int capacity) {
+    int nSizes = this.sizes.size();
+    double[] bounds = new double[nSizes - 1];
+    for (int i = 0; i < bounds.length; i++) {
+      bounds[i] = this.sizes.get(i).getCapacity() * this.policy.getTargetCost();
+    }
+    long now = ArrivalSeries.currentSecond();
+    double[] shares = this.arrivalSeries.getWorkShares(now - this.signalWindow / 1000, now, bounds);
+
+    double[] units = new double[nSizes];
+    for (int i = 0; i < nSizes; i++) {
+      int best = i;
+      for (int j = i + 1; j < nSizes; j++) {
+        if (this.sizes.get(j).getCapacityPerDollar()
+            > this.sizes.get(best).getCapacityPerDollar()) {
+          best = j;
+        }
+      }
+      units[best] += capacity * (shares != null ? shares[i] : i == 0 ? 1 : 0);
+    }
+
+    Map<InstanceSize, Integer> plan = new LinkedHashMap<>();
+    double carried = 0;
+    for (int i = nSizes - 1; i >= 0; i--) {
+      InstanceSize size = this.sizes.get(i);
+      double wanted = units[i] + carried;
+      double count = wanted / size.getCapacity();
+      // The smallest size takes whatever is left, rounded up to a whole Instance.
+      int n = i > 0 ? (int) count : (int) Math.ceil(count - 1e-9);
+      carried = wanted - n * size.getCapacity();
+      if (n > 0) plan.put(size, n);
+    }
+    logger.info(String.format("Launch Plan for %d Units: %s", capacity, plan));
+    return plan;
+  }
+
+  /**
+   * Launches new WebServer Instances in the background, with a single request to the FleetProvider
+   * that also tags them with the fleet and their role. They are tracked as Requested as soon as it
+   * accepts them.
+   *
+   * @param n Number of Instances to launch.
+   * @param size Size of the Instances.
+   * @param toWarmPool True to keep the Instances in the Warm Pool, False to put them to work.
+   */
+  private void runInstances(final int n, final InstanceSize size, final boolean toWarmPool) {
+    final AtomicInteger nLaunching = toWarmPool ? this.nPoolLaunching : this.nLaunching;
+    // The Warm Pool counts Instances, while the fleet counts units of capacity.
+    final int launching = toWarmPool ? n : n * size.getCapacity();
+    nLaunching.addAndGet(launching);
+    final Map<String, String> tags = new LinkedHashMap<>();
+    tags.put(FLEET_TAG, this.fleetName);
+    tags.put(ROLE_TAG, toWarmPool ? WARM_POOL_ROLE : WEBSERVER_ROLE);
+    logger.warning(
+        String.format(
+            "Creating %d new %s Instances%s!",
+            n, size.getType(), toWarmPool ? " for the Warm Pool" : ""));
+    this.fleetExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            long launchTime = System.currentTimeMillis();
+            try {
+              for (Instance instance : fleet.launch(n, size, tags)) {
+                logger.warning(String.format("Created new Instance %s!", instance.getInstanceId()));
+                ScalingInstance scalingInstance =
+                    track(instance, ScalingInstance.State.REQUESTED, size);
+                scalingInstance.setLaunchTime(launchTime);
+                if (toWarmPool) {
+                  warmPool.put(instance.getInstanceId(), scalingInstance);
+                } else {
+                  launches.put(instance.getInstanceId(), false);
+                  instances.put(instance.getInstanceId(), scalingInstance);
+                }
+              }
+            } catch (AmazonClientException e) {
+              logger.warning(String.format("Unable to Create %d Instances: %s", n, e));
+            } finally {
+              nLaunching.addAndGet(-launching);
+            }
+          }
+        });
+  }
+
+  /**
+   * Stops tracking an Instance, in use or pooled, and terminates it in the background.
+   *
+   * @param instance Instance to be terminated.
+   */
+  private synchronized void removeInstance(ScalingInstance instance) {
+    final String instanceId = instance.getInstanceId();
+    instance.setState(ScalingInstance.State.TERMINATED);
+    if (this.instances.get(instanceId) == instance) {
+      this.instances.remove(instanceId);
+    } else if (this.warmPool.get(instanceId) == instance) {
+      this.warmPool.remove(instanceId);
+      this.stopping.remove(instanceId);
+    } else {
+      return;
+    }
+    this.launches.remove(instanceId);
     logger.warning(String.format("Removing Instance %s!", instanceId));
-    this.ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(instanceId));
+    this.fleetExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              fleet.terminate(instanceId);
+            } catch (AmazonClientException e) {
+              logger.warning(String.format("Unable to Terminate Instance %s: %s", instanceId, e));
+            }
+          }
+        });
   }
 }
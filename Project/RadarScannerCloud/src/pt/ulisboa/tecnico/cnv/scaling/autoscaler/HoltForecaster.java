@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.cnv.scaling.autoscaler;
+
+/**
+ * Forecasts a series with Holt's linear exponential smoothing: a smoothed level plus a smoothed
+ * trend, so that a ramp is extrapolated instead of lagged behind. Each observation is compared to
+ * the forecast made for it one step earlier, and the absolute errors are smoothed the same way, so
+ * that the accuracy of the model can be reported with its forecasts.
+ */
+public class HoltForecaster {
+
+  private final double alpha;
+  private final double beta;
+  private double level;
+  private double trend;
+  private double absoluteError;
+  private double percentageError;
+  private double lastError;
+  private int nObservations;
+
+  /**
+   * Creates a HoltForecaster.
+   *
+   * @param alpha Smoothing factor of the level, between 0 and 1.
+   * @param beta Smoothing factor of the trend, between 0 and 1.
+   */
+  public HoltForecaster(double alpha, double beta) {
+    this.alpha = alpha;
+    this.beta = beta;
+  }
+
+  /**
+   * Adds the next observation of the series, measuring the error of the forecast made for it.
+   *
+   * @param value Observed value.
+   */
+  public synchronized void update(double value) {
+    if (this.nObservations == 0) {
+      this.level = value;
+      this.trend = 0;
+    } else {
+      double forecast = this.level + this.trend;
+      this.lastError = value - forecast;
+      double absoluteError = Math.abs(this.lastError);
+      double percentageError = absoluteError / Math.max(Math.abs(value), 1);
+      if (this.nObservations == 1) {
+        this.absoluteError = absoluteError;
+        this.percentageError = percentageError;
+      } else {
+        this.absoluteError += this.alpha * (absoluteError - this.absoluteError);
+        this.percentageError += this.alpha * (percentageError - this.percentageError);
+      }
+      double previousLevel = this.level;
+      this.level = this.alpha * value + (1 - this.alpha) * forecast;
+      this.trend = this.beta * (this.level - previousLevel) + (1 - this.beta) * this.trend;
+    }
+    this.nObservations++;
+  }
+
+  /**
+   * Forecasts the series some steps ahead.
+   *
+   * @param steps Number of steps ahead.
+   * @return Forecast, never negative, or 0 if nothing was observed.
+   */
+  public synchronized double forecast(int steps) {
+    return Math.max(0, this.level + steps * this.trend);
+  }
+
+  /**
+   * Gets the error of the last one-step forecast.
+   *
+   * @return Observed value minus its forecast.
+   */
+  public synchronized double getLastError() {
+    return this.lastError;
+  }
+
+  /**
+   * Gets the smoothed absolute error of the one-step forecasts.
+   *
+   * @return Mean Absolute Error.
+   */
+  public synchronized double getAbsoluteError() {
+    return this.absoluteError;
+  }
+
+  /**
+   * Gets the smoothed absolute error of the one-step forecasts, relative to the observed values.
+   *
+   * @return Mean Absolute Percentage Error, between 0 and 1 for reasonable forecasts.
+   */
+  public synchronized double getPercentageError() {
+    return this.percentageError;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "HoltForecaster{ level=%.1f, trend=%.1f, mae=%.1f, mape=%.1f%% }",
+        this.level, this.trend, this.absoluteError, 100 * this.percentageError);
+  }
+}
@@ -0,0 +1,142 @@
+package pt.ulisboa.tecnico.cnv.scaling.autoscaler;
+
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+/**
+ * Sizes the fleet of WebServer Instances, in units of capacity, to keep a set of metrics at their
+ * targets. Metrics that grow with the load on each Instance (the 95th percentile time Requests wait
+ * in the DispatchQueue and the CPU Utilization) ask for the current serving capacity scaled by how
+ * far they are from their target. The queue delay is tracked rather than the end-to-end latency,
+ * which for large Scans is mostly solve time that more Instances cannot reduce. Metrics that add up
+ * over the fleet (the Requests outstanding at the LoadBalancer and the Cost in flight) ask for as
+ * many units as it takes to keep each unit at its target. The desired capacity is the largest of
+ * them, so that the fleet is resized in one step and no metric is left over its target.
+ */
+public class TargetTrackingPolicy {
+
+  private final double targetQueueDelay;
+  private final double targetQueueDepth;
+  private final double targetCost;
+  private final double targetCPU;
+
+  /**
+   * Creates a TargetTrackingPolicy.
+   *
+   * @param targetQueueDelay Target 95th percentile time the Requests wait in the DispatchQueue, in
+   *     milliseconds.
+   * @param targetQueueDepth Target number of outstanding Requests per unit of capacity, both in
+   *     flight and waiting in the DispatchQueue.
+   * @param targetCost Target Cost in flight per unit of capacity.
+   * @param targetCPU Target average CPU Utilization, in percentage.
+   */
+  public TargetTrackingPolicy(
+      double targetQueueDelay, double targetQueueDepth, double targetCost, double targetCPU) {
+    this.targetQueueDelay = targetQueueDelay;
+    this.targetQueueDepth = targetQueueDepth;
+    this.targetCost = targetCost;
+    this.targetCPU = targetCPU;
+  }
+
+  /**
+   * Creates the TargetTrackingPolicy configured by AS_TARGET_QUEUE_DELAY, AS_TARGET_QUEUE_DEPTH,
+   * AS_TARGET_COST and AS_TARGET_CPU.
+   *
+   * @return The configured TargetTrackingPolicy.
+   */
+  public static TargetTrackingPolicy fromEnvironment() {
+    return new TargetTrackingPolicy(
+        Environment.getDouble("AS_TARGET_QUEUE_DELAY", 1000),
+        Environment.getDouble("AS_TARGET_QUEUE_DEPTH", 3),
+        Environment.getDouble("AS_TARGET_COST", 2000000),
+        Environment.getDouble("AS_TARGET_CPU", 60));
+  }
+
+  /**
+   * Gets the Cost in flight that each unit of capacity should serve.
+   *
+   * @return Target Cost.
+   */
+  public double getTargetCost() {
+    return this.targetCost;
+  }
+
+  /**
+   * Gets the capacity that would keep every metric at or below its target.
+   *
+   * @param servingCapacity Capacity of the Instances the metrics were measured on.
+   * @param queueDelay 95th percentile time queued, in milliseconds, or null if unknown.
+   * @param nOutstanding Number of Requests in flight and waiting in the DispatchQueue.
+   * @param cost Current or forecast Cost in flight of all Instances.
+   * @param cpu Average CPU Utilization of the serving Instances, or null if unknown.
+   * @return Desired capacity and the metric that asked for it.
+   */
+  public Decision decide(
+      int servingCapacity, Double queueDelay, int nOutstanding, double cost, Double cpu) {
+    Decision decision = new Decision(0, "None", 0, 0);
+    if (queueDelay != null && servingCapacity > 0) {
+      decision =
+          decision.max(
+              new Decision(
+                  (int) Math.ceil(servingCapacity * queueDelay / this.targetQueueDelay),
+                  "Queue Delay",
+                  queueDelay,
+                  this.targetQueueDelay));
+    }
+    if (cpu != null && servingCapacity > 0) {
+      decision =
+          decision.max(
+              new Decision(
+                  (int) Math.ceil(servingCapacity * cpu / this.targetCPU),
+                  "CPU",
+                  cpu,
+                  this.targetCPU));
+    }
+    decision =
+        decision.max(
+            new Decision(
+                (int) Math.ceil(nOutstanding / this.targetQueueDepth),
+                "Queue Depth",
+                nOutstanding,
+                this.targetQueueDepth));
+    return decision.max(
+        new Decision((int) Math.ceil(cost / this.targetCost), "Cost", cost, this.targetCost));
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "TargetTrackingPolicy{ queueDelay=%.0f ms, queueDepth=%.1f, cost=%.1f, cpu=%.1f%% }",
+        this.targetQueueDelay, this.targetQueueDepth, this.targetCost, this.targetCPU);
+  }
+
+  /** Desired capacity of the fleet, in units, and the metric that asked for it. */
+  public static class Decision {
+
+    private final int capacity;
+    private final String metric;
+    private final double value;
+    private final double target;
+
+    private Decision(int capacity, String metric, double value, double target) {
+      this.capacity = capacity;
+      this.metric = metric;
+      this.value = value;
+      this.target = target;
+    }
+
+    private Decision max(Decision other) {
+      return other.capacity > this.capacity ? other : this;
+    }
+
+    public int getCapacity() {
+      return this.capacity;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d Units for %s (%.1f, Target of %.1f)",
+          this.capacity, this.metric, this.value, this.target);
+    }
+  }
+}
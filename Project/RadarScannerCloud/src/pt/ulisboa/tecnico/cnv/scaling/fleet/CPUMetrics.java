@@ -0,0 +1,136 @@
+package pt.ulisboa.tecnico.cnv.scaling.fleet;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.*;
+
+import java.util.*;
+
+/**
+ * Retrieves the CPU Utilization of the Instances from CloudWatch. The series of every Instance
+ * whose cached value expired are requested together, with GetMetricData, instead of with one
+ * GetMetricStatistics per Instance, and the latest Datapoint of each is cached for a short time, so
+ * that the number of calls grows neither with the fleet nor with how often the AutoScaler asks. An
+ * Instance with no Datapoint yet, such as one still warming up, is left out of the result instead
+ * of failing the retrieval, and is not asked for again until its cached absence expires.
+ */
+public class CPUMetrics {
+
+  private static final int MAX_QUERIES = 500;
+  private static final int PERIOD = 60;
+  private static final long WINDOW = 600000;
+  private final AmazonCloudWatch cloudWatch;
+  private final long ttl;
+  private final Map<String, Sample> cache;
+  private long nCalls;
+  private long nHits;
+  private long nMisses;
+
+  /**
+   * Creates a CPUMetrics.
+   *
+   * @param cloudWatch CloudWatch Client.
+   * @param ttl Time for which the value of an Instance is cached, in milliseconds.
+   */
+  public CPUMetrics(AmazonCloudWatch cloudWatch, long ttl) {
+    this.cloudWatch = cloudWatch;
+    this.ttl = ttl;
+    this.cache = new HashMap<>();
+  }
+
+  /**
+   * Gets the latest average CPU Utilization of each Instance, requesting the expired ones from
+   * CloudWatch. Instances not given are forgotten.
+   *
+   * @param instanceIds Ids of the Instances.
+   * @return CPU Utilization, in percentage, associated with the Id of each Instance that has one.
+   * @throws com.amazonaws.AmazonClientException If CloudWatch could not be reached.
+   */
+  public synchronized Map<String, Double> get(Collection<String> instanceIds) {
+    long now = System.currentTimeMillis();
+    this.cache.keySet().retainAll(instanceIds);
+    List<String> expired = new ArrayList<>();
+    for (String instanceId : instanceIds) {
+      Sample sample = this.cache.get(instanceId);
+      if (sample == null || now - sample.fetchedAt >= this.ttl) expired.add(instanceId);
+    }
+    this.nHits += instanceIds.size() - expired.size();
+    this.nMisses += expired.size();
+    for (int i = 0; i < expired.size(); i += MAX_QUERIES) {
+      this.fetch(expired.subList(i, Math.min(i + MAX_QUERIES, expired.size())), now);
+    }
+
+    Map<String, Double> cpus = new HashMap<>();
+    for (String instanceId : instanceIds) {
+      Sample sample = this.cache.get(instanceId);
+      if (sample != null && sample.value != null) cpus.put(instanceId, sample.value);
+    }
+    return cpus;
+  }
+
+  /**
+   * Requests the CPU Utilization series of the last 10 minutes of the Instances with a single
+   * GetMetricData, following its pages, and caches the latest Datapoint of each.
+   *
+   * @param instanceIds Ids of at most MAX_QUERIES Instances.
+   * @param now Current time, in milliseconds.
+   */
+  private void fetch(List<String> instanceIds, long now) {
+    List<MetricDataQuery> queries = new ArrayList<>();
+    Map<String, Sample> fetched = new HashMap<>();
+    for (int i = 0; i < instanceIds.size(); i++) {
+      Metric metric =
+          new Metric()
+              .withNamespace("AWS/EC2")
+              .withMetricName("CPUUtilization")
+              .withDimensions(new Dimension().withName("InstanceId").withValue(instanceIds.get(i)));
+      queries.add(
+          new MetricDataQuery()
+              .withId("m" + i)
+              .withMetricStat(
+                  new MetricStat()
+                      .withMetric(metric)
+                      .withPeriod(PERIOD)
+                      .withStat(Statistic.Average.toString())));
+      fetched.put(instanceIds.get(i), new Sample(now));
+    }
+    GetMetricDataRequest request =
+        new GetMetricDataRequest()
+            .withStartTime(new Date(now - WINDOW))
+            .withEndTime(new Date(now))
+            .withScanBy(ScanBy.TimestampDescending)
+            .withMetricDataQueries(queries);
+
+    String nextToken = null;
+    do {
+      GetMetricDataResult result = this.cloudWatch.getMetricData(request.withNextToken(nextToken));
+      this.nCalls++;
+      for (MetricDataResult data : result.getMetricDataResults()) {
+        Sample sample = fetched.get(instanceIds.get(Integer.parseInt(data.getId().substring(1))));
+        // Datapoints come newest first, so the first one seen across pages is the latest.
+        if (sample.value == null && !data.getValues().isEmpty()) {
+          sample.value = data.getValues().get(0);
+        }
+      }
+      nextToken = result.getNextToken();
+    } while (nextToken != null);
+    this.cache.putAll(fetched);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "CPUMetrics{ instances=%d, calls=%d, hits=%d, misses=%d }",
+        this.cache.size(), this.nCalls, this.nHits, this.nMisses);
+  }
+
+  /** Latest Datapoint of an Instance, or its absence, and when it was fetched. */
+  private static class Sample {
+
+    private final long fetchedAt;
+    private Double value;
+
+    private Sample(long fetchedAt) {
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package pt.ulisboa.tecnico.cnv.scaling.fleet;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.ec2.model.*;
+import pt.ulisboa.tecnico.cnv.scaling.InstanceSize;
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+import java.util.*;
+
+/**
+ * FleetProvider that runs the WebServers on AWS EC2 Instances, launched from the Image Id, the Key
+ * Pair Name and the Security Group provided, with detailed monitoring. Their CPU Utilization is
+ * retrieved from CloudWatch by CPUMetrics.
+ */
+public class EC2FleetProvider implements FleetProvider {
+
+  private final String ami;
+  private final String keyName;
+  private final String securityGroup;
+  private final AmazonEC2 ec2;
+  private final CPUMetrics cpuMetrics;
+
+  /**
+   * Creates an EC2FleetProvider, with the credentials of our AWS account, stored in the ~/.aws
+   * Directory.
+   *
+   * @param ami Image Id of the WebServer.
+   * @param keyName Key Pair Name.
+   * @param securityGroup Security Group.
+   */
+  public EC2FleetProvider(String ami, String keyName, String securityGroup) {
+    this.ami = ami;
+    this.keyName = keyName;
+    this.securityGroup = securityGroup;
+    try {
+      AWSCredentials credentials = new ProfileCredentialsProvider().getCredentials();
+      this.ec2 =
+          AmazonEC2ClientBuilder.standard()
+              .withRegion(Regions.US_EAST_1)
+              .withCredentials(new AWSStaticCredentialsProvider(credentials))
+              .build();
+      AmazonCloudWatch cloudWatch =
+          AmazonCloudWatchClientBuilder.standard()
+              .withRegion(Regions.US_EAST_1)
+              .withCredentials(new AWSStaticCredentialsProvider(credentials))
+              .build();
+      this.cpuMetrics =
+          new CPUMetrics(cloudWatch, Environment.getLong("AS_CPU_CACHE_TTL", 30000));
+    } catch (Exception e) {
+      throw new AmazonClientException("Bad Credentials", e);
+    }
+  }
+
+  @Override
+  public List<Instance> launch(int n, InstanceSize size, Map<String, String> tags) {
+    List<Tag> instanceTags = new ArrayList<>();
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      instanceTags.add(new Tag(tag.getKey(), tag.getValue()));
+    }
+    RunInstancesRequest runInstancesRequest =
+        new RunInstancesRequest()
+            .withImageId(this.ami)
+            .withInstanceType(size.getType())
+            .withMinCount(1)
+            .withMaxCount(n)
+            .withKeyName(this.keyName)
+            .withSecurityGroups(this.securityGroup)
+            .withMonitoring(true)
+            .withTagSpecifications(
+                new TagSpecification()
+                    .withResourceType(ResourceType.Instance)
+                    .withTags(instanceTags));
+    return this.ec2.runInstances(runInstancesRequest).getReservation().getInstances();
+  }
+
+  @Override
+  public List<Instance> describe(Collection<String> instanceIds) {
+    if (instanceIds.isEmpty()) return Collections.emptyList();
+    return this.describe(
+        new DescribeInstancesRequest()
+            .withFilters(new Filter("instance-id", new ArrayList<>(instanceIds))));
+  }
+
+  @Override
+  public List<Instance> discover(String key, String value) {
+    return this.describe(
+        new DescribeInstancesRequest()
+            .withFilters(
+                new Filter("tag:" + key, Collections.singletonList(value)),
+                new Filter(
+                    "instance-state-name",
+                    Arrays.asList("pending", "running", "stopping", "stopped"))));
+  }
+
+  /**
+   * Describes the Instances that match a request, following its pages.
+   *
+   * @param request Request to describe the Instances.
+   * @return Instances described.
+   */
+  private List<Instance> describe(DescribeInstancesRequest request) {
+    List<Instance> instances = new ArrayList<>();
+    do {
+      DescribeInstancesResult result = this.ec2.describeInstances(request);
+      for (Reservation reservation : result.getReservations()) {
+        instances.addAll(reservation.getInstances());
+      }
+      request.setNextToken(result.getNextToken());
+    } while (request.getNextToken() != null);
+    return instances;
+  }
+
+  @Override
+  public void tag(String instanceId, String key, String value) {
+    this.ec2.createTags(
+        new CreateTagsRequest().withResources(instanceId).withTags(new Tag(key, value)));
+  }
+
+  @Override
+  public void start(String instanceId) {
+    this.ec2.startInstances(new StartInstancesRequest().withInstanceIds(instanceId));
+  }
+
+  @Override
+  public void stop(String instanceId) {
+    this.ec2.stopInstances(new StopInstancesRequest().withInstanceIds(instanceId));
+  }
+
+  @Override
+  public void terminate(String instanceId) {
+    this.ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(instanceId));
+  }
+
+  @Override
+  public int getPort(String instanceId) {
+    return ScalingInstance.DEFAULT_PORT;
+  }
+
+  @Override
+  public Map<String, Double> getCPUUtilization(Collection<String> instanceIds) {
+    return this.cpuMetrics.get(instanceIds);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("EC2FleetProvider{ ami=%s, cpuMetrics=%s }", this.ami, this.cpuMetrics);
+  }
+}
@@ -0,0 +1,98 @@
+package pt.ulisboa.tecnico.cnv.scaling.fleet;
+
+import com.amazonaws.services.ec2.model.Instance;
+import pt.ulisboa.tecnico.cnv.scaling.InstanceSize;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides the WebServer Instances the AutoScaler manages: launches, starts, stops and terminates
+ * them, describes their State and reports their CPU Utilization. Instances are described as AWS
+ * Instances, whose State names ("pending", "running", "stopping", "stopped", "terminated") every
+ * provider follows. Failures to reach the provider are reported as AmazonClientExceptions.
+ */
+public interface FleetProvider {
+
+  /**
+   * Launches new Instances with a single request.
+   *
+   * @param n Number of Instances to launch.
+   * @param size Size of the Instances.
+   * @param tags Tags of the Instances.
+   * @return Instances accepted, at least one.
+   * @throws com.amazonaws.AmazonClientException If the Instances could not be launched.
+   */
+  List<Instance> launch(int n, InstanceSize size, Map<String, String> tags);
+
+  /**
+   * Describes the current State of the given Instances.
+   *
+   * @param instanceIds Ids of the Instances.
+   * @return Instances that are still known, with their State.
+   * @throws com.amazonaws.AmazonClientException If the Instances could not be described.
+   */
+  List<Instance> describe(Collection<String> instanceIds);
+
+  /**
+   * Finds the Instances tagged with the given Tag that are pending, running, stopping or stopped.
+   *
+   * @param key Key of the Tag.
+   * @param value Value of the Tag.
+   * @return Instances found, with their State.
+   * @throws com.amazonaws.AmazonClientException If the Instances could not be described.
+   */
+  List<Instance> discover(String key, String value);
+
+  /**
+   * Tags an Instance, replacing the value of the Tag if it already has one.
+   *
+   * @param instanceId Id of the Instance.
+   * @param key Key of the Tag.
+   * @param value Value of the Tag.
+   * @throws com.amazonaws.AmazonClientException If the Instance could not be tagged.
+   */
+  void tag(String instanceId, String key, String value);
+
+  /**
+   * Starts a stopped Instance.
+   *
+   * @param instanceId Id of the Instance.
+   * @throws com.amazonaws.AmazonClientException If the Instance could not be started.
+   */
+  void start(String instanceId);
+
+  /**
+   * Stops a running Instance.
+   *
+   * @param instanceId Id of the Instance.
+   * @throws com.amazonaws.AmazonClientException If the Instance could not be stopped.
+   */
+  void stop(String instanceId);
+
+  /**
+   * Terminates an Instance.
+   *
+   * @param instanceId Id of the Instance.
+   * @throws com.amazonaws.AmazonClientException If the Instance could not be terminated.
+   */
+  void terminate(String instanceId);
+
+  /**
+   * Gets the port the WebServer of an Instance listens on.
+   *
+   * @param instanceId Id of the Instance.
+   * @return WebServer port.
+   */
+  int getPort(String instanceId);
+
+  /**
+   * Gets the latest CPU Utilization of each Instance.
+   *
+   * @param instanceIds Ids of the Instances.
+   * @return CPU Utilization, in percentage, associated with the Id of each Instance that has one.
+   * @throws com.amazonaws.AmazonClientException If the CPU Utilization could not be retrieved.
+   */
+  Map<String, Double> getCPUUtilization(Collection<String> instanceIds);
+}
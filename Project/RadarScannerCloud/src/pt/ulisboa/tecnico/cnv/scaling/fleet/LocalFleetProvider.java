@@ -0,0 +1,428 @@
+package pt.ulisboa.tecnico.cnv.scaling.fleet;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Tag;
+import pt.ulisboa.tecnico.cnv.scaling.InstanceSize;
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * FleetProvider that runs each Instance as a local WebServer process, listening on its own port, so
+ * that the whole ScalingApp can be exercised and load-tested on a single Linux machine, without an
+ * AWS account. An Instance stays pending for FLEET_LOCAL_BOOT_DELAY milliseconds, as a virtual
+ * machine would while booting, before its process is started. When FLEET_LOCAL_CPUS_PER_UNIT is
+ * positive, each process is pinned with taskset to that many CPUs per unit of capacity of its
+ * InstanceSize, handed out in turn, so that the Instances do not share CPUs while the machine has
+ * enough. The CPU Utilization of each process, relative to its CPUs, is measured from /proc between
+ * consecutive requests for it.
+ *
+ * <p>A stopped Instance keeps its port and gets a new process when started. The output of each
+ * process is appended to a log file named after its Instance in FLEET_LOCAL_LOG_DIR, where its
+ * MSS_LOCAL_FILE is also kept, since a local MSS cannot be shared between processes. Every process
+ * is destroyed when the ScalingApp exits.
+ */
+public class LocalFleetProvider implements FleetProvider {
+
+  private static final Logger logger = Logger.getLogger(LocalFleetProvider.class.getName());
+  private static final String WEBSERVER = "pt.ulisboa.tecnico.cnv.server.WebServer";
+  private static final double CLOCK_TICKS = 100;
+  private final String address;
+  private final long bootDelay;
+  private final int cpusPerUnit;
+  private final List<String> command;
+  private final List<String> serverArgs;
+  private final Path logDirectory;
+  private final Map<String, LocalInstance> instances;
+  private final int nCPUs;
+  private int nextId;
+  private int nextPort;
+  private int nextCPU;
+
+  /**
+   * Creates a LocalFleetProvider.
+   *
+   * @param address Address the WebServers listen on.
+   * @param basePort First port given to a WebServer.
+   * @param bootDelay Time an Instance stays pending, in milliseconds.
+   * @param cpusPerUnit CPUs each process is pinned to per unit of capacity, or 0 to not pin them.
+   * @param command Command that runs the WebServer, without its arguments.
+   * @param serverArgs Arguments given to every WebServer, besides its address and port.
+   * @param logDirectory Directory of the log files of the processes.
+   */
+  public LocalFleetProvider(
+      String address,
+      int basePort,
+      long bootDelay,
+      int cpusPerUnit,
+      List<String> command,
+      List<String> serverArgs,
+      Path logDirectory) {
+    this.address = address;
+    this.nextPort = basePort;
+    this.bootDelay = Math.max(0, bootDelay);
+    this.cpusPerUnit = Math.max(0, cpusPerUnit);
+    this.command = command;
+    this.serverArgs = serverArgs;
+    this.logDirectory = logDirectory;
+    this.instances = new LinkedHashMap<>();
+    this.nCPUs = Runtime.getRuntime().availableProcessors();
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread() {
+              @Override
+              public void run() {
+                destroyAll();
+              }
+            });
+  }
+
+  /**
+   * Creates the LocalFleetProvider configured by FLEET_LOCAL_ADDRESS, FLEET_LOCAL_BASE_PORT,
+   * FLEET_LOCAL_BOOT_DELAY, FLEET_LOCAL_CPUS_PER_UNIT and FLEET_LOCAL_LOG_DIR. The WebServer is run
+   * by the same Java, with FLEET_LOCAL_JVM_ARGS and the class path FLEET_LOCAL_CLASSPATH, which
+   * defaults to the one of the ScalingApp, and is given FLEET_LOCAL_WEBSERVER_ARGS, such as its
+   * maps directory.
+   *
+   * @return The configured LocalFleetProvider.
+   */
+  public static LocalFleetProvider fromEnvironment() {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(split(Environment.getString("FLEET_LOCAL_JVM_ARGS", "")));
+    command.add("-cp");
+    command.add(
+        Environment.getString("FLEET_LOCAL_CLASSPATH", System.getProperty("java.class.path")));
+    command.add(WEBSERVER);
+    return new LocalFleetProvider(
+        Environment.getString("FLEET_LOCAL_ADDRESS", "127.0.0.1"),
+        Environment.getInt("FLEET_LOCAL_BASE_PORT", 8001),
+        Environment.getLong("FLEET_LOCAL_BOOT_DELAY", 0),
+        Environment.getInt("FLEET_LOCAL_CPUS_PER_UNIT", 1),
+        command,
+        split(Environment.getString("FLEET_LOCAL_WEBSERVER_ARGS", "")),
+        Paths.get(Environment.getString("FLEET_LOCAL_LOG_DIR", "fleet")));
+  }
+
+  private static List<String> split(String args) {
+    List<String> split = new ArrayList<>();
+    for (String arg : args.trim().split("\\s+")) {
+      if (!arg.isEmpty()) split.add(arg);
+    }
+    return split;
+  }
+
+  /**
+   * Creates pending Instances, each with a free port and its share of the CPUs.
+   *
+   * @param n Number of Instances to launch.
+   * @param size Size of the Instances.
+   * @param tags Tags of the Instances.
+   * @return Instances created.
+   */
+  @Override
+  public synchronized List<Instance> launch(int n, InstanceSize size, Map<String, String> tags) {
+    List<Instance> launched = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      String instanceId = String.format("local-%04d", ++this.nextId);
+      LocalInstance instance =
+          new LocalInstance(
+              instanceId, size.getType(), this.nextFreePort(), this.nextCPUs(size), tags);
+      this.instances.put(instanceId, instance);
+      launched.add(this.toInstance(instance));
+    }
+    return launched;
+  }
+
+  @Override
+  public synchronized List<Instance> describe(Collection<String> instanceIds) {
+    List<Instance> described = new ArrayList<>();
+    for (String instanceId : instanceIds) {
+      LocalInstance instance = this.instances.get(instanceId);
+      if (instance == null) continue;
+      this.advance(instance);
+      described.add(this.toInstance(instance));
+    }
+    return described;
+  }
+
+  @Override
+  public synchronized List<Instance> discover(String key, String value) {
+    List<Instance> discovered = new ArrayList<>();
+    for (LocalInstance instance : this.instances.values()) {
+      if (!value.equals(instance.tags.get(key))) continue;
+      this.advance(instance);
+      if (!instance.state.equals("terminated")) discovered.add(this.toInstance(instance));
+    }
+    return discovered;
+  }
+
+  @Override
+  public synchronized void tag(String instanceId, String key, String value) {
+    this.get(instanceId).tags.put(key, value);
+  }
+
+  @Override
+  public synchronized void start(String instanceId) {
+    LocalInstance instance = this.get(instanceId);
+    if (!instance.state.equals("stopped")) return;
+    instance.setState("pending");
+  }
+
+  @Override
+  public synchronized void stop(String instanceId) {
+    LocalInstance instance = this.get(instanceId);
+    instance.destroy();
+    instance.setState("stopped");
+  }
+
+  @Override
+  public synchronized void terminate(String instanceId) {
+    LocalInstance instance = this.instances.remove(instanceId);
+    if (instance != null) instance.destroy();
+  }
+
+  @Override
+  public synchronized int getPort(String instanceId) {
+    return this.get(instanceId).port;
+  }
+
+  /**
+   * Measures the CPU Utilization of each running process since the previous measurement. A process
+   * measured for the first time has none yet.
+   *
+   * @param instanceIds Ids of the Instances.
+   * @return CPU Utilization, in percentage, associated with the Id of each Instance that has one.
+   */
+  @Override
+  public synchronized Map<String, Double> getCPUUtilization(Collection<String> instanceIds) {
+    Map<String, Double> cpus = new HashMap<>();
+    long now = System.nanoTime();
+    for (String instanceId : instanceIds) {
+      LocalInstance instance = this.instances.get(instanceId);
+      if (instance == null || instance.process == null) continue;
+      Long ticks = instance.readCPUTicks();
+      if (ticks == null) continue;
+      if (instance.lastTicks != null && now > instance.lastTicksAt) {
+        double seconds = (now - instance.lastTicksAt) / 1e9;
+        int nCPUs = instance.cpus.isEmpty() ? this.nCPUs : instance.cpus.size();
+        cpus.put(instanceId, 100 * (ticks - instance.lastTicks) / CLOCK_TICKS / seconds / nCPUs);
+      }
+      instance.lastTicks = ticks;
+      instance.lastTicksAt = now;
+    }
+    return cpus;
+  }
+
+  /**
+   * Starts the process of a pending Instance once its boot delay passes, and detects a running
+   * process that exited, reporting its Instance as terminated.
+   *
+   * @param instance Local Instance.
+   */
+  private void advance(LocalInstance instance) {
+    switch (instance.state) {
+      case "pending":
+        if (System.currentTimeMillis() - instance.stateSince < this.bootDelay) return;
+        try {
+          this.spawn(instance);
+          instance.setState("running");
+        } catch (IOException e) {
+          logger.warning(String.format("Unable to Start Instance %s: %s", instance.id, e));
+          instance.setState("terminated");
+        }
+        break;
+      case "running":
+        int exitValue;
+        try {
+          exitValue = instance.process.exitValue();
+        } catch (IllegalThreadStateException e) {
+          return;
+        }
+        logger.warning(String.format("Instance %s Exited with %d!", instance.id, exitValue));
+        instance.process = null;
+        instance.setState("terminated");
+        break;
+      default:
+    }
+  }
+
+  /**
+   * Starts the WebServer process of an Instance, through a shell that records its process id
+   * before it is replaced by the WebServer, optionally under taskset.
+   *
+   * @param instance Local Instance.
+   * @throws IOException If the process could not be started.
+   */
+  private void spawn(LocalInstance instance) throws IOException {
+    Files.createDirectories(this.logDirectory);
+    Path pidFile = this.logDirectory.resolve(instance.id + ".pid");
+    Files.deleteIfExists(pidFile);
+    List<String> command =
+        new ArrayList<>(
+            Arrays.asList("sh", "-c", "echo $$ > \"$0\"; exec \"$@\"", pidFile.toString()));
+    if (!instance.cpus.isEmpty()) {
+      StringBuilder cpuList = new StringBuilder();
+      for (int cpu : instance.cpus) cpuList.append(cpuList.length() > 0 ? "," : "").append(cpu);
+      command.addAll(Arrays.asList("taskset", "-c", cpuList.toString()));
+    }
+    command.addAll(this.command);
+    command.addAll(Arrays.asList("-address", this.address, "-port", String.valueOf(instance.port)));
+    command.addAll(this.serverArgs);
+    File logFile = this.logDirectory.resolve(instance.id + ".log").toFile();
+    ProcessBuilder processBuilder =
+        new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile));
+    processBuilder
+        .environment()
+        .put("MSS_LOCAL_FILE", this.logDirectory.resolve(instance.id + ".costs.log").toString());
+    instance.process = processBuilder.start();
+    instance.pidFile = pidFile;
+    instance.pid = null;
+    instance.lastTicks = null;
+    logger.info(
+        String.format(
+            "Started Instance %s on Port %d (CPUs %s)", instance.id, instance.port, instance.cpus));
+  }
+
+  /**
+   * Finds the next port, from the last one given, on which nothing is listening.
+   *
+   * @return Free port.
+   */
+  private int nextFreePort() {
+    while (true) {
+      int port = this.nextPort++;
+      try (ServerSocket socket = new ServerSocket(port, 1, InetAddress.getByName(this.address))) {
+        return socket.getLocalPort();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Hands out the CPUs of an Instance of the given size, continuing from the last CPU given.
+   *
+   * @param size Size of the Instance.
+   * @return CPUs of the Instance, or none if processes are not pinned.
+   */
+  private List<Integer> nextCPUs(InstanceSize size) {
+    List<Integer> cpus = new ArrayList<>();
+    int n = Math.min(this.nCPUs, this.cpusPerUnit * size.getCapacity());
+    for (int i = 0; i < n; i++) {
+      cpus.add(this.nextCPU);
+      this.nextCPU = (this.nextCPU + 1) % this.nCPUs;
+    }
+    Collections.sort(cpus);
+    return cpus;
+  }
+
+  private LocalInstance get(String instanceId) {
+    LocalInstance instance = this.instances.get(instanceId);
+    if (instance == null) {
+      throw new AmazonClientException(String.format("Unknown Instance %s", instanceId));
+    }
+    return instance;
+  }
+
+  private Instance toInstance(LocalInstance instance) {
+    List<Tag> tags = new ArrayList<>();
+    for (Map.Entry<String, String> tag : instance.tags.entrySet()) {
+      tags.add(new Tag(tag.getKey(), tag.getValue()));
+    }
+    return new Instance()
+        .withInstanceId(instance.id)
+        .withInstanceType(instance.type)
+        .withPublicDnsName(instance.state.equals("running") ? this.address : "")
+        .withState(new InstanceState().withName(instance.state))
+        .withLaunchTime(new Date(instance.launchTime))
+        .withTags(tags);
+  }
+
+  private synchronized void destroyAll() {
+    for (LocalInstance instance : this.instances.values()) instance.destroy();
+  }
+
+  @Override
+  public synchronized String toString() {
+    int nRunning = 0;
+    for (LocalInstance instance : this.instances.values()) {
+      if (instance.state.equals("running")) nRunning++;
+    }
+    return String.format(
+        "LocalFleetProvider{ instances=%d, running=%d, bootDelay=%d ms, cpusPerUnit=%d }",
+        this.instances.size(), nRunning, this.bootDelay, this.cpusPerUnit);
+  }
+
+  /** Instance run as a local process, with its port, CPUs, Tags and State. */
+  private static class LocalInstance {
+
+    private final String id;
+    private final String type;
+    private final int port;
+    private final List<Integer> cpus;
+    private final Map<String, String> tags;
+    private final long launchTime;
+    private String state;
+    private long stateSince;
+    private Process process;
+    private Path pidFile;
+    private String pid;
+    private Long lastTicks;
+    private long lastTicksAt;
+
+    private LocalInstance(
+        String id, String type, int port, List<Integer> cpus, Map<String, String> tags) {
+      this.id = id;
+      this.type = type;
+      this.port = port;
+      this.cpus = cpus;
+      this.tags = new LinkedHashMap<>(tags);
+      this.launchTime = System.currentTimeMillis();
+      this.setState("pending");
+    }
+
+    private void setState(String state) {
+      this.state = state;
+      this.stateSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the CPU time the process spent in user and kernel mode from /proc.
+     *
+     * @return CPU time, in clock ticks, or null if it could not be read.
+     */
+    private Long readCPUTicks() {
+      try {
+        if (this.pid == null) {
+          this.pid = new String(Files.readAllBytes(this.pidFile), StandardCharsets.UTF_8).trim();
+        }
+        String stat =
+            new String(
+                Files.readAllBytes(Paths.get("/proc", this.pid, "stat")), StandardCharsets.UTF_8);
+        // The command name may contain spaces, so the fields are counted after its parenthesis.
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+      } catch (IOException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    private void destroy() {
+      if (this.process != null) this.process.destroy();
+      this.process = null;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the LoadBalancer accepts a Client Request, before any work is done for it. Each
+ * Client has a token bucket refilled at a fixed rate of Cost per second, from which every Request
+ * is charged its estimated Cost, so that expensive Scans use up the allowance faster than cheap
+ * ones. The concurrency of the LoadBalancer is shared fairly: while several Clients have Requests
+ * in flight, each one may hold at most an equal share of the total. Requests over either limit are
+ * rejected right away with 429. Client State is kept in a concurrent map, locked per Client, and
+ * Clients idle for a while are forgotten.
+ *
+ * <p>Clients are identified by their address, since a Client choosing its own identity could take a
+ * fresh bucket on every Request. The X-Client-Id Header is only trusted when the LoadBalancer sits
+ * behind a proxy that sets it.
+ */
+public class AdmissionController {
+
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final long IDLE_TIMEOUT = 600000;
+  private static final int PURGE_PERIOD = 4096;
+  private final double rate;
+  private final double burst;
+  private final double minCharge;
+  private final int maxConcurrency;
+  private final boolean trustClientId;
+  private final ConcurrentHashMap<String, Client> clients;
+  private final AtomicInteger nActiveClients;
+  private final AtomicInteger nInFlight;
+  private final AtomicLong nAdmitted;
+  private final AtomicLong nRateLimited;
+  private final AtomicLong nConcurrencyLimited;
+  private final AtomicLong nRequests;
+
+  /**
+   * Creates an AdmissionController.
+   *
+   * @param rate Cost added to each Client bucket per second, or 0 to disable rate limiting.
+   * @param burst Maximum Cost held by a Client bucket.
+   * @param minCharge Minimum Cost charged per Request, for Requests with no estimate.
+   * @param maxConcurrency Requests in flight shared among the Clients, or 0 for no limit.
+   * @param trustClientId True if Clients are identified by their X-Client-Id Header.
+   */
+  public AdmissionController(
+      double rate, double burst, double minCharge, int maxConcurrency, boolean trustClientId) {
+    this.rate = rate;
+    this.burst = Math.max(burst, rate);
+    this.minCharge = minCharge;
+    this.maxConcurrency = maxConcurrency;
+    this.trustClientId = trustClientId;
+    this.clients = new ConcurrentHashMap<>();
+    this.nActiveClients = new AtomicInteger();
+    this.nInFlight = new AtomicInteger();
+    this.nAdmitted = new AtomicLong();
+    this.nRateLimited = new AtomicLong();
+    this.nConcurrencyLimited = new AtomicLong();
+    this.nRequests = new AtomicLong();
+  }
+
+  /**
+   * Identifies the Client of a Request: by its X-Client-Id Header, when it is trusted and present,
+   * or else by its address.
+   *
+   * @param t Encapsulates an HTTP Request.
+   * @return Client Id.
+   */
+  public String clientOf(HttpExchange t) {
+    String clientId = this.trustClientId ? t.getRequestHeaders().getFirst("X-Client-Id") : null;
+    if (clientId != null && !clientId.isEmpty()) return clientId;
+    return t.getRemoteAddress().getAddress().getHostAddress();
+  }
+
+  /**
+   * Admits Requests of the Client, charging their estimated Cost and taking up to the given number
+   * of concurrency slots, which must be released by closing the returned Admission. The slots taken
+   * are cut down to what is left of the Client share and of the total, but a Client with nothing in
+   * flight always gets one.
+   *
+   * @param clientId Client Id.
+   * @param estimatedCost Estimated Cost of the Requests.
+   * @param slots Most Requests that will be in flight at once, or 0 to only charge the Cost.
+   * @return The Admission of the Requests.
+   * @throws AdmissionException If the Client is over its rate or its share of the concurrency.
+   */
+  public Admission admit(String clientId, double estimatedCost, int slots)
+      throws AdmissionException {
+    return this.take(
+        clientId, this.rate > 0 ? Math.max(estimatedCost, this.minCharge) : 0, slots);
+  }
+
+  /**
+   * Takes concurrency slots for Requests of the Client that were already charged, such as a Job
+   * that starts running. The slots must be released by closing the returned Admission.
+   *
+   * @param clientId Client Id.
+   * @param slots Number of Requests that will be in flight at once.
+   * @return The Admission of the Requests, with nothing to refund.
+   * @throws AdmissionException If the Client is over its share of the concurrency.
+   */
+  public Admission hold(String clientId, int slots) throws AdmissionException {
+    return this.take(clientId, 0, slots);
+  }
+
+  private Admission take(String clientId, double charge, int slots) throws AdmissionException {
+    if (this.nRequests.incrementAndGet() % PURGE_PERIOD == 0) this.purgeIdle();
+    Client client = this.clients.get(clientId);
+    if (client == null) {
+      Client newClient = new Client(this.burst);
+      client = this.clients.putIfAbsent(clientId, newClient);
+      if (client == null) client = newClient;
+    }
+
+    synchronized (client) {
+      if (this.maxConcurrency > 0 && slots > 0) {
+        int activeClients = this.nActiveClients.get() + (client.inFlight == 0 ? 1 : 0);
+        int share = Math.max(1, this.maxConcurrency / Math.max(1, activeClients));
+        int available =
+            Math.min(share - client.inFlight, this.maxConcurrency - this.nInFlight.get());
+        if (client.inFlight == 0) available = Math.max(1, available);
+        if (available < 1) {
+          this.nConcurrencyLimited.incrementAndGet();
+          throw new AdmissionException(TOO_MANY_REQUESTS, "Concurrency Share Exceeded", 1);
+        }
+        slots = Math.min(slots, available);
+      }
+      if (charge > 0) {
+        client.refill(this.rate, this.burst);
+        if (client.tokens < Math.min(charge, this.burst)) {
+          this.nRateLimited.incrementAndGet();
+          long retryAfter =
+              (long) Math.ceil((Math.min(charge, this.burst) - client.tokens) / this.rate);
+          throw new AdmissionException(TOO_MANY_REQUESTS, "Rate Exceeded", Math.max(1, retryAfter));
+        }
+        client.tokens -= charge;
+      }
+      if (client.inFlight == 0 && slots > 0) this.nActiveClients.incrementAndGet();
+      client.inFlight += slots;
+      client.lastSeen = System.currentTimeMillis();
+    }
+    this.nInFlight.addAndGet(slots);
+    this.nAdmitted.incrementAndGet();
+    return new Admission(client, charge, slots);
+  }
+
+  /** Forgets the Clients with nothing in flight that were not seen for a while. */
+  private void purgeIdle() {
+    long now = System.currentTimeMillis();
+    Iterator<Client> it = this.clients.values().iterator();
+    while (it.hasNext()) {
+      Client client = it.next();
+      synchronized (client) {
+        if (client.inFlight == 0 && client.lastSeen + IDLE_TIMEOUT <= now) it.remove();
+      }
+    }
+  }
+
+  /**
+   * Gets the AdmissionController metrics, one per line, in the "name value" format.
+   *
+   * @return Admission Metrics.
+   */
+  public String toMetrics() {
+    return String.format(
+        "lb_admission_admitted %d\n"
+            + "lb_admission_rate_limited %d\n"
+            + "lb_admission_concurrency_limited %d\n"
+            + "lb_admission_in_flight %d\n"
+            + "lb_admission_active_clients %d\n"
+            + "lb_admission_clients %d\n",
+        this.nAdmitted.get(),
+        this.nRateLimited.get(),
+        this.nConcurrencyLimited.get(),
+        this.nInFlight.get(),
+        this.nActiveClients.get(),
+        this.clients.size());
+  }
+
+  /** Token bucket and Requests in flight of a Client. */
+  private static class Client {
+
+    private double tokens;
+    private long lastRefill;
+    private long lastSeen;
+    private int inFlight;
+
+    private Client(double burst) {
+      this.tokens = burst;
+      this.lastRefill = System.nanoTime();
+      this.lastSeen = System.currentTimeMillis();
+    }
+
+    private void refill(double rate, double burst) {
+      long now = System.nanoTime();
+      this.tokens = Math.min(burst, this.tokens + rate * (now - this.lastRefill) / 1e9);
+      this.lastRefill = now;
+    }
+  }
+
+  /** Admitted Requests of a Client, holding their concurrency slots until closed. */
+  public class Admission implements AutoCloseable {
+
+    private final Client client;
+    private final int slots;
+    private double charge;
+    private boolean closed;
+
+    private Admission(Client client, double charge, int slots) {
+      this.client = client;
+      this.charge = charge;
+      this.slots = slots;
+    }
+
+    /**
+     * Gives back the Cost charged for a Request that did not reach any WebServer, such as one
+     * answered from the Cache.
+     *
+     * @param cost Cost to give back, at most what is left of the charge.
+     */
+    public void refund(double cost) {
+      double refund = Math.min(cost, this.charge);
+      if (refund <= 0) return;
+      synchronized (this.client) {
+        this.client.tokens = Math.min(burst, this.client.tokens + refund);
+      }
+      this.charge -= refund;
+    }
+
+    /**
+     * Gets the number of concurrency slots held, which may be fewer than the ones asked for.
+     *
+     * @return Number of Requests that may be in flight at once.
+     */
+    public int getSlots() {
+      return this.slots;
+    }
+
+    /** Gives back all the Cost charged. */
+    public void refund() {
+      this.refund(this.charge);
+    }
+
+    /** Releases the concurrency slots. */
+    @Override
+    public void close() {
+      if (this.closed || this.slots == 0) return;
+      this.closed = true;
+      synchronized (this.client) {
+        this.client.inFlight -= this.slots;
+        if (this.client.inFlight == 0) nActiveClients.decrementAndGet();
+        this.client.lastSeen = System.currentTimeMillis();
+      }
+      nInFlight.addAndGet(-this.slots);
+    }
+  }
+}
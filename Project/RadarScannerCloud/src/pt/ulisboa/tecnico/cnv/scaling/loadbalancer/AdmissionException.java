@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+/** Signals that a Client exceeded its limits, with the time after which it may try again. */
+public class AdmissionException extends ScanException {
+
+  private static final long serialVersionUID = 1L;
+  private final long retryAfter;
+
+  public AdmissionException(int status, String message, long retryAfter) {
+    super(status, message);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Gets the time the Client should wait before trying again.
+   *
+   * @return Retry-After in seconds.
+   */
+  public long getRetryAfter() {
+    return this.retryAfter;
+  }
+}
@@ -0,0 +1,138 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local binary Snapshot of the Costs known by the LoadBalancer, so that it can route with full
+ * knowledge right after a restart. The file holds a header (magic, version, creation time, number
+ * of entries) followed by each canonical Query and its Cost Statistics. It is written to a
+ * temporary file and atomically moved into place, and it is memory-mapped when loaded.
+ */
+public class CostsSnapshot {
+
+  private static final int MAGIC = 0x52534343;
+  private static final int VERSION = 2;
+  private final Path path;
+
+  public CostsSnapshot(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * Writes the given Cost Statistics to the Snapshot file, replacing the previous Snapshot.
+   *
+   * @param uRequestsCosts Cost Statistics associated with its Requests.
+   */
+  public synchronized void save(List<Map.Entry<UserRequest, CostStatistics>> uRequestsCosts)
+      throws IOException {
+    Path directory = this.path.toAbsolutePath().getParent();
+    Path tmpPath = Files.createTempFile(directory, this.path.getFileName().toString(), ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+      out.writeInt(uRequestsCosts.size());
+      for (Map.Entry<UserRequest, CostStatistics> uRequestCost : uRequestsCosts) {
+        byte[] query = uRequestCost.getKey().toQuery().getBytes(StandardCharsets.UTF_8);
+        out.writeShort(query.length);
+        out.write(query);
+        uRequestCost.getValue().writeTo(out);
+      }
+    }
+    Files.move(
+        tmpPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the Cost Statistics from the Snapshot file. A missing, foreign or truncated file yields
+   * the entries that could be read, possibly none.
+   *
+   * @return Cost Statistics associated with its Requests and the time the Snapshot was created.
+   */
+  public synchronized Contents load() {
+    Map<UserRequest, CostStatistics> uRequestsCosts = new LinkedHashMap<>();
+    long createdAt = 0;
+    if (!Files.isRegularFile(this.path)) return new Contents(createdAt, uRequestsCosts);
+
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return new Contents(createdAt, uRequestsCosts);
+      }
+      createdAt = buffer.getLong();
+      int size = buffer.getInt();
+      byte[] query = new byte[0xffff];
+      for (int i = 0; i < size; i++) {
+        int length = buffer.getShort() & 0xffff;
+        buffer.get(query, 0, length);
+        CostStatistics statistics = CostStatistics.readFrom(buffer);
+        UserRequest uRequest =
+            UserRequest.parseFromQuery(new String(query, 0, length, StandardCharsets.UTF_8));
+        if (uRequest != null) uRequestsCosts.put(uRequest, statistics);
+      }
+    } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+      System.err.printf("Snapshot %s Unreadable: %s%n", this.path, e);
+    }
+    return new Contents(createdAt, uRequestsCosts);
+  }
+
+  /**
+   * Gets the Path of the Snapshot file.
+   *
+   * @return Snapshot Path.
+   */
+  public Path getPath() {
+    return this.path;
+  }
+
+  /** Cost Statistics read from a Snapshot and the time it was created. */
+  public static class Contents {
+
+    private final long createdAt;
+    private final Map<UserRequest, CostStatistics> uRequestsCosts;
+
+    private Contents(long createdAt, Map<UserRequest, CostStatistics> uRequestsCosts) {
+      this.createdAt = createdAt;
+      this.uRequestsCosts = uRequestsCosts;
+    }
+
+    /**
+     * Gets the time the Snapshot was created.
+     *
+     * @return Time since the epoch, in milliseconds, or 0 if no Snapshot was read.
+     */
+    public long getCreatedAt() {
+      return this.createdAt;
+    }
+
+    /**
+     * Gets the age of the Snapshot.
+     *
+     * @return Time since the Snapshot was created, in milliseconds.
+     */
+    public long getAge() {
+      return System.currentTimeMillis() - this.createdAt;
+    }
+
+    public Map<UserRequest, CostStatistics> getURequestsCosts() {
+      return this.uRequestsCosts;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Holds the Requests that cannot be forwarded yet because every healthy Instance has reached its
+ * concurrency limit. Waiting Requests are released as Instances free up, shortest estimated Cost
+ * first (SEJF). To prevent starvation, a Request gains priority as it waits: its Cost is discounted
+ * by the aging rate for every second waited. The queue is bounded, and a Request that cannot be
+ * queued or waits longer than the timeout is rejected.
+ */
+public class DispatchQueue {
+
+  private final Selector selector;
+  private final PriorityQueue<Ticket> waiting;
+  private final int capacity;
+  private final long timeout;
+  private final double agingRate;
+  private final long origin;
+  private long nImmediate;
+  private long nQueued;
+  private long nRejected;
+  private long nTimedOut;
+  private long totalQueueTime;
+  private long maxQueueTime;
+  private long sequence;
+
+  /**
+   * Creates a DispatchQueue.
+   *
+   * @param selector Chooses an Instance that can take a Request right now.
+   * @param capacity Maximum number of waiting Requests.
+   * @param timeout Maximum time a Request waits, in milliseconds.
+   * @param agingRate Cost discounted from a waiting Request for every second it waits.
+   */
+  public DispatchQueue(Selector selector, int capacity, long timeout, double agingRate) {
+    this.selector = selector;
+    this.waiting = new PriorityQueue<>();
+    this.capacity = capacity;
+    this.timeout = timeout;
+    this.agingRate = agingRate;
+    this.origin = System.currentTimeMillis();
+  }
+
+  /**
+   * Assigns the Request to an Instance, adding its estimated Cost to it. If other Requests are
+   * waiting, the Request is queued and the waiting Requests are dispatched at once, so it is placed
+   * right away if some Instance accepts it. Otherwise it waits in the queue until it is released.
+   *
+   * @param uRequest Incoming Request.
+   * @param estimatedCost Estimated Cost of the Incoming Request.
+   * @return Instance assigned to the Request and its estimated Cost, or null if the queue is full
+   *     or the Request timed out.
+   */
+  public synchronized Map.Entry<ScalingInstance, Double> acquire(
+      UserRequest uRequest, double estimatedCost) throws InterruptedException {
+    if (this.waiting.isEmpty()) {
+      ScalingInstance instance = this.selector.select(uRequest, estimatedCost);
+      if (instance != null) {
+        this.nImmediate++;
+        instance.addCost(estimatedCost);
+        return new AbstractMap.SimpleEntry<>(instance, estimatedCost);
+      }
+    }
+    if (this.waiting.size() >= this.capacity) {
+      this.nRejected++;
+      return null;
+    }
+
+    long enqueuedAt = System.currentTimeMillis();
+    Ticket ticket =
+        new Ticket(
+            uRequest,
+            estimatedCost,
+            estimatedCost + this.agingRate * (enqueuedAt - this.origin) / 1000,
+            this.sequence++);
+    this.waiting.add(ticket);
+    this.nQueued++;
+    this.dispatch();
+
+    long deadline = enqueuedAt + this.timeout;
+    while (ticket.instance == null) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        this.waiting.remove(ticket);
+        this.nTimedOut++;
+        return null;
+      }
+      try {
+        this.wait(Math.min(remaining, 1000));
+      } catch (InterruptedException e) {
+        if (ticket.instance != null) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        this.waiting.remove(ticket);
+        throw e;
+      }
+      this.dispatch();
+    }
+
+    long queueTime = System.currentTimeMillis() - enqueuedAt;
+    this.totalQueueTime += queueTime;
+    this.maxQueueTime = Math.max(this.maxQueueTime, queueTime);
+    return new AbstractMap.SimpleEntry<>(ticket.instance, estimatedCost);
+  }
+
+  /**
+   * Releases waiting Requests, in priority order, to the Instances that can take them. A Request
+   * that cannot be placed does not hold back the ones behind it, since the Selector may only accept
+   * some Requests on some Instances. Called whenever an Instance frees up or becomes healthy.
+   */
+  public synchronized void dispatch() {
+    if (this.waiting.isEmpty()) return;
+    Ticket[] tickets = this.waiting.toArray(new Ticket[0]);
+    Arrays.sort(tickets);
+    boolean released = false;
+    for (Ticket ticket : tickets) {
+      ScalingInstance instance = this.selector.select(ticket.uRequest, ticket.estimatedCost);
+      if (instance == null) continue;
+      this.waiting.remove(ticket);
+      instance.addCost(ticket.estimatedCost);
+      ticket.instance = instance;
+      released = true;
+    }
+    if (released) this.notifyAll();
+  }
+
+  /**
+   * Gets the number of Requests waiting to be forwarded.
+   *
+   * @return Queue Depth.
+   */
+  public synchronized int size() {
+    return this.waiting.size();
+  }
+
+  /**
+   * Gets the average time waited by the Requests that were released from the queue.
+   *
+   * @return Average Queue Time in milliseconds.
+   */
+  public synchronized double getAverageQueueTime() {
+    long nReleased = this.nQueued - this.nTimedOut - this.waiting.size();
+    return nReleased <= 0 ? 0 : (double) this.totalQueueTime / nReleased;
+  }
+
+  /**
+   * Gets the State of this queue at the current time.
+   *
+   * @return Queue State.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "DispatchQueue{ waiting=%d, immediate=%d, queued=%d, rejected=%d, timedOut=%d, "
+            + "avgQueueTime=%.1f ms, maxQueueTime=%d ms }",
+        this.waiting.size(),
+        this.nImmediate,
+        this.nQueued,
+        this.nRejected,
+        this.nTimedOut,
+        this.getAverageQueueTime(),
+        this.maxQueueTime);
+  }
+
+  /** Chooses an Instance that can take a Request right now. */
+  public interface Selector {
+
+    /**
+     * Chooses an Instance for the Request among those below their concurrency limit.
+     *
+     * @param uRequest Request to forward.
+     * @param estimatedCost Estimated Cost of the Request.
+     * @return The chosen Instance, or null if none can take the Request right now.
+     */
+    ScalingInstance select(UserRequest uRequest, double estimatedCost);
+  }
+
+  /** Waiting Request, ordered by aged Cost and then by arrival. */
+  private static class Ticket implements Comparable<Ticket> {
+
+    private final UserRequest uRequest;
+    private final double estimatedCost;
+    private final double priority;
+    private final long sequence;
+    private ScalingInstance instance;
+
+    private Ticket(UserRequest uRequest, double estimatedCost, double priority, long sequence) {
+      this.uRequest = uRequest;
+      this.estimatedCost = estimatedCost;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Ticket other) {
+      int byPriority = Double.compare(this.priority, other.priority);
+      return byPriority != 0 ? byPriority : Long.compare(this.sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximates the access Frequency of the Requests with a Count-Min Sketch of 4-bit Counters
+ * (TinyLFU). Counters are halved periodically so that the Frequencies reflect recent history.
+ */
+public class FrequencySketch {
+
+  private static final int DEPTH = 4;
+  private static final int MAX_FREQUENCY = 15;
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+  private final AtomicLongArray table;
+  private final AtomicInteger nAdditions;
+  private final int rowLongs;
+  private final int rowMask;
+  private final int sampleSize;
+
+  /**
+   * Creates a Sketch able to distinguish the Frequencies of about the given number of Requests.
+   *
+   * @param maximumSize Expected maximum number of Requests kept in the cache.
+   */
+  public FrequencySketch(long maximumSize) {
+    int width = Integer.highestOneBit((int) Math.max(16, Math.min(maximumSize, 1 << 24)) - 1) << 1;
+    this.rowLongs = width >>> 4;
+    this.rowMask = width - 1;
+    this.sampleSize = 10 * width;
+    this.table = new AtomicLongArray(DEPTH * this.rowLongs);
+    this.nAdditions = new AtomicInteger();
+  }
+
+  /**
+   * Gets the estimated number of times the given Request has been seen recently.
+   *
+   * @param o Request to look up.
+   * @return Estimated Frequency, between 0 and 15.
+   */
+  public int frequency(Object o) {
+    int hash = spread(o.hashCode());
+    int frequency = MAX_FREQUENCY;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = this.index(hash, row);
+      long value = this.table.get(row * this.rowLongs + (index >>> 4));
+      frequency = Math.min(frequency, (int) ((value >>> ((index & 15) << 2)) & 0xfL));
+    }
+    return frequency;
+  }
+
+  /**
+   * Records an access to the given Request. Lock-free, every Counter is updated with a CAS.
+   *
+   * @param o Accessed Request.
+   */
+  public void increment(Object o) {
+    int hash = spread(o.hashCode());
+    boolean added = false;
+    for (int row = 0; row < DEPTH; row++) {
+      added |= this.incrementAt(row, this.index(hash, row));
+    }
+    if (added && this.nAdditions.incrementAndGet() >= this.sampleSize) this.reset();
+  }
+
+  /**
+   * Increments the Counter at the given position, unless it is saturated.
+   *
+   * @return True if the Counter was incremented, otherwise, False.
+   */
+  private boolean incrementAt(int row, int index) {
+    int slot = row * this.rowLongs + (index >>> 4);
+    int shift = (index & 15) << 2;
+    long mask = 0xfL << shift;
+    while (true) {
+      long value = this.table.get(slot);
+      if ((value & mask) == mask) return false;
+      if (this.table.compareAndSet(slot, value, value + (1L << shift))) return true;
+    }
+  }
+
+  /** Halves every Counter (Aging), so that old popularity fades out. */
+  private synchronized void reset() {
+    if (this.nAdditions.get() < this.sampleSize) return;
+    for (int slot = 0; slot < this.table.length(); slot++) {
+      while (true) {
+        long value = this.table.get(slot);
+        if (this.table.compareAndSet(slot, value, (value >>> 1) & RESET_MASK)) break;
+      }
+    }
+    this.nAdditions.set(this.nAdditions.get() / 2);
+  }
+
+  /** Gets the Counter index of a hash for a given row of the Sketch. */
+  private int index(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & this.rowMask;
+  }
+
+  /** Applies a supplemental hash function to defend against poor quality hashes. */
+  private static int spread(int hash) {
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+    return (hash >>> 16) ^ hash;
+  }
+}
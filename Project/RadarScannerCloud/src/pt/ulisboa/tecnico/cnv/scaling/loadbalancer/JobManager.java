@@ -0,0 +1,347 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Scans as asynchronous Jobs, so that long Scans do not tie up a Client connection. A Job is
+ * charged to its Client and queued when submitted, and a fixed number of Jobs run at a time through
+ * the ScanService. A running Job holds a concurrency slot of its Client, so Jobs share the
+ * concurrency fairly with the other Requests: a Job whose Client is over its share is queued again
+ * once the Client may retry. The Image of a finished Job is kept until it is fetched or until the
+ * TTL expires.
+ */
+public class JobManager {
+
+  private final ScanService scanService;
+  private final AdmissionController admissionController;
+  private final ThreadPoolExecutor executor;
+  private final Timer timer;
+  private final ConcurrentHashMap<String, Job> jobs;
+  private final AtomicInteger nJobs;
+  private final int maxJobs;
+  private final long ttl;
+
+  /**
+   * Creates a JobManager.
+   *
+   * @param scanService Service that obtains the Image of each Job.
+   * @param admissionController Controller that charges the Jobs to their Clients.
+   * @param parallelism Maximum number of Jobs running at a time.
+   * @param maxJobs Maximum number of Jobs kept, in any State.
+   * @param ttl Time a finished Job is kept, in milliseconds.
+   */
+  public JobManager(
+      ScanService scanService,
+      AdmissionController admissionController,
+      int parallelism,
+      int maxJobs,
+      long ttl) {
+    this.scanService = scanService;
+    this.admissionController = admissionController;
+    this.executor =
+        new ThreadPoolExecutor(
+            parallelism,
+            parallelism,
+            0,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    this.jobs = new ConcurrentHashMap<>();
+    this.nJobs = new AtomicInteger();
+    this.maxJobs = maxJobs;
+    this.ttl = ttl;
+    this.timer = new Timer(true);
+    this.schedulePurge();
+  }
+
+  /**
+   * Charges the estimated Cost of a Job for the Request to the Client and queues it. The charge is
+   * refunded if the Job is served from the Cache or fails, as for the items of a batch. The slot of
+   * the Job is reserved atomically, so concurrent submissions never keep more than the maximum.
+   *
+   * @param clientId Client Id.
+   * @param uRequest Canonical Representation of the Request.
+   * @return The queued Job.
+   * @throws AdmissionException If the Client is over its rate.
+   * @throws ScanException If too many Jobs are kept.
+   */
+  public Job submit(String clientId, UserRequest uRequest) throws ScanException {
+    double estimatedCost = this.scanService.getEstimatedCost(uRequest);
+    AdmissionController.Admission admission =
+        this.admissionController.admit(clientId, estimatedCost, 0);
+    if (this.nJobs.incrementAndGet() > this.maxJobs) {
+      this.nJobs.decrementAndGet();
+      admission.refund();
+      throw new ScanException(HttpURLConnection.HTTP_UNAVAILABLE, "Too Many Jobs");
+    }
+    final Job job =
+        new Job(UUID.randomUUID().toString(), clientId, admission, uRequest, estimatedCost);
+    job.task =
+        new Runnable() {
+          @Override
+          public void run() {
+            runJob(job);
+          }
+        };
+    this.jobs.put(job.id, job);
+    this.executor.execute(job.task);
+    return job;
+  }
+
+  /**
+   * Gets a Job that has not been fetched nor expired.
+   *
+   * @param id Job Id.
+   * @return The Job, or null if it is unknown.
+   */
+  public Job get(String id) {
+    return this.jobs.get(id);
+  }
+
+  /**
+   * Gets the Image of a finished Job and forgets the Job.
+   *
+   * @param id Job Id.
+   * @return Image of the Job, or null if the Job is unknown or has not finished successfully.
+   */
+  public ScanService.Result fetch(String id) {
+    Job job = this.jobs.get(id);
+    if (job == null || job.state != State.DONE) return null;
+    this.forget(job);
+    return job.result;
+  }
+
+  /** Forgets a Job, freeing its slot unless it was already forgotten. */
+  private void forget(Job job) {
+    if (this.jobs.remove(job.id, job)) this.nJobs.decrementAndGet();
+  }
+
+  /**
+   * Gets the number of queued Jobs ahead of the given one.
+   *
+   * @param job Queued Job.
+   * @return Queue Position, starting at 0, or -1 if the Job is no longer queued.
+   */
+  public int getQueuePosition(Job job) {
+    int position = 0;
+    for (Runnable task : this.executor.getQueue()) {
+      if (task == job.task) return position;
+      position++;
+    }
+    return -1;
+  }
+
+  private void runJob(final Job job) {
+    AdmissionController.Admission slot;
+    try {
+      slot = this.admissionController.hold(job.clientId, 1);
+    } catch (AdmissionException e) {
+      this.requeue(job, e.getRetryAfter() * 1000);
+      return;
+    }
+    job.state = State.WAITING;
+    try {
+      job.result =
+          this.scanService.scan(
+              job.uRequest,
+              new ScanService.AssignmentListener() {
+                @Override
+                public void onAssigned(ScalingInstance instance) {
+                  job.instanceId = instance.getInstanceId();
+                  job.state = State.RUNNING;
+                }
+              });
+      if (job.result.isFromCache()) job.admission.refund();
+      job.status = HttpURLConnection.HTTP_OK;
+      job.finish(State.DONE);
+    } catch (ScanException e) {
+      job.status = e.getStatus();
+      job.message = e.getMessage();
+      job.admission.refund();
+      job.finish(State.FAILED);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      job.status = HttpURLConnection.HTTP_UNAVAILABLE;
+      job.message = "Interrupted";
+      job.admission.refund();
+      job.finish(State.FAILED);
+    } catch (RuntimeException e) {
+      job.status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+      job.message = e.toString();
+      job.admission.refund();
+      job.finish(State.FAILED);
+    } finally {
+      slot.close();
+    }
+  }
+
+  /**
+   * Queues a Job again after a delay.
+   *
+   * @param job Queued Job.
+   * @param delay Delay in milliseconds.
+   */
+  private void requeue(final Job job, long delay) {
+    this.timer.schedule(
+        new TimerTask() {
+          @Override
+          public void run() {
+            executor.execute(job.task);
+          }
+        },
+        delay);
+  }
+
+  /** Schedules the Timer to forget the finished Jobs whose TTL expired, every minute. */
+  private void schedulePurge() {
+    this.timer.schedule(
+        new TimerTask() {
+          @Override
+          public void run() {
+            long now = System.currentTimeMillis();
+            for (Job job : jobs.values()) {
+              if (job.finishedAt != 0 && job.finishedAt + ttl <= now) forget(job);
+            }
+          }
+        },
+        60000,
+        60000);
+  }
+
+  /** State of a Job. */
+  public enum State {
+    /** Waiting for a free Job slot, or for its Client to be under its concurrency share. */
+    QUEUED,
+    /** Looking up the Cache, or waiting in the LoadBalancer for a free Instance. */
+    WAITING,
+    /** Being scanned by a WebServer Instance. */
+    RUNNING,
+    /** Finished, with its Image ready to be fetched. */
+    DONE,
+    /** Finished without an Image. */
+    FAILED
+  }
+
+  /** Scan submitted as a Job, its State and, once finished, its outcome. */
+  public static class Job {
+
+    private final String id;
+    private final String clientId;
+    private final AdmissionController.Admission admission;
+    private final UserRequest uRequest;
+    private final double estimatedCost;
+    private final long submittedAt;
+    private volatile State state;
+    private volatile String instanceId;
+    private volatile ScanService.Result result;
+    private volatile int status;
+    private volatile String message;
+    private volatile long finishedAt;
+    private Runnable task;
+
+    private Job(
+        String id,
+        String clientId,
+        AdmissionController.Admission admission,
+        UserRequest uRequest,
+        double estimatedCost) {
+      this.id = id;
+      this.clientId = clientId;
+      this.admission = admission;
+      this.uRequest = uRequest;
+      this.estimatedCost = estimatedCost;
+      this.submittedAt = System.currentTimeMillis();
+      this.state = State.QUEUED;
+    }
+
+    private void finish(State state) {
+      this.finishedAt = System.currentTimeMillis();
+      this.state = state;
+    }
+
+    public String getId() {
+      return this.id;
+    }
+
+    public State getState() {
+      return this.state;
+    }
+
+    public int getStatus() {
+      return this.status;
+    }
+
+    /**
+     * Gets the Job State as a JSON object.
+     *
+     * @param queuePosition Number of queued Jobs ahead of this one, or -1 to leave it out.
+     * @return Job State in JSON.
+     */
+    public String toJson(int queuePosition) {
+      StringBuilder json = new StringBuilder();
+      json.append(
+          String.format(
+              Locale.ROOT,
+              "{\"id\":\"%s\",\"state\":\"%s\",\"estimatedCost\":%.1f,\"submittedAt\":%d",
+              this.id, this.state, this.estimatedCost, this.submittedAt));
+      if (queuePosition >= 0) json.append(String.format(",\"queuePosition\":%d", queuePosition));
+      if (this.instanceId != null) {
+        json.append(String.format(",\"instance\":\"%s\"", escape(this.instanceId)));
+      }
+      if (this.finishedAt != 0) {
+        json.append(
+            String.format(
+                ",\"status\":%d,\"elapsed\":%d", this.status, this.finishedAt - this.submittedAt));
+      }
+      if (this.message != null) {
+        json.append(String.format(",\"error\":\"%s\"", escape(this.message)));
+      }
+      return json.append("}").toString();
+    }
+
+    /**
+     * Escapes a String for a JSON string literal: quotes, backslashes and control characters.
+     *
+     * @param value String to escape.
+     * @return Escaped String.
+     */
+    private static String escape(String value) {
+      StringBuilder escaped = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+          case '"':
+            escaped.append("\\\"");
+            break;
+          case '\\':
+            escaped.append("\\\\");
+            break;
+          case '\n':
+            escaped.append("\\n");
+            break;
+          case '\r':
+            escaped.append("\\r");
+            break;
+          case '\t':
+            escaped.append("\\t");
+            break;
+          default:
+            if (c < 0x20) escaped.append(String.format("\\u%04x", (int) c));
+            else escaped.append(c);
+        }
+      }
+      return escaped.toString();
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.io.IOUtils;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Handles the Batch Requests that LoadBalancer receives from Clients: a POST whose body holds one
+ * Scan Query per line. The Scans are run in parallel through the ScanService, cheapest estimated
+ * Cost first, so that they spread across the WebServers and the first results arrive early. The
+ * response is a multipart/mixed stream with one part per Scan, in completion order. Each part
+ * reports the position of its Query in the batch and its own HTTP Status, so that a failed Scan
+ * does not fail the others.
+ */
+public class LBBatchHandler implements HttpHandler {
+
+  private static final String BOUNDARY = "radar-scanner-batch";
+  private final ScanService scanService;
+  private final AdmissionController admissionController;
+  private final ExecutorService executor;
+  private final int maxBatchSize;
+  private final int parallelism;
+
+  /**
+   * Creates a LBBatchHandler.
+   *
+   * @param scanService Service that obtains the Image of each Scan.
+   * @param admissionController Controller that charges the batch to its Client.
+   * @param maxBatchSize Maximum number of Queries in a batch.
+   * @param parallelism Maximum number of Scans of the same batch in flight.
+   */
+  public LBBatchHandler(
+      ScanService scanService,
+      AdmissionController admissionController,
+      int maxBatchSize,
+      int parallelism) {
+    this.scanService = scanService;
+    this.admissionController = admissionController;
+    this.executor = Executors.newCachedThreadPool();
+    this.maxBatchSize = maxBatchSize;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Reads the Queries of the batch, runs their Scans and streams back each result as soon as it
+   * completes. Responds with 400 if the batch is empty or too large, and with 405 if it is not a
+   * POST. The whole batch is charged to its Client up front, holding as many concurrency slots as
+   * Scans in flight, at most the Client share, and responds with 429 if the Client is over its
+   * limits. Scans that fail or are
+   * answered from the Cache are refunded.
+   *
+   * @param t Encapsulates an HTTP Request.
+   */
+  @Override
+  public void handle(final HttpExchange t) throws IOException {
+    if (!"POST".equalsIgnoreCase(t.getRequestMethod())) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+      t.close();
+      return;
+    }
+    List<String> queries = new ArrayList<>();
+    for (String line : IOUtils.toString(t.getRequestBody(), StandardCharsets.UTF_8).split("\n")) {
+      String query = line.trim();
+      if (query.startsWith("/scan?")) query = query.substring("/scan?".length());
+      if (!query.isEmpty()) queries.add(query);
+    }
+    if (queries.isEmpty() || queries.size() > this.maxBatchSize) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+      t.close();
+      return;
+    }
+
+    List<Item> items = new ArrayList<>();
+    List<Integer> invalid = new ArrayList<>();
+    double estimatedCost = 0;
+    for (int i = 0; i < queries.size(); i++) {
+      UserRequest uRequest = UserRequest.parseFromQuery(queries.get(i));
+      if (uRequest == null) {
+        invalid.add(i);
+      } else {
+        Item item = new Item(i, uRequest, this.scanService.getEstimatedCost(uRequest));
+        estimatedCost += item.estimatedCost;
+        items.add(item);
+      }
+    }
+    AdmissionController.Admission admission;
+    try {
+      admission =
+          this.admissionController.admit(
+              this.admissionController.clientOf(t),
+              estimatedCost,
+              Math.min(this.parallelism, Math.max(1, items.size())));
+    } catch (AdmissionException e) {
+      LBScanHandler.sendRejection(t, e);
+      return;
+    }
+
+    Collections.sort(items);
+    CompletionService<Item> completion = new ExecutorCompletionService<>(this.executor);
+    List<Future<Item>> futures = new ArrayList<>();
+    Iterator<Item> pending = items.iterator();
+    try (AdmissionController.Admission held = admission;
+        OutputStream os = t.getResponseBody()) {
+      t.getResponseHeaders().add("Content-Type", "multipart/mixed; boundary=" + BOUNDARY);
+      t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+      t.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+      for (int i : invalid) {
+        writeFailure(os, i, queries.get(i), HttpURLConnection.HTTP_BAD_REQUEST, "Invalid Query");
+      }
+      for (int i = 0; i < held.getSlots() && pending.hasNext(); i++) {
+        futures.add(completion.submit(this.newScan(pending.next())));
+      }
+      for (int done = 0; done < items.size(); done++) {
+        Item item = completion.take().get();
+        if (pending.hasNext()) futures.add(completion.submit(this.newScan(pending.next())));
+        if (item.result == null || item.result.isFromCache()) held.refund(item.estimatedCost);
+        if (item.result != null) {
+          writeImage(os, item);
+        } else {
+          writeFailure(os, item.index, item.uRequest.toQuery(), item.status, item.message);
+        }
+      }
+      os.write(String.format("--%s--\r\n", BOUNDARY).getBytes(StandardCharsets.US_ASCII));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<Item> future : futures) future.cancel(true);
+    }
+  }
+
+  /** Creates the task that runs the Scan of an item and records its outcome in it. */
+  private Callable<Item> newScan(final Item item) {
+    return new Callable<Item>() {
+      @Override
+      public Item call() {
+        try {
+          item.result = scanService.scan(item.uRequest);
+        } catch (ScanException e) {
+          item.status = e.getStatus();
+          item.message = e.getMessage();
+        } catch (InterruptedException e) {
+          item.status = HttpURLConnection.HTTP_UNAVAILABLE;
+          item.message = "Interrupted";
+        } catch (RuntimeException e) {
+          item.status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+          item.message = e.toString();
+        }
+        return item;
+      }
+    };
+  }
+
+  private static void writeImage(OutputStream os, Item item) throws IOException {
+    ByteBuffer image = item.result.getImage();
+    StringBuilder headers = new StringBuilder();
+    for (Map.Entry<String, String> header : item.result.getHeaders().entrySet()) {
+      headers.append(String.format("%s: %s\r\n", header.getKey(), header.getValue()));
+    }
+    writePartHeaders(
+        os,
+        item.index,
+        item.uRequest.toQuery(),
+        HttpURLConnection.HTTP_OK,
+        "image/png",
+        image.remaining(),
+        headers.toString());
+    Channels.newChannel(os).write(image);
+    os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    os.flush();
+  }
+
+  private static void writeFailure(
+      OutputStream os, int index, String query, int status, String message) throws IOException {
+    byte[] body = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+    writePartHeaders(os, index, query, status, "text/plain; charset=utf-8", body.length, "");
+    os.write(body);
+    os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    os.flush();
+  }
+
+  private static void writePartHeaders(
+      OutputStream os,
+      int index,
+      String query,
+      int status,
+      String contentType,
+      int length,
+      String extraHeaders)
+      throws IOException {
+    String headers =
+        String.format(
+            "--%s\r\nContent-Type: %s\r\nContent-Length: %d\r\nX-Batch-Index: %d\r\n"
+                + "X-Batch-Status: %d\r\nX-Batch-Query: %s\r\n%s\r\n",
+            BOUNDARY, contentType, length, index, status, query, extraHeaders);
+    os.write(headers.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Scan of a batch, ordered by estimated Cost, and its outcome. */
+  private static class Item implements Comparable<Item> {
+
+    private final int index;
+    private final UserRequest uRequest;
+    private final double estimatedCost;
+    private ScanService.Result result;
+    private int status;
+    private String message;
+
+    private Item(int index, UserRequest uRequest, double estimatedCost) {
+      this.index = index;
+      this.uRequest = uRequest;
+      this.estimatedCost = estimatedCost;
+    }
+
+    @Override
+    public int compareTo(Item other) {
+      return Double.compare(this.estimatedCost, other.estimatedCost);
+    }
+  }
+}
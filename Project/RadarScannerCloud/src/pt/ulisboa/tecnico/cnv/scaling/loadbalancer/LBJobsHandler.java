@@ -0,0 +1,144 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.commons.io.IOUtils;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Handles the Job Requests that LoadBalancer receives from Clients:
+ *
+ * <ul>
+ *   <li>POST /jobs?(Scan Query), or with the Scan Query as body, submits a Job and responds with
+ *       202, its Id, estimated Cost and Queue Position.
+ *   <li>GET /jobs/(Id) responds with the Job State.
+ *   <li>GET /jobs/(Id)/result responds with the Image once the Job is done, and forgets the Job. A
+ *       Job that is still running is reported with 202, and a failed one with its own Status.
+ * </ul>
+ *
+ * <p>Submitting a Job charges its estimated Cost to the Client, which is rejected with 429 if it is
+ * over its rate, and refunded if the Job is served from the Cache or fails. A running Job holds a
+ * concurrency slot of its Client, as the JobManager shares the concurrency with the other Requests.
+ */
+public class LBJobsHandler implements HttpHandler {
+
+  private static final String PREFIX = "/jobs";
+  private final JobManager jobManager;
+  private final AdmissionController admissionController;
+
+  public LBJobsHandler(JobManager jobManager, AdmissionController admissionController) {
+    this.jobManager = jobManager;
+    this.admissionController = admissionController;
+  }
+
+  /**
+   * Submits a Job, or responds with the State or the Image of a Job, depending on the method and
+   * path of the Request. Responds with 404 if neither matches.
+   *
+   * @param t Encapsulates an HTTP Request.
+   */
+  @Override
+  public void handle(final HttpExchange t) throws IOException {
+    String path = t.getRequestURI().getPath();
+    String[] parts = path.substring(Math.min(path.length(), PREFIX.length())).split("/");
+
+    if ("POST".equalsIgnoreCase(t.getRequestMethod()) && parts.length <= 1) {
+      this.submit(t);
+    } else if ("GET".equalsIgnoreCase(t.getRequestMethod()) && parts.length == 2) {
+      this.status(t, parts[1]);
+    } else if ("GET".equalsIgnoreCase(t.getRequestMethod())
+        && parts.length == 3
+        && "result".equals(parts[2])) {
+      this.result(t, parts[1]);
+    } else {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+      t.close();
+    }
+  }
+
+  private void submit(HttpExchange t) throws IOException {
+    String query = t.getRequestURI().getQuery();
+    if (query == null) {
+      query = IOUtils.toString(t.getRequestBody(), StandardCharsets.UTF_8).trim();
+    }
+    UserRequest uRequest = UserRequest.parseFromQuery(query);
+    if (uRequest == null) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+      t.close();
+      return;
+    }
+    JobManager.Job job;
+    try {
+      job = this.jobManager.submit(this.admissionController.clientOf(t), uRequest);
+    } catch (AdmissionException e) {
+      LBScanHandler.sendRejection(t, e);
+      return;
+    } catch (ScanException e) {
+      t.sendResponseHeaders(e.getStatus(), -1);
+      t.close();
+      return;
+    }
+    t.getResponseHeaders().add("Location", String.format("%s/%s", PREFIX, job.getId()));
+    int queuePosition = this.jobManager.getQueuePosition(job);
+    sendJson(t, HttpURLConnection.HTTP_ACCEPTED, job.toJson(queuePosition));
+  }
+
+  private void status(HttpExchange t, String id) throws IOException {
+    JobManager.Job job = this.jobManager.get(id);
+    if (job == null) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+      t.close();
+      return;
+    }
+    sendJson(t, HttpURLConnection.HTTP_OK, job.toJson(this.jobManager.getQueuePosition(job)));
+  }
+
+  private void result(HttpExchange t, String id) throws IOException {
+    JobManager.Job job = this.jobManager.get(id);
+    if (job == null) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+      t.close();
+      return;
+    }
+    if (job.getState() == JobManager.State.FAILED) {
+      sendJson(t, job.getStatus(), job.toJson(-1));
+      return;
+    }
+    ScanService.Result result = this.jobManager.fetch(id);
+    if (result == null) {
+      int queuePosition = this.jobManager.getQueuePosition(job);
+      sendJson(t, HttpURLConnection.HTTP_ACCEPTED, job.toJson(queuePosition));
+      return;
+    }
+
+    final Headers hdrs = t.getResponseHeaders();
+    LBScanHandler.addHeaders(hdrs);
+    for (Map.Entry<String, String> header : result.getHeaders().entrySet()) {
+      hdrs.add(header.getKey(), header.getValue());
+    }
+    ByteBuffer image = result.getImage();
+    t.sendResponseHeaders(HttpURLConnection.HTTP_OK, image.remaining());
+    try (OutputStream os = t.getResponseBody()) {
+      Channels.newChannel(os).write(image);
+    }
+  }
+
+  private static void sendJson(HttpExchange t, int status, String json) throws IOException {
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    t.getResponseHeaders().add("Content-Type", "application/json");
+    t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+    t.sendResponseHeaders(status, body.length);
+    try (OutputStream os = t.getResponseBody()) {
+      os.write(body);
+    }
+  }
+}
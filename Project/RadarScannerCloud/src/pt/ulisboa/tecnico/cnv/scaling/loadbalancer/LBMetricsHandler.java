@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import pt.ulisboa.tecnico.cnv.scaling.ArrivalSeries;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+/** Handles the Metrics Requests, exporting the LoadBalancer metrics in plain text. */
+public class LBMetricsHandler implements HttpHandler {
+
+  private final ResultsCache resultsCache;
+  private final ViewportComposer viewportComposer;
+  private final AdmissionController admissionController;
+  private final ArrivalSeries arrivalSeries;
+
+  public LBMetricsHandler(
+      ResultsCache resultsCache,
+      ViewportComposer viewportComposer,
+      AdmissionController admissionController,
+      ArrivalSeries arrivalSeries) {
+    this.resultsCache = resultsCache;
+    this.viewportComposer = viewportComposer;
+    this.admissionController = admissionController;
+    this.arrivalSeries = arrivalSeries;
+  }
+
+  /**
+   * Responds with one metric per line, in the "name value" format. Arrival rates, the 95th
+   * percentile latency and the peak Queue Depth are taken over the last 10 seconds.
+   *
+   * @param t Encapsulates an HTTP Request.
+   */
+  @Override
+  public void handle(final HttpExchange t) throws IOException {
+    String text =
+        this.resultsCache.toMetrics()
+            + this.viewportComposer.toMetrics()
+            + this.admissionController.toMetrics()
+            + this.arrivalSeries.toMetrics(10);
+    byte[] metrics = text.getBytes(StandardCharsets.UTF_8);
+    t.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+    t.sendResponseHeaders(HttpURLConnection.HTTP_OK, metrics.length);
+    try (OutputStream os = t.getResponseBody()) {
+      os.write(metrics);
+    }
+  }
+}
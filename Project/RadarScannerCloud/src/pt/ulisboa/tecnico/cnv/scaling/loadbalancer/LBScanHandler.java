@@ -4,90 +4,149 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.apache.commons.io.IOUtils;
-import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.ResponseHeaders;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Map;
-import java.util.logging.Level;
 
 /** Handles the Scan Requests that LoadBalancer receives from Clients. */
 public class LBScanHandler implements HttpHandler {
 
-  private final LoadBalancer loadBalancer;
+  private final ScanService scanService;
+  private final AdmissionController admissionController;
 
-  public LBScanHandler(Map<String, ScalingInstance> instances, Level level) {
-    this.loadBalancer = new LoadBalancer(instances, level);
+  public LBScanHandler(ScanService scanService, AdmissionController admissionController) {
+    this.scanService = scanService;
+    this.admissionController = admissionController;
   }
 
   /**
-   * Extracts the Request Query, converts it in the LoadBalancer Representation of a Request, and
-   * calls the Auxiliary Method: sendRequest.
+   * Extracts the Request Query, converts it in the canonical Representation of a Request, and
+   * responds with the Image that the ScanService obtains for it: from the ResultsCache, composed
+   * from cached Images, or from the WebServer that the LoadBalancer chooses, streamed as it arrives
+   * when the ResultsCache is disabled. If the Request cannot be queued or waits too long, responds
+   * with 503. If the Client is over its rate or its share of the concurrency, responds right away
+   * with 429 and a Retry-After Header.
    *
    * @param t Encapsulates an HTTP Request.
    */
   @Override
   public void handle(final HttpExchange t) throws IOException {
 
-    final String query = t.getRequestURI().getQuery();
-
-    UserRequest uRequest = UserRequest.parseFromQuery(query);
+    UserRequest uRequest = UserRequest.parseFromQuery(t.getRequestURI().getQuery());
     if (uRequest == null) {
       t.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, 0);
       t.close();
       return;
     }
-    this.sendRequest(t, query, uRequest);
+    if (this.scanService.canStream()) {
+      this.stream(t, uRequest);
+      return;
+    }
+
+    ScanService.Result result;
+    try (AdmissionController.Admission admission =
+        this.admissionController.admit(
+            this.admissionController.clientOf(t), this.scanService.getEstimatedCost(uRequest), 1)) {
+      result = this.scanService.scan(uRequest);
+      if (result.isFromCache()) admission.refund();
+    } catch (AdmissionException e) {
+      sendRejection(t, e);
+      return;
+    } catch (ScanException e) {
+      t.sendResponseHeaders(e.getStatus(), 0);
+      t.close();
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      t.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, 0);
+      t.close();
+      return;
+    }
+
+    final Headers hdrs = t.getResponseHeaders();
+    addHeaders(hdrs);
+    for (Map.Entry<String, String> header : result.getHeaders().entrySet()) {
+      hdrs.add(header.getKey(), header.getValue());
+    }
+    ByteBuffer image = result.getImage();
+    t.sendResponseHeaders(HttpURLConnection.HTTP_OK, image.remaining());
+    try (OutputStream os = t.getResponseBody()) {
+      Channels.newChannel(os).write(image);
+    }
   }
 
   /**
-   * Forwards the Incoming Request to the WebServer that has the lowest associated Cost and adds the
-   * estimated Cost of the Request to it. When the WebServer responds, it responds to the Client
-   * with the Image that the WebServer returned and removes the Cost associated with the Request
-   * from the WebServer to which it forwarded the Request.
+   * Responds with the Image that the WebServer chosen by the LoadBalancer sends, as it arrives.
    *
    * @param t Encapsulates an HTTP Request.
-   * @param query Incoming Request Query.
-   * @param uRequest LoadBalancer Representation of the Incoming Request.
+   * @param uRequest Canonical Representation of the Request.
    */
-  private void sendRequest(HttpExchange t, String query, UserRequest uRequest) throws IOException {
-    Map.Entry<ScalingInstance, Double> instanceRequestCost =
-        loadBalancer.onReceiveRequest(uRequest);
-    if (instanceRequestCost == null) {
-      t.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, 0);
-      t.close();
+  private void stream(final HttpExchange t, UserRequest uRequest) throws IOException {
+    AdmissionController.Admission admission;
+    try {
+      admission =
+          this.admissionController.admit(
+              this.admissionController.clientOf(t), this.scanService.getEstimatedCost(uRequest), 1);
+    } catch (AdmissionException e) {
+      sendRejection(t, e);
       return;
     }
-    String instanceDns = instanceRequestCost.getKey().getPublicDnsName();
-    String URL = String.format("http://%s:%d/scan?%s", instanceDns, 8000, query);
     try {
-      this.forwardRequest(t, URL);
-      loadBalancer.onInstanceSuccess(query, instanceRequestCost);
-    } catch (IOException e) {
-      loadBalancer.onInstanceFailure(instanceRequestCost);
-      this.sendRequest(t, query, uRequest);
+      this.scanService.stream(
+          uRequest,
+          new ScanService.ImageSink() {
+            @Override
+            public void send(Map<String, String> headers, long length, InputStream image)
+                throws IOException {
+              Headers hdrs = t.getResponseHeaders();
+              addHeaders(hdrs);
+              for (Map.Entry<String, String> header : headers.entrySet()) {
+                hdrs.add(header.getKey(), header.getValue());
+              }
+              t.sendResponseHeaders(HttpURLConnection.HTTP_OK, Math.max(0, length));
+              try (OutputStream os = t.getResponseBody()) {
+                IOUtils.copy(image, os);
+              }
+            }
+          });
+    } catch (ScanException e) {
+      if (t.getResponseCode() == -1) t.sendResponseHeaders(e.getStatus(), 0);
+      t.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      t.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, 0);
+      t.close();
+    } finally {
+      admission.close();
     }
   }
 
   /**
-   * Forwards the Incoming Request to the WebServer with the URL provided.
+   * Responds to a Request rejected by the AdmissionController.
    *
    * @param t Encapsulates an HTTP Request.
-   * @param URL WebServer URL that has the lowest associated Cost.
+   * @param e Reason of the rejection.
    */
-  private void forwardRequest(HttpExchange t, String URL) throws IOException {
-    HttpURLConnection con = (HttpURLConnection) new URL(URL).openConnection();
-    con.setRequestMethod("GET");
-
-    if (con.getResponseCode() != HttpURLConnection.HTTP_OK) throw new IOException();
-    final InputStream is = con.getInputStream();
-    final OutputStream os = t.getResponseBody();
-
-    final Headers hdrs = t.getResponseHeaders();
+  static void sendRejection(HttpExchange t, AdmissionException e) throws IOException {
+    t.getResponseHeaders().add("Retry-After", String.valueOf(e.getRetryAfter()));
+    t.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+    t.sendResponseHeaders(e.getStatus(), -1);
+    t.close();
+  }
 
+  /**
+   * Adds the Content-Type and CORS Headers of an Image response.
+   *
+   * @param hdrs Response Headers.
+   */
+  static void addHeaders(Headers hdrs) {
     hdrs.add("Content-Type", "image/png");
     hdrs.add("Access-Control-Allow-Origin", "*");
     hdrs.add("Access-Control-Allow-Credentials", "true");
@@ -95,8 +154,10 @@ public class LBScanHandler implements HttpHandler {
     hdrs.add(
         "Access-Control-Allow-Headers",
         "Origin, Accept, X-Requested-With, Content-Type, Access-Control-Request-Method, Access-Control-Request-Headers");
-
-    t.sendResponseHeaders(HttpURLConnection.HTTP_OK, con.getContentLength());
-    IOUtils.copy(is, os);
+    hdrs.add(
+        "Access-Control-Expose-Headers",
+        String.format(
+            "%s, %s, %s",
+            ResponseHeaders.CACHE, ResponseHeaders.SOLVE_TIME, ResponseHeaders.ENCODE_TIME));
   }
 }
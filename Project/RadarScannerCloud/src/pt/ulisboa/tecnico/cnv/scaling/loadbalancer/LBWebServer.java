@@ -1,7 +1,9 @@
 package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
 
 import com.sun.net.httpserver.HttpServer;
+import pt.ulisboa.tecnico.cnv.scaling.ArrivalSeries;
 import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.Environment;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -14,13 +16,27 @@ public class LBWebServer implements Runnable {
 
   private final Level level;
   private final Map<String, ScalingInstance> instances;
+  private final ArrivalSeries arrivalSeries;
 
-  public LBWebServer(Map<String, ScalingInstance> instances, Level level) {
+  public LBWebServer(
+      Map<String, ScalingInstance> instances, ArrivalSeries arrivalSeries, Level level) {
     this.level = level;
     this.instances = instances;
+    this.arrivalSeries = arrivalSeries;
   }
 
-  /** Creates the LoadBalancer WebServer and its handler: LBScanHandler. */
+  /**
+   * Creates the LoadBalancer WebServer and its handlers: LBScanHandler, LBBatchHandler and
+   * LBJobsHandler, which obtain the Images through a shared ScanService, and LBMetricsHandler. A
+   * batch holds up to LB_BATCH_MAX Queries, of which LB_BATCH_PARALLELISM are scanned at a time.
+   * Up to LB_JOBS_PARALLELISM Jobs run at a time, at most LB_JOBS_MAX Jobs are kept, and finished
+   * ones are kept for LB_JOBS_TTL milliseconds. The ScanService holds a ResultsCache of
+   * LB_RESULTS_CACHE_BYTES (Images expire after LB_RESULTS_TTL milliseconds, and are kept off-heap
+   * if LB_RESULTS_OFF_HEAP is true), and composes Images from cached ViewPorts for the Strategies
+   * listed in LB_VIEWPORT_REUSE. Each Client may spend LB_CLIENT_RATE of estimated Cost per
+   * second, in bursts of up to LB_CLIENT_BURST, and the Clients share LB_ADMISSION_CONCURRENCY
+   * Requests in flight.
+   */
   @Override
   public void run() {
 
@@ -32,7 +48,52 @@ public class LBWebServer implements Runnable {
       return;
     }
 
-    server.createContext("/scan", new LBScanHandler(this.instances, this.level));
+    ResultsCache resultsCache =
+        new ResultsCache(
+            Environment.getLong("LB_RESULTS_CACHE_BYTES", 64L * 1024 * 1024),
+            Environment.getLong("LB_RESULTS_TTL", 300000),
+            Environment.getLong("LB_RESULTS_COALESCE_TIMEOUT", 60000),
+            Environment.getBoolean("LB_RESULTS_OFF_HEAP", false));
+    ViewportComposer viewportComposer =
+        new ViewportComposer(
+            ViewportComposer.parseStrategies(Environment.getString("LB_VIEWPORT_REUSE", "")),
+            resultsCache,
+            Environment.getDouble("LB_VIEWPORT_STITCH_FRACTION", 0.5));
+    ScanService scanService =
+        new ScanService(
+            new LoadBalancer(this.instances, this.arrivalSeries, this.level),
+            resultsCache,
+            viewportComposer,
+            Environment.getInt("LB_MAX_ATTEMPTS", 3));
+    AdmissionController admissionController =
+        new AdmissionController(
+            Environment.getDouble("LB_CLIENT_RATE", 2000000),
+            Environment.getDouble("LB_CLIENT_BURST", 20000000),
+            Environment.getDouble("LB_CLIENT_MIN_COST", 10000),
+            Environment.getInt("LB_ADMISSION_CONCURRENCY", 64),
+            Environment.getBoolean("LB_TRUST_CLIENT_ID", false));
+    server.createContext("/scan", new LBScanHandler(scanService, admissionController));
+    server.createContext(
+        "/batch",
+        new LBBatchHandler(
+            scanService,
+            admissionController,
+            Environment.getInt("LB_BATCH_MAX", 100),
+            Environment.getInt("LB_BATCH_PARALLELISM", 8)));
+    server.createContext(
+        "/jobs",
+        new LBJobsHandler(
+            new JobManager(
+                scanService,
+                admissionController,
+                Environment.getInt("LB_JOBS_PARALLELISM", 16),
+                Environment.getInt("LB_JOBS_MAX", 1000),
+                Environment.getLong("LB_JOBS_TTL", 600000)),
+            admissionController));
+    server.createContext(
+        "/metrics",
+        new LBMetricsHandler(
+            resultsCache, viewportComposer, admissionController, this.arrivalSeries));
     server.setExecutor(Executors.newCachedThreadPool());
     server.start();
     System.out.println(server.getAddress().toString());
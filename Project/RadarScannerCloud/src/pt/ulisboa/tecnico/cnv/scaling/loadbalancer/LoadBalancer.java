@@ -1,12 +1,19 @@
 package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
 
+import pt.ulisboa.tecnico.cnv.scaling.ArrivalSeries;
+import pt.ulisboa.tecnico.cnv.scaling.HealthCheck;
 import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing.RoutingPolicy;
+import pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing.RoutingPolicyFactory;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.Environment;
 import pt.ulisboa.tecnico.cnv.util.LoggerFormatter;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
 
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,69 +22,235 @@ import java.util.logging.Logger;
 public class LoadBalancer {
 
   public static final Integer CAPACITY = 1000;
+  private static final long CLOCK_SKEW = 60000;
   private static final Logger logger = Logger.getLogger(LoadBalancer.class.getName());
   private final Set<String> queries;
   private final UserRequestsCosts uRequestsCosts;
+  private final CostsSnapshot snapshot;
   private final MSS mss;
   private final Map<String, ScalingInstance> instances;
+  private final ArrivalSeries arrivalSeries;
+  private final DispatchQueue dispatchQueue;
+  private final RoutingPolicy routingPolicy;
+  private final int maxConcurrent;
 
-  public LoadBalancer(Map<String, ScalingInstance> instances, Level level) {
+  public LoadBalancer(
+      Map<String, ScalingInstance> instances, ArrivalSeries arrivalSeries, Level level) {
     logger.setLevel(level);
     logger.setUseParentHandlers(false);
     ConsoleHandler loggerHandler = new ConsoleHandler();
     loggerHandler.setFormatter(new LoggerFormatter());
     logger.addHandler(loggerHandler);
-    this.queries = new HashSet<>();
-    this.uRequestsCosts = new UserRequestsCosts();
+    this.queries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.uRequestsCosts =
+        new UserRequestsCosts(
+            Environment.getLong("LB_CACHE_CAPACITY", CAPACITY),
+            UserRequestsCosts.CapacityUnit.parse(Environment.getString("LB_CACHE_UNIT", "ENTRIES")),
+            Environment.getDouble("LB_COST_QUANTILE", 0.95));
+    this.snapshot =
+        new CostsSnapshot(Paths.get(Environment.getString("LB_SNAPSHOT_FILE", "costs.snapshot")));
     this.mss = new MSS();
     this.instances = instances;
-    this.fetchWithoutFilter();
+    this.arrivalSeries = arrivalSeries;
+    this.maxConcurrent = Environment.getInt("LB_MAX_CONCURRENT", 4);
+    this.routingPolicy = RoutingPolicyFactory.fromEnvironment();
+    this.dispatchQueue =
+        new DispatchQueue(
+            new DispatchQueue.Selector() {
+              @Override
+              public ScalingInstance select(UserRequest uRequest, double estimatedCost) {
+                return selectInstance(uRequest, estimatedCost);
+              }
+            },
+            Environment.getInt("LB_QUEUE_CAPACITY", 100),
+            Environment.getLong("LB_QUEUE_TIMEOUT", 60000),
+            Environment.getDouble("LB_QUEUE_AGING", 100000));
+    this.warmStart();
     this.newTimer();
+    this.newSnapshotTimer();
+  }
+
+  /**
+   * Loads the Costs from the local Snapshot, so that the LoadBalancer routes with the knowledge it
+   * had before restarting, and reconciles them with the MSS in the background: the Costs of the
+   * Requests in the Snapshot are fetched again, along with those of the Requests that got a Cost
+   * since the Snapshot was created, allowing for some clock skew. Without a Snapshot, or with one
+   * older than LB_SNAPSHOT_MAX_AGE milliseconds, it falls back to obtaining a predefined capacity
+   * of Costs from the MSS.
+   */
+  private void warmStart() {
+    long start = System.nanoTime();
+    final CostsSnapshot.Contents contents = this.snapshot.load();
+    final Map<UserRequest, CostStatistics> uRequestsCostsMap = contents.getURequestsCosts();
+    if (uRequestsCostsMap.isEmpty()) {
+      this.fetchWithoutFilter();
+      return;
+    }
+    if (contents.getAge() > Environment.getLong("LB_SNAPSHOT_MAX_AGE", 3600000)) {
+      logger.warning(
+          String.format("Snapshot Discarded as Stale: %d s Old", contents.getAge() / 1000));
+      this.fetchWithoutFilter();
+      return;
+    }
+    this.uRequestsCosts.putAll(uRequestsCostsMap);
+    logger.info(
+        String.format(
+            "User Requests Loaded from Snapshot: %d in %.1f ms",
+            uRequestsCostsMap.size(), (System.nanoTime() - start) / 1e6));
+
+    Thread reconcileThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                List<String> queries = new ArrayList<>();
+                for (UserRequest uRequest : uRequestsCostsMap.keySet()) {
+                  queries.add(uRequest.toQuery());
+                }
+                Map<UserRequest, CostStatistics> fetched = mss.fetchByQueries(queries);
+                Map<UserRequest, CostStatistics> updated =
+                    mss.fetchUpdatedSince(contents.getCreatedAt() - CLOCK_SKEW);
+                logger.info(
+                    String.format(
+                        "User Requests Reconciled: %d, and %d Updated since the Snapshot",
+                        fetched.size(), updated.size()));
+                uRequestsCosts.putAll(fetched);
+                uRequestsCosts.putAll(updated);
+              }
+            });
+    reconcileThread.setDaemon(true);
+    reconcileThread.start();
+  }
+
+  /** Writes the Costs currently in the Cache to the local Snapshot. */
+  private void saveSnapshot() {
+    try {
+      this.snapshot.save(this.uRequestsCosts.entries());
+    } catch (IOException e) {
+      logger.warning(String.format("Unable to Save Snapshot %s: %s", this.snapshot.getPath(), e));
+    }
+  }
+
+  /**
+   * Creates a Timer that periodically saves the Cache to the local Snapshot, which is also saved
+   * when the LoadBalancer shuts down.
+   */
+  private void newSnapshotTimer() {
+    long period = Environment.getLong("LB_SNAPSHOT_PERIOD", 60000);
+    new Timer(true)
+        .schedule(
+            new TimerTask() {
+              @Override
+              public void run() {
+                saveSnapshot();
+              }
+            },
+            period,
+            period);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    saveSnapshot();
+                  }
+                }));
   }
 
   /** Obtains a predefined capacity of Costs associated with its Requests. */
   private void fetchWithoutFilter() {
-    Map<UserRequest, Double> uRequestsCostsMap = this.mss.fetchWithoutFilter();
+    Map<UserRequest, CostStatistics> uRequestsCostsMap = this.mss.fetchWithoutFilter();
     logger.info(String.format("User Requests Fetched: %d", uRequestsCostsMap.size()));
     this.uRequestsCosts.putAll(uRequestsCostsMap);
   }
 
   /**
-   * Gets the Costs associated with the most recently received Requests. Place them in the Cache.
+   * Gets the Costs associated with the most recently received Requests, looking them up by their
+   * Queries. Place them in the Cache.
    */
-  private void fetchWithFilter() {
-    Map<UserRequest, Double> uRequestsCostsMap = this.mss.fetchWithFilter(this.queries);
-    this.queries.clear();
+  private void fetchRecent() {
+    Set<String> recentQueries = new HashSet<>(this.queries);
+    this.queries.removeAll(recentQueries);
+    if (recentQueries.isEmpty()) return;
+    Map<UserRequest, CostStatistics> uRequestsCostsMap = this.mss.fetchByQueries(recentQueries);
     logger.info(String.format("User Requests Fetched: %d", uRequestsCostsMap.size()));
     this.uRequestsCosts.putAll(uRequestsCostsMap);
+    logger.info(this.uRequestsCosts.toString());
   }
 
   /**
-   * Gets the estimated Cost of the Incoming Request and the WebServer Instance that has the lowest
-   * associated Cost, and adds the estimated Cost to it.
+   * Gets the estimated Cost of the Incoming Request and the WebServer Instance chosen by the
+   * RoutingPolicy, and adds the estimated Cost to it. When every healthy Instance is already
+   * serving its maximum number of Requests, the Request waits in the DispatchQueue, where cheaper
+   * Requests are released first. Every Request, including retries, is recorded in the
+   * ArrivalSeries from which the AutoScaler forecasts the demand, along with the depth of the
+   * DispatchQueue it finds and the time it waited there, which the AutoScaler tracks.
    *
    * @param uRequest Incoming Request.
-   * @return Instance of the WebServer that has the lowest associated Cost and the estimated Cost of
-   *     the Incoming Request.
+   * @return Instance of the WebServer chosen to serve the Request and the estimated Cost of the
+   *     Incoming Request, or null if the Request could not be queued or waited too long.
    */
-  public synchronized Map.Entry<ScalingInstance, Double> onReceiveRequest(UserRequest uRequest) {
-    double estimatedCost = this.uRequestsCosts.getEstimatedCost(uRequest);
+  public Map.Entry<ScalingInstance, Double> onReceiveRequest(UserRequest uRequest)
+      throws InterruptedException {
+    double estimatedCost = this.getEstimatedCost(uRequest);
     logger.info(String.format("Estimated Cost of %s for the Request: %s", estimatedCost, uRequest));
+    this.arrivalSeries.record(estimatedCost);
+    this.arrivalSeries.recordQueueDepth(this.dispatchQueue.size());
 
-    ScalingInstance minInstance = null;
-    for (ScalingInstance instance : this.instances.values()) {
-      if ((minInstance == null || instance.getCurrentCost() < minInstance.getCurrentCost())
-          && instance.isHealthy()) {
-        minInstance = instance;
-      }
-    }
-    if (minInstance == null) {
+    long start = System.currentTimeMillis();
+    Map.Entry<ScalingInstance, Double> instanceRequestCost =
+        this.dispatchQueue.acquire(uRequest, estimatedCost);
+    this.arrivalSeries.recordQueueDelay(System.currentTimeMillis() - start);
+    if (instanceRequestCost == null) {
       logger.warning("No Instances Available!");
       return null;
     }
-    logger.info(String.format("Redirecting Request to Instance %s", minInstance.getInstanceId()));
-    minInstance.addCost(estimatedCost);
-    return new AbstractMap.SimpleEntry<>(minInstance, estimatedCost);
+    logger.info(
+        String.format(
+            "Redirecting Request to Instance %s", instanceRequestCost.getKey().getInstanceId()));
+    return instanceRequestCost;
+  }
+
+  /**
+   * Gets the estimated Cost of a Request, from the Cache or from the most similar cached Request.
+   *
+   * @param uRequest Incoming Request.
+   * @return Estimated Cost of the Request.
+   */
+  public double getEstimatedCost(UserRequest uRequest) {
+    return this.uRequestsCosts.getEstimatedCost(uRequest);
+  }
+
+  /**
+   * Asks the RoutingPolicy for a WebServer Instance among the healthy, Warm or Serving ones serving
+   * fewer than the maximum number of concurrent Requests per unit of their capacity.
+   *
+   * @param uRequest Incoming Request.
+   * @param estimatedCost Estimated Cost of the Incoming Request.
+   * @return The chosen Instance, or null if none can take the Request right now.
+   */
+  private ScalingInstance selectInstance(UserRequest uRequest, double estimatedCost) {
+    List<ScalingInstance> healthy = new ArrayList<>();
+    List<ScalingInstance> available = new ArrayList<>();
+    for (ScalingInstance instance : this.instances.values()) {
+      if (!instance.isRoutable()) continue;
+      healthy.add(instance);
+      if (instance.getNRequests() < this.maxConcurrent * instance.getCapacity()) {
+        available.add(instance);
+      }
+    }
+    if (available.isEmpty()) return null;
+    Comparator<ScalingInstance> byId =
+        new Comparator<ScalingInstance>() {
+          @Override
+          public int compare(ScalingInstance a, ScalingInstance b) {
+            return a.getInstanceId().compareTo(b.getInstanceId());
+          }
+        };
+    Collections.sort(healthy, byId);
+    Collections.sort(available, byId);
+    return this.routingPolicy.select(uRequest, estimatedCost, healthy, available);
   }
 
   /**
@@ -91,7 +264,10 @@ public class LoadBalancer {
               @Override
               public void run() {
                 healthChecks();
-                fetchWithFilter();
+                dispatchQueue.dispatch();
+                fetchRecent();
+                logger.info(dispatchQueue.toString());
+                logger.info(routingPolicy.toString());
               }
             },
             0,
@@ -101,24 +277,18 @@ public class LoadBalancer {
   /**
    * Performs a Health Check for each running WebServer Instance and records whether it successfully
    * responds to the Health Check or not. Detects an unhealthy Instance, removes it from the
-   * available WebServer instances to respond to Scan Requests.
+   * available WebServer instances to respond to Scan Requests. Instances still being launched, with
+   * no Public DNS Name yet, are skipped. The Requests a WebServer reports in flight beyond the ones
+   * forwarded to it by this LoadBalancer are counted as its untracked load.
    */
   private synchronized void healthChecks() {
     for (ScalingInstance instance : this.instances.values()) {
-      HttpURLConnection con = null;
-      Integer responseCode = null;
-      try {
-        con =
-            (HttpURLConnection)
-                new URL(String.format("http://%s:%d/health", instance.getPublicDnsName(), 8000))
-                    .openConnection();
-        con.setRequestMethod("GET");
-        responseCode = con.getResponseCode();
-      } catch (IOException ignored) {
-      }
-      if (con != null && responseCode != null && responseCode.equals(HttpURLConnection.HTTP_OK)) {
+      String publicDnsName = instance.getPublicDnsName();
+      if (publicDnsName == null || publicDnsName.isEmpty()) continue;
+      Integer nInFlight = HealthCheck.check(publicDnsName, instance.getPort(), 0);
+      if (nInFlight != null) {
         logger.info(String.format("Instance: %s - HealthCheck Succeed!", instance.getInstanceId()));
-        instance.registerHealthyCheck();
+        instance.registerHealthyCheck(nInFlight);
       } else {
         logger.warning(
             String.format("Instance: %s - HealthCheck Failed!", instance.getInstanceId()));
@@ -127,10 +297,46 @@ public class LoadBalancer {
     }
   }
 
+  /**
+   * Removes the estimated Cost of the Incoming Request from the Costs associated with the WebServer
+   * Instance that answered it with an error. The Instance is not penalized, since it did answer,
+   * and the Request is not retried elsewhere, where it would fail the same way. Releases the
+   * queued Requests that can now be served.
+   *
+   * @param instanceRequestCost WebServer Instance that responded to the Incoming Request and its
+   *     estimated Cost.
+   * @param status HTTP Status of the error.
+   */
+  public void onInstanceError(Map.Entry<ScalingInstance, Double> instanceRequestCost, int status) {
+    logger.warning(
+        String.format(
+            "Instance %s Replied with Error %d!",
+            instanceRequestCost.getKey().getInstanceId(), status));
+    instanceRequestCost.getKey().removeCost(instanceRequestCost.getValue());
+    this.dispatchQueue.dispatch();
+  }
+
+  /**
+   * Removes the estimated Cost of the Incoming Request from the Costs associated with the WebServer
+   * Instance whose Image could not be streamed to the Client. The Instance is not penalized, since
+   * the Client may have gone away, and a dead Instance is caught by the Health Checks. Releases the
+   * queued Requests that can now be served.
+   *
+   * @param instanceRequestCost WebServer Instance that responded to the Incoming Request and its
+   *     estimated Cost.
+   */
+  public void onTransferAborted(Map.Entry<ScalingInstance, Double> instanceRequestCost) {
+    logger.warning(
+        String.format(
+            "Transfer from Instance %s Aborted!", instanceRequestCost.getKey().getInstanceId()));
+    instanceRequestCost.getKey().removeCost(instanceRequestCost.getValue());
+    this.dispatchQueue.dispatch();
+  }
+
   /**
    * Removes the estimated Cost of the Incoming Request from the Costs associated with the WebServer
    * Instance from which it was forwarded and records that its forwarding was unsuccessful,
-   * registering it as a failed Health Check.
+   * registering it as a failed Health Check. Releases the queued Requests that can now be served.
    *
    * @param instanceRequestCost WebServer Instance that responded to the Incoming Request and its
    *     estimated Cost.
@@ -141,26 +347,45 @@ public class LoadBalancer {
     ScalingInstance instance = instanceRequestCost.getKey();
     instance.removeCost(instanceRequestCost.getValue());
     instance.registerUnhealthyCheck();
+    this.dispatchQueue.dispatch();
   }
 
   /**
    * Removes the estimated Cost of the Incoming Request from the Costs associated with the WebServer
-   * Instance from which it was forwarded, adds the Request Query to the set of Queries made
-   * recently, which will later be used to fetch the actual Cost that the request imposed on the
-   * Instance and records that its forwarding was successful, registering it as a successful Health
-   * Check.
+   * Instance from which it was forwarded and records that its forwarding was successful,
+   * registering it as a successful Health Check. The Cost measured by the WebServer is added to the
+   * Statistics of the Request in the Cache right away. If the WebServer did not report it, the
+   * Request Query is added to the set of Queries made recently, which will later be used to fetch
+   * the actual Cost from the MSS. The latency of the Request is recorded in the ArrivalSeries, for
+   * the LoadBalancer metrics.
    *
+   * @param uRequest Incoming Request.
+   * @param measuredCost Cost of the Request reported by the WebServer, or null.
    * @param instanceRequestCost WebServer Instance that responded to the Incoming Request and its
    *     estimated Cost.
+   * @param latency Time since the Request arrived, including the time queued and the failed
+   *     attempts, in milliseconds.
    */
   public void onInstanceSuccess(
-      String query, Map.Entry<ScalingInstance, Double> instanceRequestCost) {
+      UserRequest uRequest,
+      Double measuredCost,
+      Map.Entry<ScalingInstance, Double> instanceRequestCost,
+      long latency) {
     logger.info(
         String.format(
             "Instance %s Successfully Replied!", instanceRequestCost.getKey().getInstanceId()));
-    this.queries.add(query);
+    if (measuredCost != null) {
+      this.uRequestsCosts.record(uRequest, measuredCost);
+    } else {
+      this.queries.add(uRequest.toQuery());
+    }
+    this.routingPolicy.onCompleted(
+        uRequest, measuredCost != null ? measuredCost : instanceRequestCost.getValue());
     ScalingInstance instance = instanceRequestCost.getKey();
     instance.removeCost(instanceRequestCost.getValue());
     instance.registerHealthyCheck();
+    instance.registerServedRequest();
+    this.arrivalSeries.recordCompletion(latency);
+    this.dispatchQueue.dispatch();
   }
 }
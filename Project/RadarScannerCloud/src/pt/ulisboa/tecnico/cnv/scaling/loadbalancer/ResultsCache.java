@@ -0,0 +1,298 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the encoded Images returned by the WebServers, keyed by the canonical Request, so that
+ * repeated Scans are answered by the LoadBalancer without reaching any Instance. It is bounded by
+ * the Bytes of the Images it holds and evicts the least recently used ones first, and each Image
+ * expires after the TTL. Images may be kept off-heap, in direct Buffers. Concurrent misses for the
+ * same Request are coalesced: the first one loads the Image, and the others wait for it. Images are
+ * also indexed by their Scan, the Request without its ViewPort, so that the ViewportComposer can
+ * find the ones that overlap a new Request. The index holds the Images themselves, so reading it
+ * leaves the eviction order untouched.
+ */
+public class ResultsCache {
+
+  private final long capacity;
+  private final long ttl;
+  private final long coalesceTimeout;
+  private final boolean offHeap;
+  private final LinkedHashMap<UserRequest, Result> results;
+  private final Map<UserRequest, Map<UserRequest, Result>> byScan;
+  private final ConcurrentHashMap<UserRequest, Loading> loading;
+  private final AtomicLong nHits;
+  private final AtomicLong nMisses;
+  private final AtomicLong nCoalesced;
+  private final AtomicLong bytesSaved;
+  private long nEvictions;
+  private long nExpirations;
+  private long size;
+
+  /**
+   * Creates a ResultsCache.
+   *
+   * @param capacity Maximum Bytes of Images held, or 0 to disable the Cache.
+   * @param ttl Time an Image is served after being cached, in milliseconds.
+   * @param coalesceTimeout Maximum time a Request waits for a concurrent identical one, in
+   *     milliseconds.
+   * @param offHeap True if the Images should be kept in direct Buffers.
+   */
+  public ResultsCache(long capacity, long ttl, long coalesceTimeout, boolean offHeap) {
+    this.capacity = Math.max(0, capacity);
+    this.ttl = ttl;
+    this.coalesceTimeout = coalesceTimeout;
+    this.offHeap = offHeap;
+    this.results = new LinkedHashMap<>(16, 0.75f, true);
+    this.byScan = new HashMap<>();
+    this.loading = new ConcurrentHashMap<>();
+    this.nHits = new AtomicLong();
+    this.nMisses = new AtomicLong();
+    this.nCoalesced = new AtomicLong();
+    this.bytesSaved = new AtomicLong();
+  }
+
+  /**
+   * Gets the cached Image of the Request. On a miss, if an identical Request is already being
+   * loaded by another thread, waits for it. Otherwise, the caller becomes responsible for loading
+   * the Image and must call complete or release.
+   *
+   * @param uRequest Incoming Request.
+   * @return Read-only Buffer with the Image, or null on a miss.
+   */
+  public ByteBuffer lookup(UserRequest uRequest) throws InterruptedException {
+    if (this.capacity == 0) return null;
+
+    boolean waited = false;
+    long deadline = System.currentTimeMillis() + this.coalesceTimeout;
+    while (true) {
+      ByteBuffer image = this.get(uRequest);
+      if (image != null) {
+        this.nHits.incrementAndGet();
+        if (waited) this.nCoalesced.incrementAndGet();
+        this.bytesSaved.addAndGet(image.remaining());
+        return image;
+      }
+      Loading current = new Loading();
+      Loading previous = this.loading.putIfAbsent(uRequest, current);
+      long remaining = deadline - System.currentTimeMillis();
+      if (previous == null || previous.owner == Thread.currentThread() || remaining <= 0) {
+        this.nMisses.incrementAndGet();
+        return null;
+      }
+      waited = true;
+      previous.done.await(remaining, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Caches the Image of the Request and wakes up the Requests waiting for it. Images larger than a
+   * quarter of the capacity are not cached.
+   *
+   * @param uRequest Request whose Image was loaded.
+   * @param image Encoded Image.
+   */
+  public void complete(UserRequest uRequest, byte[] image) {
+    if (this.capacity == 0) return;
+    if (image.length <= this.capacity / 4) {
+      ByteBuffer buffer =
+          this.offHeap
+              ? ByteBuffer.allocateDirect(image.length)
+              : ByteBuffer.allocate(image.length);
+      buffer.put(image).flip();
+      this.put(uRequest, new Result(buffer, System.currentTimeMillis() + this.ttl));
+    }
+    this.release(uRequest);
+  }
+
+  /**
+   * Gives up loading the Image of the Request, waking up the Requests waiting for it so that one of
+   * them loads it instead. Does nothing if the caller was not loading it.
+   *
+   * @param uRequest Request whose Image could not be loaded.
+   */
+  public void release(UserRequest uRequest) {
+    Loading current = this.loading.get(uRequest);
+    if (current != null && current.owner == Thread.currentThread()) {
+      this.loading.remove(uRequest, current);
+      current.done.countDown();
+    }
+  }
+
+  /**
+   * Gets the cached Images of the Requests that run the same Scan as the given one over other
+   * ViewPorts. They are not counted as hits nor refreshed in the eviction order.
+   *
+   * @param uRequest Incoming Request.
+   * @return Requests associated with Read-only Buffers with their Images.
+   */
+  public synchronized Map<UserRequest, ByteBuffer> getSameScan(UserRequest uRequest) {
+    Map<UserRequest, ByteBuffer> images = new LinkedHashMap<>();
+    Map<UserRequest, Result> sameScan = this.byScan.get(scanOf(uRequest));
+    if (sameScan == null) return images;
+    long now = System.currentTimeMillis();
+    for (Map.Entry<UserRequest, Result> other : sameScan.entrySet()) {
+      Result result = other.getValue();
+      if (result.expiresAt > now) images.put(other.getKey(), result.image.asReadOnlyBuffer());
+    }
+    return images;
+  }
+
+  /** Gets the Scan of the Request, which is the Request over an empty ViewPort. */
+  private static UserRequest scanOf(UserRequest uRequest) {
+    return uRequest.withViewPort(new Rectangle());
+  }
+
+  private synchronized ByteBuffer get(UserRequest uRequest) {
+    Result result = this.results.get(uRequest);
+    if (result == null) return null;
+    if (result.expiresAt <= System.currentTimeMillis()) {
+      this.remove(uRequest);
+      this.nExpirations++;
+      return null;
+    }
+    return result.image.asReadOnlyBuffer();
+  }
+
+  private synchronized void put(UserRequest uRequest, Result result) {
+    this.remove(uRequest);
+    this.results.put(uRequest, result);
+    this.size += result.image.capacity();
+    UserRequest scan = scanOf(uRequest);
+    Map<UserRequest, Result> sameScan = this.byScan.get(scan);
+    if (sameScan == null) {
+      sameScan = new HashMap<>();
+      this.byScan.put(scan, sameScan);
+    }
+    sameScan.put(uRequest, result);
+
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<UserRequest, Result>> it = this.results.entrySet().iterator();
+    while (this.size > this.capacity && it.hasNext()) {
+      Map.Entry<UserRequest, Result> eldestEntry = it.next();
+      Result eldest = eldestEntry.getValue();
+      it.remove();
+      this.unindex(eldestEntry.getKey());
+      this.size -= eldest.image.capacity();
+      if (eldest.expiresAt <= now) this.nExpirations++;
+      else this.nEvictions++;
+    }
+  }
+
+  private synchronized void remove(UserRequest uRequest) {
+    Result result = this.results.remove(uRequest);
+    if (result == null) return;
+    this.unindex(uRequest);
+    this.size -= result.image.capacity();
+  }
+
+  private void unindex(UserRequest uRequest) {
+    UserRequest scan = scanOf(uRequest);
+    Map<UserRequest, Result> sameScan = this.byScan.get(scan);
+    if (sameScan == null) return;
+    sameScan.remove(uRequest);
+    if (sameScan.isEmpty()) this.byScan.remove(scan);
+  }
+
+  /**
+   * Checks whether the Cache holds Images at all.
+   *
+   * @return True if the capacity is greater than 0, otherwise, False.
+   */
+  public boolean isEnabled() {
+    return this.capacity > 0;
+  }
+
+  /**
+   * Gets the fraction of lookups answered from the Cache.
+   *
+   * @return Hit Ratio between 0 and 1.
+   */
+  public double getHitRatio() {
+    long hits = this.nHits.get();
+    long total = hits + this.nMisses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Gets the Bytes of Images served from the Cache instead of a WebServer.
+   *
+   * @return Bytes Saved.
+   */
+  public long getBytesSaved() {
+    return this.bytesSaved.get();
+  }
+
+  /**
+   * Gets the Cache metrics, one per line, in the "name value" format.
+   *
+   * @return Cache Metrics.
+   */
+  public synchronized String toMetrics() {
+    return String.format(
+        "lb_results_cache_hits %d\n"
+            + "lb_results_cache_misses %d\n"
+            + "lb_results_cache_coalesced %d\n"
+            + "lb_results_cache_hit_ratio %.4f\n"
+            + "lb_results_cache_bytes_saved %d\n"
+            + "lb_results_cache_bytes %d\n"
+            + "lb_results_cache_capacity_bytes %d\n"
+            + "lb_results_cache_entries %d\n"
+            + "lb_results_cache_evictions %d\n"
+            + "lb_results_cache_expirations %d\n",
+        this.nHits.get(),
+        this.nMisses.get(),
+        this.nCoalesced.get(),
+        this.getHitRatio(),
+        this.getBytesSaved(),
+        this.size,
+        this.capacity,
+        this.results.size(),
+        this.nEvictions,
+        this.nExpirations);
+  }
+
+  /**
+   * Gets the State of this Cache at the current time.
+   *
+   * @return Cache State.
+   */
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "ResultsCache{ entries=%d, bytes=%d/%d, hitRatio=%.3f, bytesSaved=%d, offHeap=%b }",
+        this.results.size(),
+        this.size,
+        this.capacity,
+        this.getHitRatio(),
+        this.getBytesSaved(),
+        this.offHeap);
+  }
+
+  /** Cached Image and the time when it expires. */
+  private static class Result {
+
+    private final ByteBuffer image;
+    private final long expiresAt;
+
+    private Result(ByteBuffer image, long expiresAt) {
+      this.image = image;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /** Image being loaded by a Thread, on which identical Requests wait. */
+  private static class Loading {
+
+    private final Thread owner = Thread.currentThread();
+    private final CountDownLatch done = new CountDownLatch(1);
+  }
+}
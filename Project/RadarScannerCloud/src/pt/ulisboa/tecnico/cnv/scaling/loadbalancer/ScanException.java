@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+/** Signals that a Scan could not be served, with the HTTP Status to report to the Client. */
+public class ScanException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+  private final int status;
+
+  public ScanException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  /**
+   * Gets the HTTP Status that describes the failure.
+   *
+   * @return HTTP Status Code.
+   */
+  public int getStatus() {
+    return this.status;
+  }
+}
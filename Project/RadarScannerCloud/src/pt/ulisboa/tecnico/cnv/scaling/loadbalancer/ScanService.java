@@ -0,0 +1,277 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import org.apache.commons.io.IOUtils;
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.ResponseHeaders;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Obtains the Image of a Scan Request for the LoadBalancer handlers: from the ResultsCache, by
+ * composing cached Images with the ViewportComposer, or by forwarding the Request to the WebServer
+ * chosen by the LoadBalancer, retrying on another one when it cannot be reached. When the
+ * ResultsCache is disabled, nothing is reused, so the Image can be streamed to the Client as the
+ * WebServer sends it instead of being buffered.
+ */
+public class ScanService {
+
+  private final LoadBalancer loadBalancer;
+  private final ResultsCache resultsCache;
+  private final ViewportComposer viewportComposer;
+  private final int maxAttempts;
+
+  /**
+   * Creates a ScanService.
+   *
+   * @param loadBalancer LoadBalancer that chooses the WebServers.
+   * @param resultsCache Cache of the Images.
+   * @param viewportComposer Composer of cached Images.
+   * @param maxAttempts Maximum number of WebServers a Request is forwarded to before failing.
+   */
+  public ScanService(
+      LoadBalancer loadBalancer,
+      ResultsCache resultsCache,
+      ViewportComposer viewportComposer,
+      int maxAttempts) {
+    this.loadBalancer = loadBalancer;
+    this.resultsCache = resultsCache;
+    this.viewportComposer = viewportComposer;
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  /**
+   * Gets the Image of the Request, caching it when it had to be obtained.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @return Image and the Headers to report with it.
+   * @throws ScanException If no WebServer could serve the Request.
+   */
+  public Result scan(UserRequest uRequest) throws ScanException, InterruptedException {
+    return this.scan(uRequest, null);
+  }
+
+  /**
+   * Gets the Image of the Request, caching it when it had to be obtained, and reports to the
+   * listener the WebServer Instances to which it is forwarded.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @param listener Listener of the Instance assignments, or null.
+   * @return Image and the Headers to report with it.
+   * @throws ScanException If no WebServer could serve the Request.
+   */
+  public Result scan(UserRequest uRequest, AssignmentListener listener)
+      throws ScanException, InterruptedException {
+    ByteBuffer image = this.resultsCache.lookup(uRequest);
+    if (image != null) return new Result(image, "HIT");
+    try {
+      Result result = this.viewportComposer.compose(uRequest, this);
+      if (result == null) result = this.forward(uRequest, listener, null);
+      if (this.resultsCache.isEnabled()) {
+        this.resultsCache.complete(uRequest, result.toByteArray());
+      }
+      return result;
+    } finally {
+      this.resultsCache.release(uRequest);
+    }
+  }
+
+  /**
+   * Checks whether Images may be streamed, which is the case when they are never cached, since they
+   * are then neither kept nor composed.
+   *
+   * @return True if the ResultsCache is disabled, otherwise, False.
+   */
+  public boolean canStream() {
+    return !this.resultsCache.isEnabled();
+  }
+
+  /**
+   * Forwards the Request to a WebServer and hands its Image to the sink as it is received, without
+   * buffering it. Once the sink is called, the Request is no longer retried.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @param sink Sink of the Image.
+   * @throws ScanException If no WebServer could serve the Request, or the Image could not be
+   *     transferred.
+   */
+  public void stream(UserRequest uRequest, ImageSink sink)
+      throws ScanException, InterruptedException {
+    this.forward(uRequest, null, sink);
+  }
+
+  /**
+   * Gets the estimated Cost of a Request.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @return Estimated Cost of the Request.
+   */
+  public double getEstimatedCost(UserRequest uRequest) {
+    return this.loadBalancer.getEstimatedCost(uRequest);
+  }
+
+  /**
+   * Forwards the Request to the WebServer that the LoadBalancer chooses. When the WebServer
+   * responds, removes the Cost associated with the Request from it and feeds the measured Cost it
+   * reported to the LoadBalancer. When the WebServer cannot be reached, tries again on another
+   * one, up to maxAttempts WebServers. An error answered by the WebServer is a failure of the
+   * Request, not of the Instance, so it is reported to the Client without retrying. With a sink,
+   * the Image is handed to it instead of being buffered, and a failed transfer is not retried.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @param listener Listener of the Instance assignments, or null.
+   * @param sink Sink of the Image, or null to buffer it.
+   * @return Image and the Headers to report with it, or null if it was handed to the sink.
+   * @throws ScanException If the Request could not be queued, waited too long, was answered with
+   *     an error, no WebServer could be reached or the Image could not be transferred.
+   */
+  private Result forward(UserRequest uRequest, AssignmentListener listener, ImageSink sink)
+      throws ScanException, InterruptedException {
+    long start = System.currentTimeMillis();
+    int nAttempts = 0;
+    while (true) {
+      Map.Entry<ScalingInstance, Double> instanceRequestCost =
+          this.loadBalancer.onReceiveRequest(uRequest);
+      if (instanceRequestCost == null) {
+        throw new ScanException(HttpURLConnection.HTTP_UNAVAILABLE, "No Instances Available");
+      }
+      ScalingInstance instance = instanceRequestCost.getKey();
+      if (listener != null) listener.onAssigned(instance);
+      String URL =
+          String.format(
+              "http://%s:%d/scan?%s",
+              instance.getPublicDnsName(), instance.getPort(), uRequest.toQuery());
+      boolean streaming = false;
+      try {
+        HttpURLConnection con = (HttpURLConnection) new URL(URL).openConnection();
+        con.setRequestMethod("GET");
+        int status = con.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+          this.loadBalancer.onInstanceError(instanceRequestCost, status);
+          throw new ScanException(status, "WebServer Error");
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(ResponseHeaders.CACHE, "MISS");
+        for (String header :
+            new String[] {ResponseHeaders.SOLVE_TIME, ResponseHeaders.ENCODE_TIME}) {
+          String value = con.getHeaderField(header);
+          if (value != null) headers.put(header, value);
+        }
+        Result result = null;
+        if (sink == null) {
+          result = new Result(ByteBuffer.wrap(IOUtils.toByteArray(con.getInputStream())), "MISS");
+          result.headers.putAll(headers);
+        } else {
+          streaming = true;
+          sink.send(headers, con.getContentLengthLong(), con.getInputStream());
+        }
+        Double measuredCost = parseCost(con.getHeaderField(ResponseHeaders.REQUEST_COST));
+        this.loadBalancer.onInstanceSuccess(
+            uRequest, measuredCost, instanceRequestCost, System.currentTimeMillis() - start);
+        return result;
+      } catch (IOException e) {
+        if (streaming) {
+          this.loadBalancer.onTransferAborted(instanceRequestCost);
+          throw new ScanException(HttpURLConnection.HTTP_BAD_GATEWAY, "Transfer Aborted");
+        }
+        this.loadBalancer.onInstanceFailure(instanceRequestCost);
+        if (++nAttempts >= this.maxAttempts) {
+          throw new ScanException(HttpURLConnection.HTTP_BAD_GATEWAY, "No WebServer Answered");
+        }
+      }
+    }
+  }
+
+  private static Double parseCost(String measuredCost) {
+    try {
+      return measuredCost != null ? Double.valueOf(measuredCost) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Receives the Image of a Request as the WebServer sends it. */
+  public interface ImageSink {
+
+    /**
+     * Called once the WebServer answers, to transfer its Image.
+     *
+     * @param headers Headers to report with the Image.
+     * @param length Length of the Image, or -1 if unknown.
+     * @param image Stream of the Image.
+     * @throws IOException If the Image could not be transferred.
+     */
+    void send(Map<String, String> headers, long length, InputStream image) throws IOException;
+  }
+
+  /** Listens to the WebServer Instances to which a Request is forwarded. */
+  public interface AssignmentListener {
+
+    /**
+     * Called when the Request is forwarded to an Instance, possibly more than once if it fails.
+     *
+     * @param instance Instance serving the Request.
+     */
+    void onAssigned(ScalingInstance instance);
+  }
+
+  /** Image of a Scan Request and the Headers to report with it. */
+  public static class Result {
+
+    private final ByteBuffer image;
+    private final Map<String, String> headers;
+
+    public Result(ByteBuffer image, String cacheStatus) {
+      this.image = image;
+      this.headers = new LinkedHashMap<>();
+      this.headers.put(ResponseHeaders.CACHE, cacheStatus);
+    }
+
+    /**
+     * Gets the encoded Image.
+     *
+     * @return Read-only Buffer with the Image.
+     */
+    public ByteBuffer getImage() {
+      return this.image.asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets a copy of the encoded Image.
+     *
+     * @return Image Bytes.
+     */
+    public byte[] toByteArray() {
+      ByteBuffer image = this.getImage();
+      byte[] bytes = new byte[image.remaining()];
+      image.get(bytes);
+      return bytes;
+    }
+
+    /**
+     * Gets the Headers to report with the Image: where it came from and the WebServer timings.
+     *
+     * @return Header names associated with their values.
+     */
+    public Map<String, String> getHeaders() {
+      return this.headers;
+    }
+
+    /**
+     * Checks if the Image was obtained without scanning, either from the Cache or cropped from a
+     * cached Image.
+     *
+     * @return true if no WebServer scanned the Image, false otherwise.
+     */
+    public boolean isFromCache() {
+      String cacheStatus = this.headers.get(ResponseHeaders.CACHE);
+      return "HIT".equals(cacheStatus) || "CROP".equals(cacheStatus);
+    }
+  }
+}
@@ -1,83 +1,326 @@
 package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
 
-import java.util.LinkedHashMap;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Keeps the most recently received Requests and Costs obtained from the MSS. */
+/**
+ * Keeps the Cost Statistics of the most frequently and recently received Requests obtained from the
+ * MSS. The Cost of a Request is estimated as a high quantile of its Statistics, so that Requests
+ * whose Cost varies are not underestimated. The cache is split in Shards, reads are lock-free and
+ * writes only lock the Shard they touch. Eviction follows the CLOCK Policy, and a candidate only
+ * replaces the victim if it has been requested more often recently (TinyLFU Admission), so that
+ * one-off Requests do not evict hot ones.
+ */
 public class UserRequestsCosts {
 
   private static final int DELTA = 20;
-  private final Map<UserRequest, Double> cache;
+  private static final int N_SHARDS = 16;
+  private static final int ENTRY_BYTES = 192;
+  private final Shard[] shards;
+  private final FrequencySketch sketch;
+  private final CapacityUnit unit;
+  private final long capacity;
+  private final double quantile;
+  private final AtomicLong nHits;
+  private final AtomicLong nMisses;
 
   public UserRequestsCosts() {
-    this.cache = new LinkedHashMap<>(LoadBalancer.CAPACITY);
+    this(LoadBalancer.CAPACITY, CapacityUnit.ENTRIES, 0.95);
   }
 
   /**
-   * Gets the Cost associated with a UserRequest, if it exists, and places the Request at the
-   * beginning of the cache.
+   * Creates a cache bounded by the given Capacity.
    *
-   * @return The Cost associated with a UserRequest, or null if it does not exist.
+   * @param capacity Maximum number of Entries or Bytes, according to the unit.
+   * @param unit Unit in which the Capacity is expressed.
+   * @param quantile Quantile of the Cost Statistics used as the Cost of a Request.
    */
-  public synchronized Double get(UserRequest uRequest) {
-    Double cost = this.cache.get(uRequest);
+  public UserRequestsCosts(long capacity, CapacityUnit unit, double quantile) {
+    this.unit = unit;
+    this.capacity = capacity;
+    this.quantile = quantile;
+    this.shards = new Shard[N_SHARDS];
+    for (int i = 0; i < N_SHARDS; i++) {
+      this.shards[i] = new Shard((capacity + N_SHARDS - 1) / N_SHARDS);
+    }
+    long maxEntries = unit == CapacityUnit.BYTES ? capacity / ENTRY_BYTES : capacity;
+    this.sketch = new FrequencySketch(maxEntries);
+    this.nHits = new AtomicLong();
+    this.nMisses = new AtomicLong();
+  }
 
-    if (cost != null) {
-      this.cache.remove(uRequest);
-      this.cache.put(uRequest, cost);
+  /**
+   * Gets the Cost associated with a UserRequest, if it exists, and records the access to it.
+   *
+   * @return The Cost associated with a UserRequest, or null if it does not exist.
+   */
+  public Double get(UserRequest uRequest) {
+    this.sketch.increment(uRequest);
+    Node node = this.shardFor(uRequest).map.get(uRequest);
+    if (node == null) {
+      this.nMisses.incrementAndGet();
+      return null;
     }
-    return cost;
+    node.referenced = true;
+    this.nHits.incrementAndGet();
+    return node.cost;
   }
 
   /**
-   * Puts a UserRequest and its Cost in the cache, if it is not present. If the cache has reached
-   * its limit, it removes the oldest member (LRU Policy).
+   * Puts a UserRequest and its Cost Statistics in the cache, replacing the previous Statistics if
+   * it is present. If the Shard has reached its limit, victims are chosen by the CLOCK Policy and
+   * the UserRequest is only admitted if it is more frequent than them.
+   *
+   * @return True if the UserRequest is in the cache, otherwise, False.
    */
-  public synchronized void put(UserRequest uRequest, double cost) {
-    if (this.get(uRequest) != null) return;
+  public boolean put(UserRequest uRequest, CostStatistics statistics) {
+    Shard shard = this.shardFor(uRequest);
+    Node node = shard.map.get(uRequest);
+    if (node != null) {
+      node.setStatistics(statistics, this.quantile);
+      return true;
+    }
+    node = new Node(uRequest, this.weigh(uRequest, statistics));
+    node.setStatistics(statistics, this.quantile);
+    return shard.admit(node, this.quantile, this.sketch);
+  }
 
-    if (this.cache.size() == LoadBalancer.CAPACITY) {
-      this.cache.remove(this.cache.keySet().iterator().next());
+  /**
+   * Adds a measured Cost to the Statistics of a UserRequest, putting it in the cache if it is not
+   * present.
+   *
+   * @return True if the UserRequest is in the cache, otherwise, False.
+   */
+  public boolean record(UserRequest uRequest, double cost) {
+    Node node = this.shardFor(uRequest).map.get(uRequest);
+    if (node != null) {
+      node.addSample(cost, this.quantile);
+      return true;
     }
-    this.cache.put(uRequest, cost);
+    return this.put(uRequest, CostStatistics.of(cost));
   }
 
-  /** Puts all UserRequests and their Costs at the end of the cache. */
-  public void putAll(Map<UserRequest, Double> uRequestsCosts) {
-    for (Map.Entry<UserRequest, Double> uRequestsCost : uRequestsCosts.entrySet()) {
-      this.cache.remove(uRequestsCost.getKey());
+  /** Puts all UserRequests and their Cost Statistics in the cache. */
+  public void putAll(Map<UserRequest, CostStatistics> uRequestsCosts) {
+    for (Map.Entry<UserRequest, CostStatistics> uRequestsCost : uRequestsCosts.entrySet()) {
       this.put(uRequestsCost.getKey(), uRequestsCost.getValue());
     }
   }
 
+  /**
+   * Gets the Cost Statistics associated with a UserRequest, without recording an access to it.
+   *
+   * @return The Cost Statistics associated with a UserRequest, or null if it does not exist.
+   */
+  public CostStatistics getStatistics(UserRequest uRequest) {
+    Node node = this.shardFor(uRequest).map.get(uRequest);
+    return node != null ? node.statistics : null;
+  }
+
   /**
    * Gets the estimated Cost of a UserRequest. If the Request exists in the cache, it will return
    * its Cost. Otherwise, it will find the most similar UserRequest in the cache.
    *
    * @return The estimated Cost of the Incoming Request.
    */
-  public synchronized double getEstimatedCost(UserRequest uRequest) {
+  public double getEstimatedCost(UserRequest uRequest) {
     Double cost = this.get(uRequest);
     if (cost != null) return cost;
 
-    UserRequest closestUserRequest = null;
+    Node closestNode = null;
     double closestCost = 0;
     double proximityCost;
 
-    for (UserRequest uR : this.cache.keySet()) {
-      proximityCost = uRequest.getStrategy().equals(uR.getStrategy()) ? 0.4 : 0;
-      proximityCost += uRequest.getImageName().equals(uR.getImageName()) ? 0.2 : 0;
-      proximityCost += uRequest.getViewPort().equals(uR.getViewPort()) ? 0.1 : 0;
-      double absArea = Math.abs(uRequest.getArea() - uR.getArea());
-      proximityCost += absArea < DELTA ? (DELTA - absArea) / DELTA * 0.2 : 0;
-      double absStartingPoint = uRequest.getStartingPoint().distance(uR.getStartingPoint());
-      proximityCost += absStartingPoint < DELTA ? (DELTA - absStartingPoint) / DELTA * 0.1 : 0;
-      if (closestCost < proximityCost) {
-        closestCost = proximityCost;
-        closestUserRequest = uR;
+    for (Shard shard : this.shards) {
+      for (Node node : shard.map.values()) {
+        UserRequest uR = node.uRequest;
+        proximityCost = uRequest.getStrategy().equals(uR.getStrategy()) ? 0.4 : 0;
+        proximityCost += uRequest.getImageName().equals(uR.getImageName()) ? 0.2 : 0;
+        proximityCost += uRequest.hasSameViewPort(uR) ? 0.1 : 0;
+        double absArea = Math.abs(uRequest.getArea() - uR.getArea());
+        proximityCost += absArea < DELTA ? (DELTA - absArea) / DELTA * 0.2 : 0;
+        double absStartingPoint = uRequest.startingPointDistance(uR);
+        proximityCost += absStartingPoint < DELTA ? (DELTA - absStartingPoint) / DELTA * 0.1 : 0;
+        if (closestCost < proximityCost) {
+          closestCost = proximityCost;
+          closestNode = node;
+        }
+      }
+    }
+    return closestNode != null ? closestNode.cost : 0;
+  }
+
+  /**
+   * Gets a copy of all UserRequests and Cost Statistics currently in the cache.
+   *
+   * @return Cost Statistics associated with its Requests.
+   */
+  public List<Map.Entry<UserRequest, CostStatistics>> entries() {
+    List<Map.Entry<UserRequest, CostStatistics>> entries = new ArrayList<>();
+    for (Shard shard : this.shards) {
+      for (Node node : shard.map.values()) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(node.uRequest, node.statistics));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Gets the fraction of lookups that found the exact Request in the cache.
+   *
+   * @return Hit Rate between 0 and 1.
+   */
+  public double getHitRate() {
+    long hits = this.nHits.get();
+    long total = hits + this.nMisses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Gets the number of Requests currently in the cache.
+   *
+   * @return Number of Entries.
+   */
+  public int size() {
+    int size = 0;
+    for (Shard shard : this.shards) size += shard.map.size();
+    return size;
+  }
+
+  /**
+   * Gets the State of this cache at the current time.
+   *
+   * @return Cache State.
+   */
+  @Override
+  public String toString() {
+    return String.format(
+        "UserRequestsCosts{ size=%d, capacity=%d %s, hits=%d, misses=%d, hitRate=%.3f }",
+        this.size(),
+        this.capacity,
+        this.unit,
+        this.nHits.get(),
+        this.nMisses.get(),
+        this.getHitRate());
+  }
+
+  /** Gets the Weight of a UserRequest in the unit of the cache Capacity. */
+  private int weigh(UserRequest uRequest, CostStatistics statistics) {
+    if (this.unit == CapacityUnit.ENTRIES) return 1;
+    return ENTRY_BYTES + 2 * uRequest.getImageName().length() + statistics.getSizeInBytes();
+  }
+
+  private Shard shardFor(UserRequest uRequest) {
+    int hash = uRequest.hashCode();
+    return this.shards[((hash >>> 16) ^ hash) & (N_SHARDS - 1)];
+  }
+
+  public enum CapacityUnit {
+    ENTRIES,
+    BYTES;
+
+    /**
+     * Converts a Unit string to a CapacityUnit enum.
+     *
+     * @return The CapacityUnit, or ENTRIES if it is not recognized.
+     */
+    public static CapacityUnit parse(String unit) {
+      return "BYTES".equalsIgnoreCase(unit) ? BYTES : ENTRIES;
+    }
+  }
+
+  /** Cached Cost Statistics of a UserRequest, its estimated Cost and its CLOCK State. */
+  private static class Node {
+
+    private final UserRequest uRequest;
+    private final int weight;
+    private volatile CostStatistics statistics;
+    private volatile double cost;
+    private volatile boolean referenced;
+    private int clockIndex;
+
+    private Node(UserRequest uRequest, int weight) {
+      this.uRequest = uRequest;
+      this.weight = weight;
+    }
+
+    private synchronized void setStatistics(CostStatistics statistics, double quantile) {
+      this.statistics = statistics;
+      this.cost = statistics.getQuantile(quantile);
+    }
+
+    private synchronized void addSample(double cost, double quantile) {
+      this.setStatistics(this.statistics.add(cost), quantile);
+    }
+  }
+
+  /** Independent part of the cache, whose writes are serialized by its own lock. */
+  private static class Shard {
+
+    private final ConcurrentHashMap<UserRequest, Node> map;
+    private final List<Node> clock;
+    private final long maxWeight;
+    private long weight;
+    private int hand;
+
+    private Shard(long maxWeight) {
+      this.map = new ConcurrentHashMap<>();
+      this.clock = new ArrayList<>();
+      this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Inserts the Node, evicting CLOCK victims while there is no room for it. The Node is rejected
+     * if it has not been requested more often than a victim.
+     *
+     * @return True if the Node was admitted, otherwise, False.
+     */
+    private synchronized boolean admit(Node node, double quantile, FrequencySketch sketch) {
+      Node present = this.map.get(node.uRequest);
+      if (present != null) {
+        present.setStatistics(node.statistics, quantile);
+        return true;
+      }
+      if (node.weight > this.maxWeight) return false;
+      int candidateFrequency = sketch.frequency(node.uRequest);
+      while (this.weight + node.weight > this.maxWeight) {
+        Node victim = this.nextVictim();
+        if (candidateFrequency <= sketch.frequency(victim.uRequest)) return false;
+        this.remove(victim);
+      }
+      node.clockIndex = this.clock.size();
+      this.clock.add(node);
+      this.weight += node.weight;
+      this.map.put(node.uRequest, node);
+      return true;
+    }
+
+    /** Advances the CLOCK hand, giving a second chance to recently referenced Nodes. */
+    private Node nextVictim() {
+      while (true) {
+        if (this.hand >= this.clock.size()) this.hand = 0;
+        Node node = this.clock.get(this.hand++);
+        if (!node.referenced) return node;
+        node.referenced = false;
+      }
+    }
+
+    /** Removes the Node in constant time by moving the last Node of the CLOCK into its place. */
+    private void remove(Node node) {
+      Node last = this.clock.remove(this.clock.size() - 1);
+      if (last != node) {
+        last.clockIndex = node.clockIndex;
+        this.clock.set(node.clockIndex, last);
       }
+      this.weight -= node.weight;
+      this.map.remove(node.uRequest);
     }
-    cost = this.cache.get(closestUserRequest);
-    return cost != null ? cost : 0;
   }
 }
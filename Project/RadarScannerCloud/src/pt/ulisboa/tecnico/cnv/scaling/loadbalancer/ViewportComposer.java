@@ -0,0 +1,209 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer;
+
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers a Request from the cached Images of the same Scan over other ViewPorts, for the
+ * Strategies whose Image over a ViewPort is the crop of their Image over any larger one. If a
+ * cached ViewPort contains the requested one, its Image is cropped. If a cached ViewPort covers
+ * the requested one except for a strip along one side, only that strip, extended to include the
+ * Starting Point, is scanned and stitched to the cached Image. The Images are expected to map the
+ * ViewPort pixel by pixel, and any other Image is left alone.
+ */
+public class ViewportComposer {
+
+  private static final double MAX_STITCH_FRACTION = 0.9;
+  private final Set<UserRequest.Strategy> strategies;
+  private final ResultsCache resultsCache;
+  private final double maxStitchFraction;
+  private final AtomicLong nCropped;
+  private final AtomicLong nStitched;
+  private final AtomicLong pixelsReused;
+
+  /**
+   * Creates a ViewportComposer.
+   *
+   * @param strategies Strategies for which Images may be composed.
+   * @param resultsCache Cache holding the Images to reuse.
+   * @param maxStitchFraction Maximum area left to scan when stitching, relative to the requested
+   *     ViewPort. Capped at 0.9, so that the strip to scan is never the whole ViewPort.
+   */
+  public ViewportComposer(
+      Set<UserRequest.Strategy> strategies, ResultsCache resultsCache, double maxStitchFraction) {
+    this.strategies = strategies;
+    this.resultsCache = resultsCache;
+    this.maxStitchFraction = Math.min(maxStitchFraction, MAX_STITCH_FRACTION);
+    this.nCropped = new AtomicLong();
+    this.nStitched = new AtomicLong();
+    this.pixelsReused = new AtomicLong();
+  }
+
+  /**
+   * Converts a comma-separated list of Strategy Query names to a set of Strategies, ignoring the
+   * unknown ones.
+   *
+   * @return The Strategies in the list.
+   */
+  public static Set<UserRequest.Strategy> parseStrategies(String strategies) {
+    Set<UserRequest.Strategy> parsed = EnumSet.noneOf(UserRequest.Strategy.class);
+    for (String strategy : strategies.split(",")) {
+      UserRequest.Strategy s = UserRequest.parseStrategy(strategy.trim());
+      if (s != null) parsed.add(s);
+    }
+    return parsed;
+  }
+
+  /**
+   * Composes the Image of the Request from cached Images, scanning the uncovered strip through the
+   * ScanService if needed.
+   *
+   * @param uRequest Incoming Request.
+   * @param scanService Service through which the uncovered strip is scanned.
+   * @return Composed Image, or null if it cannot be composed.
+   * @throws ScanException If the uncovered strip could not be scanned.
+   */
+  public ScanService.Result compose(UserRequest uRequest, ScanService scanService)
+      throws ScanException, InterruptedException {
+    if (!this.strategies.contains(uRequest.getStrategy())) return null;
+    Map<UserRequest, ByteBuffer> sameScan = this.resultsCache.getSameScan(uRequest);
+    if (sameScan.isEmpty()) return null;
+
+    Rectangle viewPort = uRequest.getViewPort();
+    Point start = uRequest.getStartingPoint();
+    UserRequest covering = null;
+    UserRequest overlapping = null;
+    Rectangle strip = null;
+    for (UserRequest other : sameScan.keySet()) {
+      Rectangle otherViewPort = other.getViewPort();
+      if (otherViewPort.contains(viewPort)) {
+        if (covering == null || other.getArea() < covering.getArea()) covering = other;
+        continue;
+      }
+      Rectangle missing = missingStrip(viewPort, otherViewPort);
+      if (missing == null) continue;
+      missing = missing.union(new Rectangle(start.x, start.y, 1, 1)).intersection(viewPort);
+      if (area(missing) <= this.maxStitchFraction * area(viewPort)
+          && (strip == null || area(missing) < area(strip))) {
+        overlapping = other;
+        strip = missing;
+      }
+    }
+
+    try {
+      if (covering != null) {
+        BufferedImage cached = decode(sameScan.get(covering), covering.getViewPort());
+        if (cached == null) return null;
+        Rectangle crop = covering.getViewPort();
+        BufferedImage image =
+            cached.getSubimage(
+                viewPort.x - crop.x, viewPort.y - crop.y, viewPort.width, viewPort.height);
+        this.nCropped.incrementAndGet();
+        this.pixelsReused.addAndGet(area(viewPort));
+        return new ScanService.Result(encode(image), "CROP");
+      }
+      if (overlapping == null) return null;
+
+      BufferedImage cached = decode(sameScan.get(overlapping), overlapping.getViewPort());
+      if (cached == null) return null;
+      ScanService.Result part = scanService.scan(uRequest.withViewPort(strip));
+      BufferedImage partImage = decode(part.getImage(), strip);
+      if (partImage == null) return null;
+
+      BufferedImage image =
+          new BufferedImage(viewPort.width, viewPort.height, BufferedImage.TYPE_INT_ARGB);
+      Graphics2D graphics = image.createGraphics();
+      Rectangle cachedViewPort = overlapping.getViewPort();
+      graphics.drawImage(
+          cached, cachedViewPort.x - viewPort.x, cachedViewPort.y - viewPort.y, null);
+      graphics.drawImage(partImage, strip.x - viewPort.x, strip.y - viewPort.y, null);
+      graphics.dispose();
+      this.nStitched.incrementAndGet();
+      this.pixelsReused.addAndGet(area(viewPort) - area(strip));
+      return new ScanService.Result(encode(image), "STITCH");
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Gets the part of the ViewPort outside the cached one, when it is a single strip along one of
+   * its sides.
+   *
+   * @return The uncovered strip, or null if there is none or the uncovered part is not a strip.
+   */
+  private static Rectangle missingStrip(Rectangle viewPort, Rectangle cached) {
+    Rectangle covered = viewPort.intersection(cached);
+    if (covered.isEmpty()) return null;
+    int top = viewPort.y, bottom = viewPort.y + viewPort.height;
+    int left = viewPort.x, right = viewPort.x + viewPort.width;
+    if (covered.x == left && covered.width == viewPort.width) {
+      if (covered.y == top) {
+        int stripTop = covered.y + covered.height;
+        return new Rectangle(left, stripTop, viewPort.width, bottom - stripTop);
+      }
+      if (covered.y + covered.height == bottom) {
+        return new Rectangle(left, top, viewPort.width, covered.y - top);
+      }
+    }
+    if (covered.y == top && covered.height == viewPort.height) {
+      if (covered.x == left) {
+        int stripLeft = covered.x + covered.width;
+        return new Rectangle(stripLeft, top, right - stripLeft, viewPort.height);
+      }
+      if (covered.x + covered.width == right) {
+        return new Rectangle(left, top, covered.x - left, viewPort.height);
+      }
+    }
+    return null;
+  }
+
+  /** Decodes an Image, checking that it maps the ViewPort pixel by pixel. */
+  private static BufferedImage decode(ByteBuffer encoded, Rectangle viewPort) throws IOException {
+    byte[] bytes = new byte[encoded.remaining()];
+    encoded.get(bytes);
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+    if (image == null
+        || image.getWidth() != viewPort.width
+        || image.getHeight() != viewPort.height) {
+      return null;
+    }
+    return image;
+  }
+
+  private static ByteBuffer encode(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  private static long area(Rectangle rectangle) {
+    return (long) rectangle.width * rectangle.height;
+  }
+
+  /**
+   * Gets the ViewportComposer metrics, one per line, in the "name value" format.
+   *
+   * @return Composer Metrics.
+   */
+  public String toMetrics() {
+    return String.format(
+        "lb_viewport_cropped %d\n"
+            + "lb_viewport_stitched %d\n"
+            + "lb_viewport_pixels_reused %d\n",
+        this.nCropped.get(),
+        this.nStitched.get(),
+        this.pixelsReused.get());
+  }
+}
@@ -0,0 +1,136 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Routes the Requests for the same map, and optionally the same region of it, to the same
+ * Instance, so that the maps and results it keeps stay warm. Keys are placed on a consistent hash
+ * ring of the healthy Instances, each with several virtual nodes per unit of capacity, so that
+ * adding or losing an Instance only moves the keys it owned. Loads are bounded: an Instance is
+ * skipped when it serves more than the load factor times the average number of in-flight Requests
+ * per unit of capacity, scaled by its own capacity, and the next one on the ring is tried. When no
+ * Instance on the ring is within the bound, it falls back to least-cost.
+ */
+public class AffinityPolicy implements RoutingPolicy {
+
+  private static final int VIRTUAL_NODES = 100;
+  private final double loadFactor;
+  private final int regionSize;
+  private List<String> ringIds;
+  private TreeMap<Integer, ScalingInstance> ring;
+  private long nPreferred;
+  private long nSpilled;
+  private long nFallback;
+
+  /**
+   * Creates an AffinityPolicy.
+   *
+   * @param loadFactor Maximum load of an Instance, relative to the average, to keep taking keys.
+   * @param regionSize Side of the square regions of the map that are hashed apart, or 0 to hash
+   *     only by map.
+   */
+  public AffinityPolicy(double loadFactor, int regionSize) {
+    this.loadFactor = Math.max(1, loadFactor);
+    this.regionSize = Math.max(0, regionSize);
+    this.ringIds = Collections.emptyList();
+    this.ring = new TreeMap<>();
+  }
+
+  @Override
+  public synchronized ScalingInstance select(
+      UserRequest uRequest,
+      double estimatedCost,
+      List<ScalingInstance> healthy,
+      List<ScalingInstance> available) {
+    this.updateRing(healthy);
+
+    int totalLoad = 0;
+    int totalCapacity = 0;
+    for (ScalingInstance instance : healthy) {
+      totalLoad += instance.getNRequests();
+      totalCapacity += instance.getCapacity();
+    }
+    double bound = this.loadFactor * (totalLoad + 1) / totalCapacity;
+
+    int position = hash(this.keyOf(uRequest));
+    List<Collection<ScalingInstance>> arcs = new ArrayList<>(2);
+    arcs.add(this.ring.tailMap(position, true).values());
+    arcs.add(this.ring.headMap(position, false).values());
+
+    Set<ScalingInstance> candidates = new HashSet<>(available);
+    Set<ScalingInstance> visited = new HashSet<>();
+    for (Collection<ScalingInstance> arc : arcs) {
+      for (ScalingInstance instance : arc) {
+        if (!visited.add(instance)) continue;
+        if (candidates.contains(instance)
+            && instance.getNRequests() + 1 <= Math.ceil(bound * instance.getCapacity())) {
+          if (visited.size() == 1) this.nPreferred++;
+          else this.nSpilled++;
+          return instance;
+        }
+        if (visited.size() == this.ringIds.size()) break;
+      }
+    }
+    this.nFallback++;
+    return LeastCostPolicy.leastCost(available, estimatedCost);
+  }
+
+  @Override
+  public void onCompleted(UserRequest uRequest, double cost) {}
+
+  /**
+   * Gets the affinity key of the Request: its map, and the region where the center of its
+   * ViewPort falls.
+   *
+   * @param uRequest Incoming Request.
+   * @return Affinity key.
+   */
+  private String keyOf(UserRequest uRequest) {
+    if (this.regionSize == 0) return uRequest.getImageName();
+    Rectangle viewPort = uRequest.getViewPort();
+    return String.format(
+        "%s#%d,%d",
+        uRequest.getImageName(),
+        (int) viewPort.getCenterX() / this.regionSize,
+        (int) viewPort.getCenterY() / this.regionSize);
+  }
+
+  /** Rebuilds the ring when the set of healthy Instances changed. */
+  private void updateRing(List<ScalingInstance> healthy) {
+    List<String> ids = new ArrayList<>(healthy.size());
+    for (ScalingInstance instance : healthy) ids.add(instance.getInstanceId());
+    if (ids.equals(this.ringIds)) return;
+
+    TreeMap<Integer, ScalingInstance> ring = new TreeMap<>();
+    for (ScalingInstance instance : healthy) {
+      for (int i = 0; i < VIRTUAL_NODES * instance.getCapacity(); i++) {
+        ring.put(hash(instance.getInstanceId() + "#" + i), instance);
+      }
+    }
+    this.ring = ring;
+    this.ringIds = ids;
+  }
+
+  /** Spreads the String hash over the ring (MurmurHash3 finalizer). */
+  private static int hash(String key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "AffinityPolicy{ instances=%d, preferred=%d, spilled=%d, fallback=%d }",
+        this.ringIds.size(), this.nPreferred, this.nSpilled, this.nFallback);
+  }
+}
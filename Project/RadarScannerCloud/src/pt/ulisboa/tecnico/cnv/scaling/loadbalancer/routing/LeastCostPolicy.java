@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.List;
+
+/**
+ * Routes every Request to the available Instance that would have the lowest associated Cost per
+ * unit of capacity once it takes the Request. A large scan raises the load of a small Instance much
+ * more than that of a big one, so it goes to a big Instance, while small scans are packed onto
+ * whichever Instance is least loaded, often a small one.
+ */
+public class LeastCostPolicy implements RoutingPolicy {
+
+  /**
+   * Gets the Instance that would have the lowest associated Cost per unit of capacity with the
+   * Request among the given ones.
+   *
+   * @param instances Candidate Instances.
+   * @param estimatedCost Estimated Cost of the Incoming Request.
+   * @return Instance with the lowest resulting Load, or null if there are none.
+   */
+  public static ScalingInstance leastCost(List<ScalingInstance> instances, double estimatedCost) {
+    ScalingInstance minInstance = null;
+    double minLoad = 0;
+    for (ScalingInstance instance : instances) {
+      double load = instance.getLoad() + estimatedCost / instance.getCapacity();
+      if (minInstance == null || load < minLoad) {
+        minInstance = instance;
+        minLoad = load;
+      }
+    }
+    return minInstance;
+  }
+
+  @Override
+  public ScalingInstance select(
+      UserRequest uRequest,
+      double estimatedCost,
+      List<ScalingInstance> healthy,
+      List<ScalingInstance> available) {
+    return leastCost(available, estimatedCost);
+  }
+
+  @Override
+  public void onCompleted(UserRequest uRequest, double cost) {}
+
+  @Override
+  public String toString() {
+    return "LeastCostPolicy{}";
+  }
+}
@@ -0,0 +1,38 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.List;
+
+/**
+ * Decides which WebServer Instance serves each Request. The LoadBalancer only asks for a decision
+ * when at least one Instance can take the Request right now, and tells the policy the Cost of every
+ * Request that completes, so that it can adapt to the observed workload.
+ */
+public interface RoutingPolicy {
+
+  /**
+   * Chooses the Instance that will serve the Request.
+   *
+   * @param uRequest Incoming Request.
+   * @param estimatedCost Estimated Cost of the Incoming Request.
+   * @param healthy Healthy Instances, sorted by Instance Id.
+   * @param available Healthy Instances below their concurrency limit, sorted by Instance Id.
+   * @return The chosen Instance, which must be one of the available ones, or null to keep the
+   *     Request waiting.
+   */
+  ScalingInstance select(
+      UserRequest uRequest,
+      double estimatedCost,
+      List<ScalingInstance> healthy,
+      List<ScalingInstance> available);
+
+  /**
+   * Records the Cost of a Request that was served successfully.
+   *
+   * @param uRequest Completed Request.
+   * @param cost Measured Cost, or the estimated one if the WebServer did not report it.
+   */
+  void onCompleted(UserRequest uRequest, double cost);
+}
@@ -0,0 +1,30 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing;
+
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+/** Creates the RoutingPolicy selected by the LB_ROUTING Environment Variable. */
+public class RoutingPolicyFactory {
+
+  private RoutingPolicyFactory() {}
+
+  /**
+   * Creates the configured RoutingPolicy: least-cost (the default), size-interval when LB_ROUTING
+   * is "size_interval", with up to LB_SIZE_CLASSES Cost classes, or map affinity when it is
+   * "affinity", bounded by LB_AFFINITY_LOAD_FACTOR and hashing apart regions of LB_AFFINITY_REGION
+   * pixels.
+   *
+   * @return The configured RoutingPolicy.
+   */
+  public static RoutingPolicy fromEnvironment() {
+    switch (Environment.getString("LB_ROUTING", "least_cost").toLowerCase()) {
+      case "affinity":
+        return new AffinityPolicy(
+            Environment.getDouble("LB_AFFINITY_LOAD_FACTOR", 1.25),
+            Environment.getInt("LB_AFFINITY_REGION", 0));
+      case "size_interval":
+        return new SizeIntervalPolicy(Environment.getInt("LB_SIZE_CLASSES", 2));
+      default:
+        return new LeastCostPolicy();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package pt.ulisboa.tecnico.cnv.scaling.loadbalancer.routing;
+
+import pt.ulisboa.tecnico.cnv.scaling.ScalingInstance;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.*;
+
+/**
+ * Size-interval task assignment: the healthy Instances are split into Cost classes, and each
+ * Request is routed within the class its estimated Cost falls in, so that cheap Requests never
+ * queue behind huge scans. The class boundaries are derived from a log-scale Histogram of completed
+ * Costs whose weights decay over time, so they follow the workload. Splitting the work evenly
+ * (SITA-E) alone would put nearly all Requests in the first class, since a few huge scans carry
+ * most of the work, so each boundary is the geometric mean of the equal-work and the equal-count
+ * cuts. The classes are given to the Instances in order of capacity, each a share of the fleet
+ * capacity, so that the largest scans go to the biggest Instances and the small ones are packed
+ * onto the smallest. When every Instance of its class is busy, a Request may borrow an idle
+ * Instance of another class. Until enough Costs have been observed, it routes like LeastCostPolicy.
+ */
+public class SizeIntervalPolicy implements RoutingPolicy {
+
+  private static final int N_BUCKETS = CostStatistics.bucketIndex(Double.MAX_VALUE) + 1;
+  private static final int MIN_SAMPLES = 50;
+  private static final int DECAY_PERIOD = 1000;
+  private final int nClasses;
+  private final double[] work;
+  private final double[] counts;
+  private long nSamples;
+
+  /**
+   * Creates a SizeIntervalPolicy.
+   *
+   * @param nClasses Maximum number of Cost classes. There are never more classes than healthy
+   *     Instances.
+   */
+  public SizeIntervalPolicy(int nClasses) {
+    this.nClasses = Math.max(1, nClasses);
+    this.work = new double[N_BUCKETS];
+    this.counts = new double[N_BUCKETS];
+  }
+
+  @Override
+  public ScalingInstance select(
+      UserRequest uRequest,
+      double estimatedCost,
+      List<ScalingInstance> healthy,
+      List<ScalingInstance> available) {
+    int nClasses = Math.min(this.nClasses, healthy.size());
+    double[] boundaries = this.getBoundaries(nClasses);
+    if (boundaries == null) return LeastCostPolicy.leastCost(available, estimatedCost);
+
+    int costClass = 0;
+    while (costClass < boundaries.length && estimatedCost >= boundaries[costClass]) costClass++;
+
+    Map<ScalingInstance, Integer> classes = classesOf(healthy, nClasses);
+    List<ScalingInstance> inClass = new ArrayList<>();
+    List<ScalingInstance> idle = new ArrayList<>();
+    for (ScalingInstance instance : available) {
+      if (classes.get(instance) == costClass) {
+        inClass.add(instance);
+      } else if (instance.getNRequests() == 0) {
+        idle.add(instance);
+      }
+    }
+    return LeastCostPolicy.leastCost(inClass.isEmpty() ? idle : inClass, estimatedCost);
+  }
+
+  /**
+   * Adds the Cost to the Histogram. Every DECAY_PERIOD samples, the weights are halved, so that old
+   * Costs fade out.
+   */
+  @Override
+  public synchronized void onCompleted(UserRequest uRequest, double cost) {
+    int bucket = CostStatistics.bucketIndex(cost);
+    this.work[bucket] += Math.max(cost, 1);
+    this.counts[bucket]++;
+    if (++this.nSamples % DECAY_PERIOD == 0) {
+      for (int i = 0; i < N_BUCKETS; i++) {
+        this.work[i] /= 2;
+        this.counts[i] /= 2;
+      }
+    }
+  }
+
+  /**
+   * Gets the Costs that separate the classes, each the geometric mean of the cut that gives every
+   * class the same share of the observed work and the one that gives it the same share of Requests.
+   *
+   * @param nClasses Number of classes.
+   * @return The nClasses - 1 increasing boundaries, or null if too few Costs were observed.
+   */
+  public synchronized double[] getBoundaries(int nClasses) {
+    if (this.nSamples < MIN_SAMPLES || nClasses < 1) return null;
+    double[] byWork = cuts(this.work, nClasses);
+    double[] byCount = cuts(this.counts, nClasses);
+    double[] boundaries = new double[nClasses - 1];
+    for (int i = 0; i < boundaries.length; i++) {
+      boundaries[i] = Math.sqrt(byWork[i] * byCount[i]);
+    }
+    return boundaries;
+  }
+
+  /** Gets the Bucket bounds that split the Histogram weights into equal shares. */
+  private static double[] cuts(double[] weights, int nClasses) {
+    double total = 0;
+    for (double weight : weights) total += weight;
+    double[] cuts = new double[nClasses - 1];
+    double seen = 0;
+    int next = 0;
+    for (int i = 0; i < weights.length && next < cuts.length; i++) {
+      seen += weights[i];
+      while (next < cuts.length && seen >= total * (next + 1) / nClasses) {
+        cuts[next++] = CostStatistics.bucketBound(i + 1);
+      }
+    }
+    return cuts;
+  }
+
+  /**
+   * Gets the class of each healthy Instance: in order of capacity, and of Id among equals, each
+   * Instance takes the class where the midpoint of its share of the fleet capacity falls. Classes
+   * then advance at most one at a time and the largest Instances fill the top classes, so that no
+   * class is left without an Instance.
+   */
+  private static Map<ScalingInstance, Integer> classesOf(
+      List<ScalingInstance> healthy, int nClasses) {
+    List<ScalingInstance> bySize = new ArrayList<>(healthy);
+    Collections.sort(
+        bySize,
+        new Comparator<ScalingInstance>() {
+          @Override
+          public int compare(ScalingInstance a, ScalingInstance b) {
+            return Integer.compare(a.getCapacity(), b.getCapacity());
+          }
+        });
+    int totalCapacity = 0;
+    for (ScalingInstance instance : bySize) totalCapacity += instance.getCapacity();
+    Map<ScalingInstance, Integer> classes = new HashMap<>();
+    int nInstances = bySize.size();
+    double seen = 0;
+    int previous = -1;
+    for (int i = 0; i < nInstances; i++) {
+      ScalingInstance instance = bySize.get(i);
+      double midpoint = seen + instance.getCapacity() / 2.0;
+      int costClass = Math.min(nClasses - 1, (int) (midpoint * nClasses / totalCapacity));
+      costClass = Math.max(Math.min(costClass, previous + 1), nClasses - nInstances + i);
+      classes.put(instance, costClass);
+      seen += instance.getCapacity();
+      previous = costClass;
+    }
+    return classes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "SizeIntervalPolicy{ classes=%d, samples=%d, boundaries=%s }",
+        this.nClasses, this.nSamples, Arrays.toString(this.getBoundaries(this.nClasses)));
+  }
+}
@@ -4,19 +4,35 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 
 /** Handles Health Requests for the LoadBalancer to verify that the WebServer is still active. */
 public class HealthHandler implements HttpHandler {
 
+  private final WarmUp warmUp;
+
+  public HealthHandler(WarmUp warmUp) {
+    this.warmUp = warmUp;
+  }
+
   /**
-   * Responds with an HTTP OK.
+   * Responds with an HTTP OK once the WebServer is warmed up, and with 503 until then, so that the
+   * LoadBalancer does not forward Requests to it yet. The body is the number of Scan Requests in
+   * flight, so that a restarted LoadBalancer can adopt the WebServer together with its load.
    *
    * @param t Encapsulates an HTTP Request.
    */
   @Override
   public void handle(final HttpExchange t) throws IOException {
-    t.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
-    t.close();
+    int status =
+        this.warmUp.isReady() ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_UNAVAILABLE;
+    byte[] body = String.valueOf(ScanHandler.getNInFlight()).getBytes(StandardCharsets.UTF_8);
+    t.getResponseHeaders().add("Content-Type", "text/plain");
+    t.sendResponseHeaders(status, body.length);
+    try (OutputStream os = t.getResponseBody()) {
+      os.write(body);
+    }
   }
 }
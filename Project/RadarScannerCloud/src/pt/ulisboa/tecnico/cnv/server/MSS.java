@@ -1,39 +1,53 @@
 package pt.ulisboa.tecnico.cnv.server;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
+import pt.ulisboa.tecnico.cnv.storage.CostsStorage;
+import pt.ulisboa.tecnico.cnv.storage.CostsStorageFactory;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Frontend for the WebServer to interact with the MSS. */
 public class MSS {
 
-  private static final String REQUESTS_COSTS_TABLE = "RequestsCosts";
-  private final Table requestsCostsTable;
+  private final CostsStorage storage;
+  private final ExecutorService executor;
 
   public MSS() {
-    AWSCredentials credentials = new ProfileCredentialsProvider().getCredentials();
-    this.requestsCostsTable =
-        new DynamoDB(
-                AmazonDynamoDBClientBuilder.standard()
-                    .withRegion(Regions.US_EAST_1)
-                    .withCredentials(new AWSStaticCredentialsProvider(credentials))
-                    .build())
-            .getTable(REQUESTS_COSTS_TABLE);
+    this.storage = CostsStorageFactory.fromEnvironment(false);
+    this.executor = Executors.newSingleThreadExecutor();
   }
 
   /**
-   * Stores in MSS the Cost associated with the Request with the given Query.
+   * Adds in MSS the Cost to the Statistics of the Request with the given Query. The write happens
+   * in the background, since the LoadBalancer already learned the Cost from the response Headers
+   * and the MSS is only needed for durability and for sharing it with other LoadBalancers.
    *
-   * @param query Query of the Incoming Request.
+   * @param query Canonical Query of the Incoming Request.
    * @param cost Incoming Request Cost.
    */
-  protected void addRequestCost(String query, double cost) {
-    Item item = new Item().withPrimaryKey("RequestQuery", query).withNumber("Cost", cost);
-    this.requestsCostsTable.putItem(item);
+  protected void addRequestCost(final String query, final double cost) {
+    this.executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              storage.addCost(query, cost);
+            } catch (RuntimeException e) {
+              System.err.printf("Unable to Store the Cost of %s: %s%n", query, e);
+            }
+          }
+        });
+  }
+
+  /**
+   * Gets the Cost Statistics of up to the given number of Requests stored in the MSS.
+   *
+   * @param limit Maximum number of Requests.
+   * @return Cost Statistics associated with its Queries.
+   */
+  protected Map<String, CostStatistics> fetch(int limit) {
+    return this.storage.scan(limit);
   }
 }
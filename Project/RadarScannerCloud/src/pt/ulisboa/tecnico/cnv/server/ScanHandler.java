@@ -6,6 +6,8 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import pt.ulisboa.tecnico.cnv.solver.Solver;
 import pt.ulisboa.tecnico.cnv.solver.SolverFactory;
+import pt.ulisboa.tecnico.cnv.util.ResponseHeaders;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -17,11 +19,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Handles the Scan Requests that LoadBalancer forwards to the WebServer. */
 public class ScanHandler implements HttpHandler {
 
+  private static final AtomicInteger nInFlight = new AtomicInteger();
   private final MSS mss;
 
   public ScanHandler() {
@@ -29,40 +34,70 @@ public class ScanHandler implements HttpHandler {
   }
 
   /**
-   * Extracts the Request Query. Runs Solver with the arguments contained in the Query. Responds to
-   * the Load Balancer with the Image resulting from the execution of the Solver. Gets the Metrics
-   * associated with the Request. Calculates the Cost resulting from the Solver Metrics and stores
-   * it in the MSS, which will later be fetched by the LoadBalancer.
+   * Gets the number of Scan Requests being handled by the WebServer.
    *
-   * @param t Encapsulates an HTTP Request.
+   * @return Number of Requests in flight.
    */
-  @Override
-  public void handle(final HttpExchange t) throws IOException {
-
-    // Get the query.
-    final String query = t.getRequestURI().getQuery();
-    System.out.println("> Query:\t" + query);
+  static int getNInFlight() {
+    return nInFlight.get();
+  }
 
-    // Store as if it was a direct call to SolverMain.
-    final ArrayList<String> solverArgs = new ArrayList<>();
+  /**
+   * Creates the Solver for a Request, as if it was a direct call to SolverMain.
+   *
+   * @param uRequest Canonical Representation of the Request.
+   * @return Solver for the Request, or null if it could not be created.
+   */
+  static Solver newSolver(UserRequest uRequest) {
+    final ArrayList<String> solverArgs =
+        new ArrayList<>(Arrays.asList(uRequest.toSolverArgs(WebServer.sap.getMapsDirectory())));
 
-    for (final String p : query.split("&")) {
-      final String[] pSplit = p.split("=");
+    if (WebServer.sap.isDebugging()) {
+      solverArgs.add("-d");
+    }
 
-      if (pSplit[0].equals("i")) {
-        pSplit[1] = WebServer.sap.getMapsDirectory() + "/" + pSplit[1];
-      }
+    // Create solver instance from factory.
+    return SolverFactory.getInstance().makeSolver(solverArgs.toArray(new String[0]));
+  }
 
-      solverArgs.add("-" + pSplit[0]);
-      solverArgs.add(pSplit[1]);
+  /**
+   * Extracts the Request Query and converts it in its canonical Representation. Runs Solver with
+   * the arguments contained in the Query. Gets the Metrics associated with the Request and
+   * calculates the Cost resulting from them. Responds to the Load Balancer with the Image resulting
+   * from the execution of the Solver, reporting the Cost and the solve and encode times in the
+   * response Headers, so that the LoadBalancer learns them immediately. The Cost is also stored in
+   * the MSS, asynchronously, to persist it and share it with other LoadBalancers.
+   *
+   * @param t Encapsulates an HTTP Request.
+   */
+  @Override
+  public void handle(final HttpExchange t) throws IOException {
+    nInFlight.incrementAndGet();
+    try {
+      this.scan(t);
+    } finally {
+      nInFlight.decrementAndGet();
     }
+  }
 
-    if (WebServer.sap.isDebugging()) {
-      solverArgs.add("-d");
+  /**
+   * Scans the Request and responds with the resulting Image.
+   *
+   * @param t Encapsulates an HTTP Request.
+   */
+  private void scan(final HttpExchange t) throws IOException {
+
+    // Get the query.
+    final UserRequest uRequest = UserRequest.parseFromQuery(t.getRequestURI().getQuery());
+    if (uRequest == null) {
+      t.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, 0);
+      t.close();
+      return;
     }
+    final String query = uRequest.toQuery();
+    System.out.println("> Query:\t" + query);
 
-    // Create solver instance from factory.
-    final Solver s = SolverFactory.getInstance().makeSolver(solverArgs.toArray(new String[0]));
+    final Solver s = newSolver(uRequest);
 
     if (s == null) {
       System.out.println("> Problem creating Solver. Exiting.");
@@ -71,10 +106,21 @@ public class ScanHandler implements HttpHandler {
 
     // Write figure file to disk.
     File responseFile;
+    long solveTime;
+    long encodeTime;
+    SolverInstrumentation.SolverMetrics solverMetrics;
     try {
 
-      final BufferedImage outputImg = s.solveImage();
+      long start = System.nanoTime();
+      final BufferedImage outputImg;
+      try {
+        outputImg = s.solveImage();
+      } finally {
+        solverMetrics = SolverInstrumentation.popSolverMetrics();
+      }
+      solveTime = System.nanoTime() - start;
 
+      start = System.nanoTime();
       final String outPath = WebServer.sap.getOutputDirectory();
 
       final String imageName = String.format("%s-%s", UUID.randomUUID(), s);
@@ -83,12 +129,22 @@ public class ScanHandler implements HttpHandler {
       ImageIO.write(outputImg, "png", imagePathPNG.toFile());
 
       responseFile = imagePathPNG.toFile();
+      encodeTime = System.nanoTime() - start;
 
     } catch (Exception e) {
       e.printStackTrace();
+      t.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+      t.close();
       return;
     }
 
+    Double cost = null;
+    if (solverMetrics == null) {
+      System.out.println("No SolverMetrics Found!");
+    } else {
+      cost = (double) solverMetrics.getRoutineCallCounter();
+    }
+
     // Send response to browser.
     final Headers hdrs = t.getResponseHeaders();
 
@@ -99,6 +155,14 @@ public class ScanHandler implements HttpHandler {
     hdrs.add(
         "Access-Control-Allow-Headers",
         "Origin, Accept, X-Requested-With, Content-Type, Access-Control-Request-Method, Access-Control-Request-Headers");
+    hdrs.add(
+        "Access-Control-Expose-Headers",
+        String.format(
+            "%s, %s, %s",
+            ResponseHeaders.REQUEST_COST, ResponseHeaders.SOLVE_TIME, ResponseHeaders.ENCODE_TIME));
+    if (cost != null) hdrs.add(ResponseHeaders.REQUEST_COST, String.valueOf(cost));
+    hdrs.add(ResponseHeaders.SOLVE_TIME, String.valueOf(solveTime / 1000000));
+    hdrs.add(ResponseHeaders.ENCODE_TIME, String.valueOf(encodeTime / 1000000));
 
     t.sendResponseHeaders(HttpURLConnection.HTTP_OK, responseFile.length());
 
@@ -109,13 +173,6 @@ public class ScanHandler implements HttpHandler {
 
     System.out.println("> Sent response to " + t.getRemoteAddress().toString());
 
-    SolverInstrumentation.SolverMetrics solverMetrics = SolverInstrumentation.popSolverMetrics();
-    if (solverMetrics == null) {
-      System.out.println("No SolverMetrics Found!");
-      return;
-    }
-
-    double cost = solverMetrics.getRoutineCallCounter();
-    this.mss.addRequestCost(query, cost);
+    if (cost != null) this.mss.addRequestCost(query, cost);
   }
 }
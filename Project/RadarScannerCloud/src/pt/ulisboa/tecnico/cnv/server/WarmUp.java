@@ -0,0 +1,172 @@
+package pt.ulisboa.tecnico.cnv.server;
+
+import BIT.SolverInstrumentation;
+import pt.ulisboa.tecnico.cnv.solver.Solver;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.Environment;
+import pt.ulisboa.tecnico.cnv.util.UserRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Warms up a freshly started WebServer before it reports ready, so that the first Requests the
+ * LoadBalancer forwards do not pay for interpreted Solver code and Maps not yet read from disk. It
+ * replays representative Requests from the MSS, spread evenly over their Costs up to a maximum, in
+ * rounds, until the total solve time of a round changes by less than a tolerance from the previous
+ * one, or a maximum number of rounds or time is reached.
+ */
+public class WarmUp implements Runnable {
+
+  private static final int SCAN_LIMIT = 1000;
+  private final int nQueries;
+  private final double maxCost;
+  private final int maxRounds;
+  private final double tolerance;
+  private final long timeout;
+  private volatile boolean ready;
+
+  /**
+   * Creates a WarmUp.
+   *
+   * @param nQueries Number of Requests replayed in each round, or 0 to skip the warm-up.
+   * @param maxCost Maximum mean Cost of a replayed Request.
+   * @param maxRounds Maximum number of rounds.
+   * @param tolerance Relative change of the solve time below which it is considered stable.
+   * @param timeout Maximum duration of the warm-up, in milliseconds.
+   */
+  public WarmUp(int nQueries, double maxCost, int maxRounds, double tolerance, long timeout) {
+    this.nQueries = nQueries;
+    this.maxCost = maxCost;
+    this.maxRounds = maxRounds;
+    this.tolerance = tolerance;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Creates the WarmUp configured by WS_WARMUP_QUERIES, WS_WARMUP_MAX_COST, WS_WARMUP_MAX_ROUNDS,
+   * WS_WARMUP_TOLERANCE and WS_WARMUP_TIMEOUT.
+   *
+   * @return The configured WarmUp.
+   */
+  public static WarmUp fromEnvironment() {
+    return new WarmUp(
+        Environment.getInt("WS_WARMUP_QUERIES", 10),
+        Environment.getDouble("WS_WARMUP_MAX_COST", 1000000),
+        Environment.getInt("WS_WARMUP_MAX_ROUNDS", 10),
+        Environment.getDouble("WS_WARMUP_TOLERANCE", 0.1),
+        Environment.getLong("WS_WARMUP_TIMEOUT", 120000));
+  }
+
+  /**
+   * Checks whether the warm-up is over, successfully or not.
+   *
+   * @return True if the WebServer is ready to take Requests, otherwise, False.
+   */
+  public boolean isReady() {
+    return this.ready;
+  }
+
+  /** Replays the representative Requests until their solve time stabilizes, then reports ready. */
+  @Override
+  public void run() {
+    try {
+      List<UserRequest> uRequests = this.nQueries > 0 ? this.selectRequests() : null;
+      if (uRequests == null || uRequests.isEmpty()) {
+        System.out.println("> No Requests to Warm Up with.");
+        return;
+      }
+      this.warmUp(uRequests);
+    } catch (RuntimeException e) {
+      System.err.printf("Warm-Up Failed: %s%n", e);
+    } finally {
+      this.ready = true;
+    }
+  }
+
+  private void warmUp(List<UserRequest> uRequests) {
+    long start = System.nanoTime();
+    long deadline = start + this.timeout * 1000000;
+    long firstRound = -1;
+    long previousRound = -1;
+    long lastRound = -1;
+    int round = 0;
+    boolean stable = false;
+    while (round < this.maxRounds && System.nanoTime() < deadline && !stable) {
+      lastRound = this.replay(uRequests);
+      round++;
+      System.out.printf("> Warm-Up Round %d: %.1f ms%n", round, lastRound / 1e6);
+      if (firstRound < 0) firstRound = lastRound;
+      stable =
+          previousRound > 0
+              && Math.abs(lastRound - previousRound) <= this.tolerance * previousRound;
+      previousRound = lastRound;
+    }
+    System.out.printf(
+        "> Warm-Up %s in %.1f s: %d Rounds of %d Requests, from %.1f ms to %.1f ms per Round%n",
+        stable ? "Stabilized" : "Stopped",
+        (System.nanoTime() - start) / 1e9,
+        round,
+        uRequests.size(),
+        firstRound / 1e6,
+        lastRound / 1e6);
+  }
+
+  /**
+   * Solves each Request once, discarding the Images and the Metrics of the instrumented Solver.
+   *
+   * @param uRequests Requests to solve.
+   * @return Total solve time, in nanoseconds.
+   */
+  private long replay(List<UserRequest> uRequests) {
+    long total = 0;
+    for (UserRequest uRequest : uRequests) {
+      Solver solver = ScanHandler.newSolver(uRequest);
+      if (solver == null) continue;
+      long start = System.nanoTime();
+      try {
+        solver.solveImage();
+      } catch (Exception e) {
+        System.err.printf("Warm-Up Request %s Failed: %s%n", uRequest.toQuery(), e);
+      } finally {
+        SolverInstrumentation.popSolverMetrics();
+      }
+      total += System.nanoTime() - start;
+    }
+    return total;
+  }
+
+  /**
+   * Selects the Requests to replay from the ones stored in the MSS: among those whose mean Cost is
+   * within the maximum, the ones at evenly spaced positions in the order of their Costs.
+   *
+   * @return Requests to replay.
+   */
+  private List<UserRequest> selectRequests() {
+    Map<String, CostStatistics> stored = new MSS().fetch(SCAN_LIMIT);
+    final List<Map.Entry<String, CostStatistics>> candidates = new ArrayList<>();
+    for (Map.Entry<String, CostStatistics> entry : stored.entrySet()) {
+      if (entry.getValue().getMean() <= this.maxCost) candidates.add(entry);
+    }
+    Collections.sort(
+        candidates,
+        new Comparator<Map.Entry<String, CostStatistics>>() {
+          @Override
+          public int compare(
+              Map.Entry<String, CostStatistics> a, Map.Entry<String, CostStatistics> b) {
+            return Double.compare(a.getValue().getMean(), b.getValue().getMean());
+          }
+        });
+    List<UserRequest> uRequests = new ArrayList<>();
+    int n = Math.min(this.nQueries, candidates.size());
+    for (int i = 0; i < n; i++) {
+      String query = candidates.get((int) ((long) i * candidates.size() / n)).getKey();
+      UserRequest uRequest = UserRequest.parseFromQuery(query);
+      if (uRequest != null) uRequests.add(uRequest);
+    }
+    return uRequests;
+  }
+}
@@ -12,7 +12,9 @@ public class WebServer {
   protected static ServerArgumentParser sap = null;
 
   /**
-   * Creates the WebServer and its handlers: ScanHandler and HealthHandler.
+   * Creates the WebServer and its handlers: ScanHandler and HealthHandler. Then warms it up, in the
+   * background, with representative Requests from the MSS, during which HealthHandler reports it
+   * as not ready.
    *
    * @param args CommandLine Arguments optionally containing: WebServer Address, WebServer Port,
    *     etc.
@@ -40,12 +42,14 @@ public class WebServer {
       return;
     }
 
+    final WarmUp warmUp = WarmUp.fromEnvironment();
     server.createContext("/scan", new ScanHandler());
-    server.createContext("/health", new HealthHandler());
+    server.createContext("/health", new HealthHandler(warmUp));
 
     server.setExecutor(Executors.newCachedThreadPool());
     server.start();
 
     System.out.println(server.getAddress().toString());
+    new Thread(warmUp).start();
   }
 }
@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.cnv.storage;
+
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Storage of the Cost Statistics of the Requests, keyed by their canonical Query. The WebServer
+ * adds the Costs it measures and the LoadBalancer reads them.
+ */
+public interface CostsStorage {
+
+  /**
+   * Adds a measured Cost to the Statistics of the Request with the given Query, atomically with
+   * respect to other writers.
+   *
+   * @param query Canonical Query of the Request.
+   * @param cost Measured Cost.
+   */
+  void addCost(String query, double cost);
+
+  /**
+   * Gets the Cost Statistics of the Requests with the given Queries. Queries without Statistics are
+   * left out.
+   *
+   * @param queries Canonical Queries to look up.
+   * @return Cost Statistics associated with its Queries.
+   */
+  Map<String, CostStatistics> get(Collection<String> queries);
+
+  /**
+   * Gets the Cost Statistics of up to the given number of Requests, in no particular order.
+   *
+   * @param limit Maximum number of Requests.
+   * @return Cost Statistics associated with its Queries.
+   */
+  Map<String, CostStatistics> scan(int limit);
+
+  /**
+   * Gets the Cost Statistics of up to the given number of Requests that got a Cost at or after the
+   * given time, in no particular order.
+   *
+   * @param since Time since the epoch, in milliseconds.
+   * @param limit Maximum number of Requests.
+   * @return Cost Statistics associated with its Queries.
+   */
+  Map<String, CostStatistics> scanUpdatedSince(long since, int limit);
+}
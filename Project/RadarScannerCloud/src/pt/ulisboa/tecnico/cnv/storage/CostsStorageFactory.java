@@ -0,0 +1,39 @@
+package pt.ulisboa.tecnico.cnv.storage;
+
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/** Creates the CostsStorage selected by the MSS_BACKEND Environment Variable. */
+public class CostsStorageFactory {
+
+  private static LocalCostsStorage localStorage;
+
+  private CostsStorageFactory() {}
+
+  /**
+   * Creates the configured CostsStorage: DynamoDB (the default), or a local log-structured file
+   * when MSS_BACKEND is "local", stored in MSS_LOCAL_FILE. Frontends of the same process share the
+   * same local file, which no other process can open, so the local backend does not share Costs
+   * between processes: a LoadBalancer in front of local WebServers learns their Costs only from
+   * the response Headers.
+   *
+   * @param createTable True if the DynamoDB Table should be created when it does not exist.
+   * @return The configured CostsStorage.
+   */
+  public static synchronized CostsStorage fromEnvironment(boolean createTable) {
+    if (!"local".equalsIgnoreCase(Environment.getString("MSS_BACKEND", "dynamodb"))) {
+      return new DynamoDBCostsStorage(createTable);
+    }
+    if (localStorage == null) {
+      try {
+        localStorage =
+            new LocalCostsStorage(Paths.get(Environment.getString("MSS_LOCAL_FILE", "costs.log")));
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to Open the Local MSS", e);
+      }
+    }
+    return localStorage;
+  }
+}
@@ -0,0 +1,238 @@
+package pt.ulisboa.tecnico.cnv.storage;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.*;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.*;
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+import pt.ulisboa.tecnico.cnv.util.Environment;
+
+import java.util.*;
+
+/**
+ * CostsStorage backed by the RequestsCosts DynamoDB Table in us-east-1, or in the endpoint given by
+ * MSS_ENDPOINT (e.g. DynamoDB Local).
+ */
+public class DynamoDBCostsStorage implements CostsStorage {
+
+  private static final String REQUESTS_COSTS_TABLE = "RequestsCosts";
+  private static final int BATCH_SIZE = 100;
+  private static final int MAX_RETRIES = 8;
+  private static final long BASE_BACKOFF = 50;
+  private static final long MAX_BACKOFF = 5000;
+  private final Random random;
+  private final DynamoDB ddb;
+  private final Table requestsCostsTable;
+
+  public DynamoDBCostsStorage(boolean createTable) {
+    AWSCredentials credentials = new ProfileCredentialsProvider().getCredentials();
+    AmazonDynamoDBClientBuilder builder =
+        AmazonDynamoDBClientBuilder.standard()
+            .withCredentials(new AWSStaticCredentialsProvider(credentials));
+    String endpoint = Environment.getString("MSS_ENDPOINT", null);
+    if (endpoint != null) {
+      builder.withEndpointConfiguration(
+          new AwsClientBuilder.EndpointConfiguration(endpoint, Regions.US_EAST_1.getName()));
+    } else {
+      builder.withRegion(Regions.US_EAST_1);
+    }
+    this.ddb = new DynamoDB(builder.build());
+    this.random = new Random();
+    if (createTable) this.initDDB();
+    this.requestsCostsTable = this.ddb.getTable(REQUESTS_COSTS_TABLE);
+  }
+
+  /**
+   * Creates the RequestQuery Table in MSS where the WebServer will store the Requests Costs and the
+   * LoadBalancer will retrieve them.
+   */
+  private void initDDB() {
+    CreateTableRequest request =
+        new CreateTableRequest()
+            .withAttributeDefinitions(
+                new AttributeDefinition("RequestQuery", ScalarAttributeType.S))
+            .withKeySchema(new KeySchemaElement("RequestQuery", KeyType.HASH))
+            .withProvisionedThroughput(new ProvisionedThroughput(10L, 10L))
+            .withTableName(REQUESTS_COSTS_TABLE);
+
+    try {
+      this.ddb.createTable(request);
+    } catch (AmazonServiceException e) {
+      if (!(e instanceof ResourceInUseException)) {
+        System.err.println(e.getErrorMessage());
+        System.exit(1);
+      }
+    }
+  }
+
+  /**
+   * Adds the Cost to the Statistics of the Request with the given Query. The number of samples,
+   * their sum, the sum of their squares and the Histogram Bucket of the Cost are all incremented in
+   * a single atomic UpdateItem, so concurrent WebServers never overwrite each other. The last
+   * sample is also kept as Cost, and the time it was added as UpdatedAt.
+   *
+   * @param query Canonical Query of the Request.
+   * @param cost Measured Cost.
+   */
+  @Override
+  public void addCost(String query, double cost) {
+    String bucket = String.format("Bucket%d", CostStatistics.bucketIndex(cost));
+    UpdateItemSpec spec =
+        new UpdateItemSpec()
+            .withPrimaryKey("RequestQuery", query)
+            .withUpdateExpression(
+                "ADD #count :one, #sum :cost, #sumSquares :costSquared, #bucket :one "
+                    + "SET #cost = :cost, #updatedAt = :now")
+            .withNameMap(
+                new NameMap()
+                    .with("#count", "Count")
+                    .with("#sum", "Sum")
+                    .with("#sumSquares", "SumSquares")
+                    .with("#bucket", bucket)
+                    .with("#cost", "Cost")
+                    .with("#updatedAt", "UpdatedAt"))
+            .withValueMap(
+                new ValueMap()
+                    .withNumber(":one", 1)
+                    .withNumber(":cost", cost)
+                    .withNumber(":costSquared", cost * cost)
+                    .withNumber(":now", System.currentTimeMillis()));
+    this.requestsCostsTable.updateItem(spec);
+  }
+
+  /**
+   * Gets the Cost Statistics of the Requests with the Queries provided. The Queries are the Keys of
+   * the Table, so they are looked up directly in batches of 100 Keys, and the cost of the lookup
+   * grows with the number of Queries rather than with the size of the Table.
+   *
+   * @param queries Canonical Queries to look up.
+   * @return Cost Statistics associated with its Queries.
+   */
+  @Override
+  public Map<String, CostStatistics> get(Collection<String> queries) {
+    Map<String, CostStatistics> costs = new LinkedHashMap<>();
+    List<String> batch = new ArrayList<>(BATCH_SIZE);
+    for (String query : new LinkedHashSet<>(queries)) {
+      batch.add(query);
+      if (batch.size() == BATCH_SIZE) {
+        this.batchGet(batch, costs);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) this.batchGet(batch, costs);
+    return costs;
+  }
+
+  /**
+   * Gets the Items with the given Keys in a BatchGetItem. Keys that DynamoDB leaves unprocessed,
+   * when the Table is throttled, are requested again after an exponential backoff with jitter.
+   *
+   * @param queries At most 100 distinct Queries.
+   * @param costs Map where the Cost Statistics found are placed.
+   */
+  private void batchGet(List<String> queries, Map<String, CostStatistics> costs) {
+    TableKeysAndAttributes keys =
+        new TableKeysAndAttributes(REQUESTS_COSTS_TABLE)
+            .addHashOnlyPrimaryKeys("RequestQuery", queries.toArray());
+    Map<String, KeysAndAttributes> unprocessed = null;
+    for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+      BatchGetItemOutcome outcome;
+      try {
+        outcome =
+            unprocessed == null
+                ? this.ddb.batchGetItem(keys)
+                : this.ddb.batchGetItemUnprocessed(unprocessed);
+      } catch (ProvisionedThroughputExceededException e) {
+        this.backoff(attempt);
+        continue;
+      }
+      List<Item> items = outcome.getTableItems().get(REQUESTS_COSTS_TABLE);
+      if (items != null) {
+        for (Item item : items) costs.put(item.getString("RequestQuery"), toCostStatistics(item));
+      }
+      unprocessed = outcome.getUnprocessedKeys();
+      if (unprocessed == null || unprocessed.isEmpty()) return;
+      this.backoff(attempt);
+    }
+    System.err.println("MSS Throttled: Giving up on a Batch of Queries!");
+  }
+
+  /** Sleeps for a random time up to an exponentially growing bound (Full Jitter). */
+  private void backoff(int attempt) {
+    long bound = Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt);
+    try {
+      Thread.sleep(1 + (long) (this.random.nextDouble() * bound));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Gets the Cost Statistics of up to the given number of Requests. The Scan is paginated by the
+   * SDK, one page being requested as the previous one is consumed.
+   *
+   * @param limit Maximum number of Requests.
+   * @return Cost Statistics associated with its Queries.
+   */
+  @Override
+  public Map<String, CostStatistics> scan(int limit) {
+    return this.scan(new ScanSpec().withMaxResultSize(limit));
+  }
+
+  /**
+   * Gets the Cost Statistics of up to the given number of Requests whose UpdatedAt is at or after
+   * the given time. Items written before UpdatedAt existed are left out.
+   *
+   * @param since Time since the epoch, in milliseconds.
+   * @param limit Maximum number of Requests.
+   * @return Cost Statistics associated with its Queries.
+   */
+  @Override
+  public Map<String, CostStatistics> scanUpdatedSince(long since, int limit) {
+    return this.scan(
+        new ScanSpec()
+            .withFilterExpression("#updatedAt >= :since")
+            .withNameMap(new NameMap().with("#updatedAt", "UpdatedAt"))
+            .withValueMap(new ValueMap().withNumber(":since", since))
+            .withMaxResultSize(limit));
+  }
+
+  private Map<String, CostStatistics> scan(ScanSpec scanSpec) {
+    Iterator<Item> iterator = this.requestsCostsTable.scan(scanSpec).iterator();
+
+    Map<String, CostStatistics> costs = new LinkedHashMap<>();
+    while (iterator.hasNext()) {
+      Item item = iterator.next();
+      costs.put(item.getString("RequestQuery"), toCostStatistics(item));
+    }
+    return costs;
+  }
+
+  /**
+   * Converts an Item of the Table to Cost Statistics. Items written before the Statistics existed
+   * only hold the last Cost, taken as a single sample.
+   */
+  private static CostStatistics toCostStatistics(Item item) {
+    if (!item.isPresent("Count")) return CostStatistics.of(item.getDouble("Cost"));
+
+    Map<Integer, Long> bucketCounts = new HashMap<>();
+    for (Map.Entry<String, Object> attribute : item.attributes()) {
+      if (attribute.getKey().startsWith("Bucket")) {
+        bucketCounts.put(
+            Integer.parseInt(attribute.getKey().substring("Bucket".length())),
+            item.getLong(attribute.getKey()));
+      }
+    }
+    return CostStatistics.of(
+        item.getLong("Count"), item.getDouble("Sum"), item.getDouble("SumSquares"), bucketCounts);
+  }
+}
@@ -0,0 +1,226 @@
+package pt.ulisboa.tecnico.cnv.storage;
+
+import pt.ulisboa.tecnico.cnv.util.CostStatistics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Embedded, log-structured CostsStorage for single-region deployments and benchmarks. Every Cost is
+ * appended to a log file and aggregated in an in-memory index, from which all reads are served
+ * without locking. When the log holds many more records than the index has Queries, it is compacted
+ * into one aggregate record per Query. On opening, the log is replayed to rebuild the index, and a
+ * torn record at its end, left by a crash, is discarded. The time each Query last got a Cost is
+ * only kept in memory: replayed Queries take the time the log was last modified.
+ *
+ * <p>The log belongs to a single process, which holds an exclusive lock on a sibling ".lock" file
+ * while it is open: the index only sees the appends of its own process, and a compaction would
+ * leave any other writer appending to the replaced file. A second process opening the same log
+ * fails instead of silently losing Costs, so every process needs its own MSS_LOCAL_FILE.
+ */
+public class LocalCostsStorage implements CostsStorage {
+
+  private static final int MAGIC = 0x52534c47;
+  private static final int VERSION = 1;
+  private static final byte SAMPLE_RECORD = 1;
+  private static final byte AGGREGATE_RECORD = 2;
+  private static final int COMPACTION_FACTOR = 4;
+  private static final int COMPACTION_MIN_RECORDS = 1024;
+  private final Path path;
+  private final FileLock lock;
+  private final Map<String, CostStatistics> index;
+  private final Map<String, Long> updatedAt;
+  private DataOutputStream log;
+  private long nRecords;
+
+  public LocalCostsStorage(Path path) throws IOException {
+    this.path = path;
+    this.lock = lock(path);
+    this.index = new ConcurrentHashMap<>();
+    this.updatedAt = new ConcurrentHashMap<>();
+    this.replay();
+    this.log = this.openLog();
+  }
+
+  /**
+   * Appends the Cost to the log and adds it to the Statistics of the Request in the index.
+   *
+   * @param query Canonical Query of the Request.
+   * @param cost Measured Cost.
+   */
+  @Override
+  public synchronized void addCost(String query, double cost) {
+    try {
+      this.writeHeader(this.log, SAMPLE_RECORD, query);
+      this.log.writeDouble(cost);
+      this.log.flush();
+    } catch (IOException e) {
+      System.err.printf("Unable to Append to %s: %s%n", this.path, e);
+      return;
+    }
+    CostStatistics statistics = this.index.get(query);
+    this.index.put(query, statistics == null ? CostStatistics.of(cost) : statistics.add(cost));
+    this.updatedAt.put(query, System.currentTimeMillis());
+    if (++this.nRecords > COMPACTION_FACTOR * this.index.size() + COMPACTION_MIN_RECORDS) {
+      this.compact();
+    }
+  }
+
+  @Override
+  public Map<String, CostStatistics> get(Collection<String> queries) {
+    Map<String, CostStatistics> costs = new LinkedHashMap<>();
+    for (String query : queries) {
+      CostStatistics statistics = this.index.get(query);
+      if (statistics != null) costs.put(query, statistics);
+    }
+    return costs;
+  }
+
+  @Override
+  public Map<String, CostStatistics> scan(int limit) {
+    Map<String, CostStatistics> costs = new LinkedHashMap<>();
+    for (Map.Entry<String, CostStatistics> entry : this.index.entrySet()) {
+      if (costs.size() >= limit) break;
+      costs.put(entry.getKey(), entry.getValue());
+    }
+    return costs;
+  }
+
+  @Override
+  public Map<String, CostStatistics> scanUpdatedSince(long since, int limit) {
+    Map<String, CostStatistics> costs = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : this.updatedAt.entrySet()) {
+      if (costs.size() >= limit) break;
+      CostStatistics statistics = this.index.get(entry.getKey());
+      if (entry.getValue() >= since && statistics != null) costs.put(entry.getKey(), statistics);
+    }
+    return costs;
+  }
+
+  /**
+   * Rewrites the log with a single aggregate record per Query, and atomically replaces the old log
+   * with it.
+   */
+  private synchronized void compact() {
+    Path tmpPath = this.path.resolveSibling(this.path.getFileName() + ".compact");
+    try {
+      try (FileOutputStream fileOut = new FileOutputStream(tmpPath.toFile());
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (Map.Entry<String, CostStatistics> entry : this.index.entrySet()) {
+          this.writeHeader(out, AGGREGATE_RECORD, entry.getKey());
+          entry.getValue().writeTo(out);
+        }
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      this.log.close();
+      Files.move(
+          tmpPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      this.nRecords = this.index.size();
+    } catch (IOException e) {
+      System.err.printf("Unable to Compact %s: %s%n", this.path, e);
+    }
+    try {
+      this.log = this.openLog();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to Reopen the Local MSS", e);
+    }
+  }
+
+  /**
+   * Locks the log for this process, keeping the lock until the process exits.
+   *
+   * @param path Path of the log.
+   * @return Lock held on the lock file of the log.
+   * @throws IOException If the log is open by another process, or could not be locked.
+   */
+  private static FileLock lock(Path path) throws IOException {
+    Path lockPath = path.resolveSibling(path.getFileName() + ".lock");
+    FileChannel channel =
+        FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IOException(String.format("%s is open by another process", path));
+    }
+    return lock;
+  }
+
+  /** Rebuilds the index from the log, truncating a torn record at its end. */
+  private void replay() throws IOException {
+    if (!Files.isRegularFile(this.path)) return;
+
+    long modifiedAt = Files.getLastModifiedTime(this.path).toMillis();
+    long validSize = 0;
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException(String.format("%s is not a Local MSS log", this.path));
+      }
+      validSize = buffer.position();
+      byte[] query = new byte[0xffff];
+      try {
+        while (buffer.hasRemaining()) {
+          byte type = buffer.get();
+          int length = buffer.getShort() & 0xffff;
+          buffer.get(query, 0, length);
+          String key = new String(query, 0, length, StandardCharsets.UTF_8);
+          CostStatistics statistics =
+              type == SAMPLE_RECORD
+                  ? CostStatistics.of(buffer.getDouble())
+                  : CostStatistics.readFrom(buffer);
+          CostStatistics previous = this.index.get(key);
+          this.index.put(key, previous == null ? statistics : previous.merge(statistics));
+          this.updatedAt.put(key, modifiedAt);
+          this.nRecords++;
+          validSize = buffer.position();
+        }
+      } catch (RuntimeException e) {
+        System.err.printf("Discarding Torn Record at the End of %s%n", this.path);
+      }
+    }
+    try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.WRITE)) {
+      channel.truncate(validSize);
+    }
+  }
+
+  /** Opens the log for appending, writing its header if it is new. */
+  private DataOutputStream openLog() throws IOException {
+    boolean isNew = !Files.isRegularFile(this.path) || Files.size(this.path) == 0;
+    DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(this.path.toFile(), true)));
+    if (isNew) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.flush();
+    }
+    return out;
+  }
+
+  private void writeHeader(DataOutputStream out, byte type, String query) throws IOException {
+    byte[] bytes = query.getBytes(StandardCharsets.UTF_8);
+    out.writeByte(type);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,111 @@
+package pt.ulisboa.tecnico.cnv.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput and latency of the CostsStorage selected by MSS_BACKEND, so that every
+ * backend is measured by the same harness. Writes go through addCost and reads through batches of
+ * get, over a fixed set of synthetic Queries.
+ */
+public class StorageBenchmark {
+
+  private static final int READ_BATCH_SIZE = 100;
+
+  /**
+   * Runs the Benchmark and prints its results.
+   *
+   * @param args CommandLine Arguments containing: Number of Operations, Number of distinct
+   *     Queries, Number of Threads.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    if (args.length != 3) {
+      System.out.printf(
+          "%s Usage: <Operations> <Queries> <Threads>%n", StorageBenchmark.class.getSimpleName());
+      return;
+    }
+    int nOperations = Integer.parseInt(args[0]);
+    int nQueries = Integer.parseInt(args[1]);
+    int nThreads = Integer.parseInt(args[2]);
+
+    CostsStorage storage = CostsStorageFactory.fromEnvironment(true);
+    final List<String> queries = new ArrayList<>(nQueries);
+    for (int i = 0; i < nQueries; i++) {
+      queries.add(
+          String.format(
+              "w=512&h=512&x0=%d&x1=%d&y0=0&y1=512&xS=256&yS=256&s=GRID_SCAN&i=bench.png",
+              i % 256, 256 + i / 256));
+    }
+
+    report("addCost", run(storage, queries, nOperations, nThreads, false));
+    report("get", run(storage, queries, nOperations / READ_BATCH_SIZE, nThreads, true));
+  }
+
+  /**
+   * Runs the given number of writes or batched reads split among the Threads.
+   *
+   * @return Latency of every operation in nanoseconds, followed by the total elapsed time.
+   */
+  private static long[] run(
+      final CostsStorage storage,
+      final List<String> queries,
+      int nOperations,
+      int nThreads,
+      final boolean read)
+      throws InterruptedException {
+    final long[] latencies = new long[nOperations + 1];
+    final int perThread = (nOperations + nThreads - 1) / nThreads;
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    long start = System.nanoTime();
+    for (int t = 0; t < nThreads; t++) {
+      final int from = t * perThread;
+      final int to = Math.min(nOperations, from + perThread);
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              Random random = new Random(from);
+              for (int i = from; i < to; i++) {
+                long opStart = System.nanoTime();
+                if (read) {
+                  int offset = random.nextInt(Math.max(1, queries.size() - READ_BATCH_SIZE));
+                  storage.get(
+                      queries.subList(
+                          offset, Math.min(queries.size(), offset + READ_BATCH_SIZE)));
+                } else {
+                  storage.addCost(
+                      queries.get(random.nextInt(queries.size())), 1000 + random.nextInt(1000000));
+                }
+                latencies[i] = System.nanoTime() - opStart;
+              }
+            }
+          });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+    latencies[nOperations] = System.nanoTime() - start;
+    return latencies;
+  }
+
+  private static void report(String operation, long[] results) {
+    int n = results.length - 1;
+    if (n <= 0) return;
+    long elapsed = results[n];
+    long[] latencies = Arrays.copyOf(results, n);
+    Arrays.sort(latencies);
+    System.out.printf(
+        "%s: %d ops in %.1f ms, %.0f ops/s, p50=%.1f us, p99=%.1f us, max=%.1f us%n",
+        operation,
+        n,
+        elapsed / 1e6,
+        n / (elapsed / 1e9),
+        latencies[n / 2] / 1e3,
+        latencies[Math.min(n - 1, (int) (n * 0.99))] / 1e3,
+        latencies[n - 1] / 1e3);
+  }
+}
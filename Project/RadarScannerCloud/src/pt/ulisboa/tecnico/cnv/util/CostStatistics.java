@@ -0,0 +1,256 @@
+package pt.ulisboa.tecnico.cnv.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable aggregate of the Costs measured for the same Request: number of samples, sum and sum of
+ * squares (from which the mean and the variance follow), and a log-scale Histogram from which
+ * quantiles are estimated within a relative error of about 12%. All parts are mergeable by
+ * addition, so the MSS can update them atomically with ADD operations.
+ */
+public final class CostStatistics {
+
+  public static final CostStatistics EMPTY = new CostStatistics(0, 0, 0, 0, new long[0]);
+  private static final double GROWTH = 1.25;
+  private static final double LOG_GROWTH = Math.log(GROWTH);
+  private static final int MAX_BUCKET = 255;
+  private final long count;
+  private final double sum;
+  private final double sumSquares;
+  private final int offset;
+  private final long[] buckets;
+
+  private CostStatistics(long count, double sum, double sumSquares, int offset, long[] buckets) {
+    this.count = count;
+    this.sum = sum;
+    this.sumSquares = sumSquares;
+    this.offset = offset;
+    this.buckets = buckets;
+  }
+
+  /**
+   * Creates the Statistics of a single sample.
+   *
+   * @param cost Measured Cost.
+   * @return Statistics with one sample.
+   */
+  public static CostStatistics of(double cost) {
+    return new CostStatistics(1, cost, cost * cost, bucketIndex(cost), new long[] {1});
+  }
+
+  /**
+   * Creates the Statistics from its stored parts.
+   *
+   * @param count Number of samples.
+   * @param sum Sum of the samples.
+   * @param sumSquares Sum of the squares of the samples.
+   * @param bucketCounts Number of samples per Histogram Bucket index.
+   * @return Statistics with the given parts.
+   */
+  public static CostStatistics of(
+      long count, double sum, double sumSquares, Map<Integer, Long> bucketCounts) {
+    if (bucketCounts.isEmpty()) return new CostStatistics(count, sum, sumSquares, 0, new long[0]);
+    SortedMap<Integer, Long> sorted = new TreeMap<>(bucketCounts);
+    int offset = sorted.firstKey();
+    long[] buckets = new long[sorted.lastKey() - offset + 1];
+    for (Map.Entry<Integer, Long> bucketCount : sorted.entrySet()) {
+      buckets[bucketCount.getKey() - offset] = bucketCount.getValue();
+    }
+    return new CostStatistics(count, sum, sumSquares, offset, buckets);
+  }
+
+  /**
+   * Gets the Histogram Bucket where a Cost falls. Bucket i holds the Costs in [1.25^i, 1.25^(i+1)),
+   * and Bucket 0 also holds the Costs below 1.
+   *
+   * @param cost Measured Cost.
+   * @return Bucket index.
+   */
+  public static int bucketIndex(double cost) {
+    if (!(cost > 1)) return 0;
+    return (int) Math.min(MAX_BUCKET, Math.floor(Math.log(cost) / LOG_GROWTH));
+  }
+
+  /**
+   * Gets the lowest Cost that falls in the given Histogram Bucket, except for Bucket 0.
+   *
+   * @param index Bucket index.
+   * @return Lower bound of the Bucket.
+   */
+  public static double bucketBound(int index) {
+    return Math.pow(GROWTH, index);
+  }
+
+  /**
+   * Reads Statistics written by writeTo.
+   *
+   * @param buffer Buffer positioned at the Statistics.
+   * @return Statistics read.
+   */
+  public static CostStatistics readFrom(ByteBuffer buffer) {
+    long count = buffer.getLong();
+    double sum = buffer.getDouble();
+    double sumSquares = buffer.getDouble();
+    int offset = buffer.getShort() & 0xffff;
+    long[] buckets = new long[buffer.getShort() & 0xffff];
+    for (int i = 0; i < buckets.length; i++) buckets[i] = buffer.getLong();
+    return new CostStatistics(count, sum, sumSquares, offset, buckets);
+  }
+
+  /**
+   * Writes these Statistics in a compact binary form.
+   *
+   * @param out Destination of the Statistics.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeLong(this.count);
+    out.writeDouble(this.sum);
+    out.writeDouble(this.sumSquares);
+    out.writeShort(this.offset);
+    out.writeShort(this.buckets.length);
+    for (long bucket : this.buckets) out.writeLong(bucket);
+  }
+
+  /**
+   * Gets new Statistics with one more sample.
+   *
+   * @param cost Measured Cost.
+   * @return Statistics including the sample.
+   */
+  public CostStatistics add(double cost) {
+    return this.merge(of(cost));
+  }
+
+  /**
+   * Gets new Statistics with the samples of both.
+   *
+   * @param other Statistics to merge with.
+   * @return Statistics including the samples of both.
+   */
+  public CostStatistics merge(CostStatistics other) {
+    if (other.count == 0) return this;
+    if (this.count == 0) return other;
+    int offset = Math.min(this.offset, other.offset);
+    int end = Math.max(this.offset + this.buckets.length, other.offset + other.buckets.length);
+    long[] buckets = new long[end - offset];
+    for (int i = 0; i < this.buckets.length; i++) {
+      buckets[this.offset - offset + i] += this.buckets[i];
+    }
+    for (int i = 0; i < other.buckets.length; i++) {
+      buckets[other.offset - offset + i] += other.buckets[i];
+    }
+    return new CostStatistics(
+        this.count + other.count,
+        this.sum + other.sum,
+        this.sumSquares + other.sumSquares,
+        offset,
+        buckets);
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  public double getSum() {
+    return this.sum;
+  }
+
+  public double getSumSquares() {
+    return this.sumSquares;
+  }
+
+  public double getMean() {
+    return this.count == 0 ? 0 : this.sum / this.count;
+  }
+
+  public double getVariance() {
+    if (this.count < 2) return 0;
+    double mean = this.getMean();
+    return Math.max(0, (this.sumSquares - this.count * mean * mean) / (this.count - 1));
+  }
+
+  /**
+   * Gets the number of samples per Histogram Bucket index, skipping empty Buckets.
+   *
+   * @return Bucket counts.
+   */
+  public Map<Integer, Long> getBucketCounts() {
+    Map<Integer, Long> bucketCounts = new TreeMap<>();
+    for (int i = 0; i < this.buckets.length; i++) {
+      if (this.buckets[i] != 0) bucketCounts.put(this.offset + i, this.buckets[i]);
+    }
+    return bucketCounts;
+  }
+
+  /**
+   * Estimates the Cost below which the given fraction of the samples falls. When all samples are
+   * equal, it is their exact value, otherwise, the geometric middle of the Bucket where the
+   * quantile falls.
+   *
+   * @param q Fraction between 0 and 1.
+   * @return Estimated quantile, or 0 if there are no samples.
+   */
+  public double getQuantile(double q) {
+    if (this.count == 0) return 0;
+    double mean = this.getMean();
+    if (this.count == 1 || this.getVariance() <= 1e-9 * mean * mean) return mean;
+    long bucketsCount = 0;
+    for (long bucket : this.buckets) bucketsCount += bucket;
+    long rank = (long) Math.ceil(Math.min(1, Math.max(0, q)) * bucketsCount);
+    long seen = 0;
+    for (int i = 0; i < this.buckets.length; i++) {
+      seen += this.buckets[i];
+      if (seen >= rank && this.buckets[i] != 0) {
+        return Math.pow(GROWTH, this.offset + i + 0.5);
+      }
+    }
+    return mean;
+  }
+
+  /**
+   * Gets an estimate of the memory used by these Statistics.
+   *
+   * @return Size in Bytes.
+   */
+  public int getSizeInBytes() {
+    return 56 + 8 * this.buckets.length;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    CostStatistics other = (CostStatistics) o;
+    return this.count == other.count
+        && this.sum == other.sum
+        && this.sumSquares == other.sumSquares
+        && this.getBucketCounts().equals(other.getBucketCounts());
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.count, this.sum, this.sumSquares);
+  }
+
+  /**
+   * Gets the summary of these Statistics.
+   *
+   * @return The Statistics summary.
+   */
+  @Override
+  public String toString() {
+    return String.format(
+        "CostStatistics{ count=%d, mean=%.1f, stdDev=%.1f, p50=%.1f, p95=%.1f }",
+        this.count,
+        this.getMean(),
+        Math.sqrt(this.getVariance()),
+        this.getQuantile(0.5),
+        this.getQuantile(0.95));
+  }
+}
@@ -0,0 +1,75 @@
+package pt.ulisboa.tecnico.cnv.util;
+
+/** Reads optional settings from Environment Variables, falling back to the provided defaults. */
+public class Environment {
+
+  private Environment() {}
+
+  /**
+   * Reads a String setting.
+   *
+   * @param name Environment Variable Name.
+   * @param defaultValue Value used if the Variable is unset or blank.
+   * @return The trimmed Value of the Variable, or the default.
+   */
+  public static String getString(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Reads a long setting.
+   *
+   * @param name Environment Variable Name.
+   * @param defaultValue Value used if the Variable is unset, blank or not a long.
+   * @return The Value of the Variable, or the default.
+   */
+  public static long getLong(String name, long defaultValue) {
+    try {
+      return Long.parseLong(getString(name, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads an int setting.
+   *
+   * @param name Environment Variable Name.
+   * @param defaultValue Value used if the Variable is unset, blank or not an int.
+   * @return The Value of the Variable, or the default.
+   */
+  public static int getInt(String name, int defaultValue) {
+    try {
+      return Integer.parseInt(getString(name, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a double setting.
+   *
+   * @param name Environment Variable Name.
+   * @param defaultValue Value used if the Variable is unset, blank or not a number.
+   * @return The Value of the Variable, or the default.
+   */
+  public static double getDouble(String name, double defaultValue) {
+    try {
+      return Double.parseDouble(getString(name, String.valueOf(defaultValue)));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a boolean setting.
+   *
+   * @param name Environment Variable Name.
+   * @param defaultValue Value used if the Variable is unset or blank.
+   * @return True if the Value of the Variable is "true", ignoring case, or the default.
+   */
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(name, String.valueOf(defaultValue)));
+  }
+}
@@ -0,0 +1,143 @@
+package pt.ulisboa.tecnico.cnv.util;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the throughput of UserRequest.parseFromQuery and toQuery against the previous parser,
+ * which split the Query into a HashMap and built a Point and a Rectangle for every Request. Each
+ * operation runs over a fixed set of synthetic Queries whose parameters come in shuffled orders, as
+ * Clients send them, after a warm-up of the same length so that the JIT has compiled it.
+ */
+public class ParseBenchmark {
+
+  private static final String[] STRATEGIES = {"GRID_SCAN", "PROGRESSIVE_SCAN", "GREEDY_RANGE_SCAN"};
+  private static volatile int sink;
+
+  /**
+   * Runs the Benchmark and prints its results.
+   *
+   * @param args CommandLine Arguments containing: Number of Operations, Number of distinct Queries.
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.out.printf("%s Usage: <Operations> <Queries>%n", ParseBenchmark.class.getSimpleName());
+      return;
+    }
+    int nOperations = Integer.parseInt(args[0]);
+    int nQueries = Integer.parseInt(args[1]);
+
+    Random random = new Random(0);
+    List<String> queries = new ArrayList<>(nQueries);
+    List<UserRequest> uRequests = new ArrayList<>(nQueries);
+    for (int i = 0; i < nQueries; i++) {
+      int x0 = random.nextInt(256), y0 = random.nextInt(256);
+      List<String> params =
+          new ArrayList<>(
+              Arrays.asList(
+                  "w=512",
+                  "h=512",
+                  "x0=" + x0,
+                  "x1=" + (x0 + 1 + random.nextInt(256)),
+                  "y0=" + y0,
+                  "y1=" + (y0 + 1 + random.nextInt(256)),
+                  "xS=" + (x0 + random.nextInt(64)),
+                  "yS=" + (y0 + random.nextInt(64)),
+                  "s=" + STRATEGIES[random.nextInt(STRATEGIES.length)],
+                  "i=bench-" + random.nextInt(16) + ".png"));
+      Collections.shuffle(params, random);
+      StringBuilder query = new StringBuilder();
+      for (String param : params) query.append(query.length() > 0 ? "&" : "").append(param);
+      queries.add(query.toString());
+      uRequests.add(UserRequest.parseFromQuery(query.toString()));
+    }
+
+    for (int round = 0; round < 2; round++) {
+      boolean warmUp = round == 0;
+      report("parseFromQuery", warmUp, nOperations, runParse(queries, nOperations));
+      report("legacyParse", warmUp, nOperations, runLegacyParse(queries, nOperations));
+      report("toQuery", warmUp, nOperations, runToQuery(uRequests, nOperations));
+    }
+  }
+
+  private static long runParse(List<String> queries, int nOperations) {
+    int hash = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < nOperations; i++) {
+      hash += UserRequest.parseFromQuery(queries.get(i % queries.size())).hashCode();
+    }
+    long elapsed = System.nanoTime() - start;
+    sink = hash;
+    return elapsed;
+  }
+
+  private static long runLegacyParse(List<String> queries, int nOperations) {
+    int hash = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < nOperations; i++) {
+      hash += legacyParse(queries.get(i % queries.size()));
+    }
+    long elapsed = System.nanoTime() - start;
+    sink = hash;
+    return elapsed;
+  }
+
+  private static long runToQuery(List<UserRequest> uRequests, int nOperations) {
+    int hash = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < nOperations; i++) {
+      hash += uRequests.get(i % uRequests.size()).toQuery().length();
+    }
+    long elapsed = System.nanoTime() - start;
+    sink = hash;
+    return elapsed;
+  }
+
+  /**
+   * Parses a Query as UserRequest.parseFromQuery used to: split into a HashMap, validated, and
+   * converted to a Point and a Rectangle.
+   *
+   * @param query Scan Query.
+   * @return Hash of the parsed fields, or 0 if the Query is not a valid Scan Request.
+   */
+  private static int legacyParse(String query) {
+    Map<String, String> keyValues = new HashMap<>();
+    for (final String p : query.split("&")) {
+      final String[] pSplit = p.split("=");
+      keyValues.put(pSplit[0], pSplit[1]);
+    }
+    for (String key : new String[] {"w", "h", "x0", "x1", "y0", "y1", "xS", "yS", "s", "i"}) {
+      if (!keyValues.containsKey(key)) return 0;
+    }
+    if (UserRequest.parseStrategy(keyValues.get("s")) == null) return 0;
+    try {
+      Point startingPoint =
+          new Point(Integer.parseInt(keyValues.get("xS")), Integer.parseInt(keyValues.get("yS")));
+      int x0 = Integer.parseInt(keyValues.get("x0"));
+      int y0 = Integer.parseInt(keyValues.get("y0"));
+      Rectangle viewPort =
+          new Rectangle(
+              x0,
+              y0,
+              Integer.parseInt(keyValues.get("x1")) - x0,
+              Integer.parseInt(keyValues.get("y1")) - y0);
+      return keyValues.get("i").hashCode() + startingPoint.hashCode() + viewPort.hashCode();
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static void report(String operation, boolean warmUp, int n, long elapsed) {
+    if (warmUp || n <= 0) return;
+    System.out.printf(
+        "%s: %d ops in %.1f ms, %.0f ops/s, %.1f ns/op%n",
+        operation, n, elapsed / 1e6, n / (elapsed / 1e9), (double) elapsed / n);
+  }
+}
@@ -0,0 +1,19 @@
+package pt.ulisboa.tecnico.cnv.util;
+
+/** Names of the Headers with which the WebServer reports the measurements of a Scan Request. */
+public class ResponseHeaders {
+
+  /** Instrumented Cost of the Request (number of Routine Calls of the Solver). */
+  public static final String REQUEST_COST = "X-Request-Cost";
+
+  /** Time spent by the Solver, in milliseconds. */
+  public static final String SOLVE_TIME = "X-Solve-Time";
+
+  /** Time spent encoding the resulting Image, in milliseconds. */
+  public static final String ENCODE_TIME = "X-Encode-Time";
+
+  /** Whether the LoadBalancer answered from its ResultsCache (HIT) or a WebServer (MISS). */
+  public static final String CACHE = "X-Cache";
+
+  private ResponseHeaders() {}
+}
@@ -0,0 +1,400 @@
+package pt.ulisboa.tecnico.cnv.util;
+
+import java.awt.*;
+
+/**
+ * Canonical Representation of a Scan Request, shared by the LoadBalancer and the WebServer. It is
+ * immutable, its hash is computed once, and two Queries with the same parameters in any order map
+ * to equal UserRequests with the same canonical Query.
+ */
+public final class UserRequest {
+
+  private static final int W = 1;
+  private static final int H = 1 << 1;
+  private static final int X0 = 1 << 2;
+  private static final int X1 = 1 << 3;
+  private static final int Y0 = 1 << 4;
+  private static final int Y1 = 1 << 5;
+  private static final int XS = 1 << 6;
+  private static final int YS = 1 << 7;
+  private static final int S = 1 << 8;
+  private static final int I = 1 << 9;
+  private static final int ALL_FIELDS = (1 << 10) - 1;
+  private final Strategy strategy;
+  private final String imageName;
+  private final int width;
+  private final int height;
+  private final int xS;
+  private final int yS;
+  private final int x0;
+  private final int x1;
+  private final int y0;
+  private final int y1;
+  private final int hash;
+  private String query;
+
+  public UserRequest(
+      Strategy strategy,
+      String imageName,
+      int width,
+      int height,
+      int xS,
+      int yS,
+      int x0,
+      int x1,
+      int y0,
+      int y1) {
+    this.strategy = strategy;
+    this.imageName = imageName;
+    this.width = width;
+    this.height = height;
+    this.xS = xS;
+    this.yS = yS;
+    this.x0 = x0;
+    this.x1 = x1;
+    this.y0 = y0;
+    this.y1 = y1;
+    int h = strategy.ordinal();
+    h = 31 * h + imageName.hashCode();
+    h = 31 * h + width;
+    h = 31 * h + height;
+    h = 31 * h + xS;
+    h = 31 * h + yS;
+    h = 31 * h + x0;
+    h = 31 * h + x1;
+    h = 31 * h + y0;
+    h = 31 * h + y1;
+    this.hash = h;
+  }
+
+  /**
+   * Converts a Strategy string to a Strategy enum.
+   *
+   * @return The Strategy associated with the Request.
+   */
+  public static Strategy parseStrategy(String strategy) {
+    return parseStrategy(strategy, 0, strategy.length());
+  }
+
+  /** Converts a Strategy in the given range of the Query to a Strategy enum, without copying it. */
+  private static Strategy parseStrategy(String query, int start, int end) {
+    for (Strategy strategy : Strategy.values()) {
+      if (strategy.query.length() == end - start
+          && query.regionMatches(start, strategy.query, 0, end - start)) {
+        return strategy;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Converts a Scan Query received from a client to a UserRequest. The Query is read in a single
+   * pass and only the Image Name is copied out of it.
+   *
+   * @return The UserRequest associated with the Query, or null if it is not a valid Scan Request.
+   */
+  public static UserRequest parseFromQuery(String query) {
+    if (query == null) return null;
+
+    Strategy strategy = null;
+    String imageName = null;
+    int width = 0, height = 0, xS = 0, yS = 0, x0 = 0, x1 = 0, y0 = 0, y1 = 0;
+    int fields = 0;
+
+    int length = query.length();
+    int keyStart = 0;
+    while (keyStart < length) {
+      if (query.charAt(keyStart) == '&') {
+        keyStart++;
+        continue;
+      }
+      int keyEnd = keyStart;
+      while (keyEnd < length && query.charAt(keyEnd) != '=' && query.charAt(keyEnd) != '&') {
+        keyEnd++;
+      }
+      if (keyEnd == length || query.charAt(keyEnd) != '=') return null;
+      int valueStart = keyEnd + 1;
+      int valueEnd = valueStart;
+      while (valueEnd < length && query.charAt(valueEnd) != '&') valueEnd++;
+
+      int field = parseField(query, keyStart, keyEnd);
+      if (field == S) {
+        strategy = parseStrategy(query, valueStart, valueEnd);
+        if (strategy == null) return null;
+      } else if (field == I) {
+        if (valueStart == valueEnd) return null;
+        imageName = query.substring(valueStart, valueEnd);
+      } else if (field != 0) {
+        if (!isInt(query, valueStart, valueEnd)) return null;
+        int value = parseInt(query, valueStart, valueEnd);
+        switch (field) {
+          case W:
+            width = value;
+            break;
+          case H:
+            height = value;
+            break;
+          case X0:
+            x0 = value;
+            break;
+          case X1:
+            x1 = value;
+            break;
+          case Y0:
+            y0 = value;
+            break;
+          case Y1:
+            y1 = value;
+            break;
+          case XS:
+            xS = value;
+            break;
+          default:
+            yS = value;
+        }
+      }
+      fields |= field;
+      keyStart = valueEnd + 1;
+    }
+
+    if (fields != ALL_FIELDS) return null;
+    return new UserRequest(strategy, imageName, width, height, xS, yS, x0, x1, y0, y1);
+  }
+
+  /** Identifies the Scan Request field named in the given range of the Query. */
+  private static int parseField(String query, int start, int end) {
+    switch (end - start) {
+      case 1:
+        switch (query.charAt(start)) {
+          case 'w':
+            return W;
+          case 'h':
+            return H;
+          case 's':
+            return S;
+          case 'i':
+            return I;
+          default:
+            return 0;
+        }
+      case 2:
+        char axis = query.charAt(start);
+        char suffix = query.charAt(start + 1);
+        if (axis == 'x') return suffix == '0' ? X0 : suffix == '1' ? X1 : suffix == 'S' ? XS : 0;
+        if (axis == 'y') return suffix == '0' ? Y0 : suffix == '1' ? Y1 : suffix == 'S' ? YS : 0;
+        return 0;
+      default:
+        return 0;
+    }
+  }
+
+  /** Checks whether the given range of the Query is an integer that fits in 9 digits. */
+  private static boolean isInt(String query, int start, int end) {
+    if (start < end && query.charAt(start) == '-') start++;
+    if (start == end || end - start > 9) return false;
+    for (int i = start; i < end; i++) {
+      char c = query.charAt(i);
+      if (c < '0' || c > '9') return false;
+    }
+    return true;
+  }
+
+  /** Parses the integer in the given range of the Query, which must satisfy isInt. */
+  private static int parseInt(String query, int start, int end) {
+    boolean negative = query.charAt(start) == '-';
+    int value = 0;
+    for (int i = negative ? start + 1 : start; i < end; i++) {
+      value = value * 10 + (query.charAt(i) - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Gets the canonical Query of this UserRequest, with the parameters in a fixed order. It is used
+   * as the Key of the Request in the MSS and is what the LoadBalancer forwards to the WebServer.
+   *
+   * @return Canonical Query.
+   */
+  public String toQuery() {
+    String query = this.query;
+    if (query == null) {
+      query =
+          new StringBuilder(64 + this.imageName.length())
+              .append("w=")
+              .append(this.width)
+              .append("&h=")
+              .append(this.height)
+              .append("&x0=")
+              .append(this.x0)
+              .append("&x1=")
+              .append(this.x1)
+              .append("&y0=")
+              .append(this.y0)
+              .append("&y1=")
+              .append(this.y1)
+              .append("&xS=")
+              .append(this.xS)
+              .append("&yS=")
+              .append(this.yS)
+              .append("&s=")
+              .append(this.strategy.query)
+              .append("&i=")
+              .append(this.imageName)
+              .toString();
+      this.query = query;
+    }
+    return query;
+  }
+
+  /**
+   * Converts this UserRequest in the arguments of a direct call to SolverMain.
+   *
+   * @param mapsDirectory Directory where the Images of the maps are stored.
+   * @return Solver arguments.
+   */
+  public String[] toSolverArgs(String mapsDirectory) {
+    return new String[] {
+      "-w", String.valueOf(this.width),
+      "-h", String.valueOf(this.height),
+      "-x0", String.valueOf(this.x0),
+      "-x1", String.valueOf(this.x1),
+      "-y0", String.valueOf(this.y0),
+      "-y1", String.valueOf(this.y1),
+      "-xS", String.valueOf(this.xS),
+      "-yS", String.valueOf(this.yS),
+      "-s", this.strategy.query,
+      "-i", mapsDirectory + "/" + this.imageName
+    };
+  }
+
+  public String getImageName() {
+    return this.imageName;
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  public Point getStartingPoint() {
+    return new Point(this.xS, this.yS);
+  }
+
+  public Rectangle getViewPort() {
+    return new Rectangle(this.x0, this.y0, this.x1 - this.x0, this.y1 - this.y0);
+  }
+
+  public Strategy getStrategy() {
+    return this.strategy;
+  }
+
+  public double getArea() {
+    return (double) (this.x1 - this.x0) * (this.y1 - this.y0);
+  }
+
+  /**
+   * Gets the same Request over another ViewPort.
+   *
+   * @param viewPort ViewPort of the new Request.
+   * @return UserRequest that differs only in the ViewPort.
+   */
+  public UserRequest withViewPort(Rectangle viewPort) {
+    return new UserRequest(
+        this.strategy,
+        this.imageName,
+        this.width,
+        this.height,
+        this.xS,
+        this.yS,
+        viewPort.x,
+        viewPort.x + viewPort.width,
+        viewPort.y,
+        viewPort.y + viewPort.height);
+  }
+
+  /**
+   * Checks whether both UserRequests scan the same ViewPort.
+   *
+   * @return True if the ViewPorts are equal, otherwise, False.
+   */
+  public boolean hasSameViewPort(UserRequest other) {
+    return this.x0 == other.x0 && this.x1 == other.x1 && this.y0 == other.y0 && this.y1 == other.y1;
+  }
+
+  /**
+   * Gets the distance between the Starting Points of both UserRequests.
+   *
+   * @return Euclidean distance between the Starting Points.
+   */
+  public double startingPointDistance(UserRequest other) {
+    double dx = this.xS - other.xS;
+    double dy = this.yS - other.yS;
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Checks whether the object is a UserRequest and whether all fields are the same.
+   *
+   * @return True if the UserRequest is equal, otherwise, False.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    UserRequest other = (UserRequest) o;
+    return this.hash == other.hash
+        && this.strategy == other.strategy
+        && this.width == other.width
+        && this.height == other.height
+        && this.xS == other.xS
+        && this.yS == other.yS
+        && this.hasSameViewPort(other)
+        && this.imageName.equals(other.imageName);
+  }
+
+  /**
+   * Gets the hash of all UserRequest fields, computed on creation.
+   *
+   * @return HashCode of the UserRequest.
+   */
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  /**
+   * Gets all fields of a UserRequest.
+   *
+   * @return The UserRequest fields.
+   */
+  @Override
+  public String toString() {
+    return String.format(
+        "UserRequest{ Strategy=%s, ImageName=%s, StartingPoint=(%d,%d), ViewPort=[%d,%d]x[%d,%d] }",
+        strategy, imageName, xS, yS, x0, x1, y0, y1);
+  }
+
+  public enum Strategy {
+    GRID("GRID_SCAN"),
+    PROGRESSIVE("PROGRESSIVE_SCAN"),
+    GREEDY("GREEDY_RANGE_SCAN");
+
+    private final String query;
+
+    Strategy(String query) {
+      this.query = query;
+    }
+
+    /**
+     * Gets the name of the Strategy as it appears in a Scan Query.
+     *
+     * @return Query name of the Strategy.
+     */
+    public String getQueryName() {
+      return this.query;
+    }
+  }
+}